@@ -0,0 +1,85 @@
+package bulkload;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the string handling the tests do on request bodies before sending them.
+ * Each benchmark repeats what the named task does, on a payload of the same shape.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PayloadBenchmark {
+
+	/**
+	 * Entries in the Synthea bundle used by the Test01 benchmarks
+	 */
+	@Param({"100", "1000", "5000"})
+	public int myBundleEntries;
+
+	private Test03_Create.CreateTask myCreateTask;
+	private String myPatient;
+	private String myBundle;
+	private byte[] myBundleBytes;
+	private int myNextPatientId;
+
+	@Setup
+	public void setup() {
+		myCreateTask = new Test03_Create.CreateTask();
+		myPatient = Payloads.patient();
+		myBundle = Payloads.syntheaBundle(myBundleEntries);
+		myBundleBytes = myBundle.getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Test03_Create.CreateTask: fills the patient reference into the observation template
+	 */
+	@Benchmark
+	public String createTaskTemplate() {
+		return myCreateTask.newContent("Patient/" + (myNextPatientId++ % 5000));
+	}
+
+	/**
+	 * Test05_Update.UpdateTask: toggles the gender of the cached patient JSON
+	 */
+	@Benchmark
+	public String updateTaskToggleGender() {
+		myPatient = Test05_Update.UpdateTask.toggleGender(myPatient);
+		return myPatient;
+	}
+
+	/**
+	 * Test01 without rebatching: counts the resources in a bundle for the progress report
+	 */
+	@Benchmark
+	public int test01CountResources() throws IOException {
+		return Test01_LoadDataUsingTransactions.countBundleEntries(myBundle);
+	}
+
+	/**
+	 * Test01 with <code>bulkload.rebatchEntries</code>: streams the bundle into transactions
+	 */
+	@Benchmark
+	public List<BundleRebatcher.Transaction> test01Rebatch() throws IOException {
+		return new BundleRebatcher(500, 0).read(new ByteArrayInputStream(myBundleBytes), 0);
+	}
+}
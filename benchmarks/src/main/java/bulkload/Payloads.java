@@ -0,0 +1,165 @@
+package bulkload;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import org.hl7.fhir.r4.model.Address;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Claim;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.DateType;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.ExplanationOfBenefit;
+import org.hl7.fhir.r4.model.HumanName;
+import org.hl7.fhir.r4.model.Money;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Quantity;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.StringType;
+
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Generates payloads shaped like the ones the harness handles: Synthea patient
+ * bundles (a patient followed by encounters, each with observations, conditions, a
+ * claim and an explanation of benefit, all linked by <code>urn:uuid:</code>
+ * references) and ExplanationOfBenefit search pages. The output is the same for
+ * every run, so results can be compared between runs.
+ */
+public class Payloads {
+
+	private static final FhirContext ourCtx = FhirContext.forR4Cached();
+
+	/**
+	 * @param theEntries Approximate number of entries, e.g. 500 for a typical Synthea patient or 5000 for a long medical history
+	 */
+	public static String syntheaBundle(int theEntries) {
+		Random random = new Random(theEntries);
+		Bundle bundle = new Bundle();
+		bundle.setType(Bundle.BundleType.TRANSACTION);
+
+		Patient patient = patient(random);
+		String patientUrn = add(bundle, patient, random);
+
+		while (bundle.getEntry().size() < theEntries) {
+			Encounter encounter = new Encounter();
+			encounter.setStatus(Encounter.EncounterStatus.FINISHED);
+			encounter.getClass_().setSystem("http://terminology.hl7.org/CodeSystem/v3-ActCode").setCode("AMB");
+			encounter.addType(concept("http://snomed.info/sct", "185349003", "Encounter for check up (procedure)"));
+			encounter.setSubject(new Reference(patientUrn));
+			encounter.getPeriod().setStartElement(new DateTimeType("2015-06-0" + (1 + random.nextInt(9)) + "T10:00:00-04:00"));
+			String encounterUrn = add(bundle, encounter, random);
+
+			for (int i = 0; i < 6; i++) {
+				Observation observation = new Observation();
+				observation.setStatus(Observation.ObservationStatus.FINAL);
+				observation.addCategory(concept("http://terminology.hl7.org/CodeSystem/observation-category", "vital-signs", "vital-signs"));
+				observation.setCode(concept("http://loinc.org", "8302-2", "Body Height"));
+				observation.setSubject(new Reference(patientUrn));
+				observation.setEncounter(new Reference(encounterUrn));
+				observation.setEffective(new DateTimeType("2015-06-01T10:00:00-04:00"));
+				observation.setValue(new Quantity(null, 100 + random.nextInt(100), "http://unitsofmeasure.org", "cm", "cm"));
+				add(bundle, observation, random);
+			}
+
+			Condition condition = new Condition();
+			condition.getClinicalStatus().addCoding(new Coding("http://terminology.hl7.org/CodeSystem/condition-clinical", "resolved", null));
+			condition.setCode(concept("http://snomed.info/sct", "444814009", "Viral sinusitis (disorder)"));
+			condition.setSubject(new Reference(patientUrn));
+			condition.setEncounter(new Reference(encounterUrn));
+			add(bundle, condition, random);
+
+			Claim claim = new Claim();
+			claim.setStatus(Claim.ClaimStatus.ACTIVE);
+			claim.setType(concept("http://terminology.hl7.org/CodeSystem/claim-type", "professional", null));
+			claim.setPatient(new Reference(patientUrn));
+			claim.addItem().setSequence(1).setProductOrService(concept("http://snomed.info/sct", "185349003", "Encounter for check up (procedure)")).addEncounter(new Reference(encounterUrn));
+			claim.getTotal().setValue(129.16).setCurrency("USD");
+			String claimUrn = add(bundle, claim, random);
+
+			add(bundle, explanationOfBenefit(patientUrn, claimUrn), random);
+		}
+
+		return ourCtx.newJsonParser().encodeResourceToString(bundle);
+	}
+
+	/**
+	 * A Synthea-shaped patient, as returned by a read or used as the body of an update
+	 */
+	public static String patient() {
+		Patient patient = patient(new Random(0));
+		patient.setId("Patient/123");
+		return ourCtx.newJsonParser().encodeResourceToString(patient);
+	}
+
+	public static String eobSearchPage(int theEntries) {
+		Bundle bundle = new Bundle();
+		bundle.setType(Bundle.BundleType.SEARCHSET);
+		bundle.setTotal(theEntries);
+		for (int i = 0; i < theEntries; i++) {
+			ExplanationOfBenefit eob = explanationOfBenefit("Patient/123", "Claim/" + i);
+			eob.setId("ExplanationOfBenefit/" + i);
+			bundle.addEntry().setFullUrl("http://localhost/fhir/ExplanationOfBenefit/" + i).setResource(eob);
+		}
+		IParser parser = ourCtx.newJsonParser();
+		return parser.encodeResourceToString(bundle);
+	}
+
+	private static Patient patient(Random theRandom) {
+		Patient retVal = new Patient();
+		retVal.addExtension("http://hl7.org/fhir/us/core/StructureDefinition/us-core-birthsex", new StringType("M"));
+		retVal.addExtension("http://hl7.org/fhir/StructureDefinition/patient-mothersMaidenName", new StringType("Hettie Haag"));
+		retVal.addIdentifier().setSystem("https://github.com/synthetichealth/synthea").setValue(new UUID(theRandom.nextLong(), theRandom.nextLong()).toString());
+		retVal.addIdentifier().setSystem("http://hospital.smarthealthit.org").setValue(new UUID(theRandom.nextLong(), theRandom.nextLong()).toString());
+		retVal.addIdentifier().setSystem("http://hl7.org/fhir/sid/us-ssn").setValue("999-76-" + (1000 + theRandom.nextInt(9000)));
+		retVal.addName(new HumanName().setUse(HumanName.NameUse.OFFICIAL).setFamily("Rempel203").addGiven("Bennie663").addPrefix("Mr."));
+		retVal.addTelecom().setSystem(org.hl7.fhir.r4.model.ContactPoint.ContactPointSystem.PHONE).setValue("555-" + (100 + theRandom.nextInt(900)) + "-" + (1000 + theRandom.nextInt(9000)));
+		retVal.setGender(Enumerations.AdministrativeGender.MALE);
+		retVal.setBirthDateElement(new DateType("1961-07-25"));
+		retVal.addAddress(new Address().addLine("1073 Schmeler Mill").setCity("Boston").setState("MA").setPostalCode("02108").setCountry("US"));
+		retVal.getMaritalStatus().addCoding(new Coding("http://terminology.hl7.org/CodeSystem/v3-MaritalStatus", "M", "M"));
+		retVal.addCommunication().setLanguage(concept("urn:ietf:bcp:47", "en-US", "English"));
+		return retVal;
+	}
+
+	private static ExplanationOfBenefit explanationOfBenefit(String thePatient, String theClaim) {
+		ExplanationOfBenefit retVal = new ExplanationOfBenefit();
+		retVal.setStatus(ExplanationOfBenefit.ExplanationOfBenefitStatus.ACTIVE);
+		retVal.setUse(ExplanationOfBenefit.Use.CLAIM);
+		retVal.setType(concept("http://terminology.hl7.org/CodeSystem/claim-type", "professional", "Professional"));
+		retVal.setPatient(new Reference(thePatient));
+		retVal.setClaim(new Reference(theClaim));
+		retVal.getInsurer().setDisplay("Blue Cross Blue Shield");
+		retVal.addCareTeam().setSequence(1).getProvider().setReference("Practitioner?identifier=http://hl7.org/fhir/sid/us-npi|9999999999");
+		retVal.addInsurance().setFocal(true).getCoverage().setDisplay("Blue Cross Blue Shield");
+		retVal.addItem().setSequence(1).setProductOrService(concept("http://snomed.info/sct", "185349003", "Encounter for check up (procedure)")).addAdjudication().setCategory(concept("http://terminology.hl7.org/CodeSystem/adjudication", "submitted", null)).setAmount(new Money().setValue(129.16).setCurrency("USD"));
+		retVal.addTotal().setCategory(concept("http://terminology.hl7.org/CodeSystem/adjudication", "submitted", "Submitted Amount")).setAmount(new Money().setValue(129.16).setCurrency("USD"));
+		retVal.getPayment().setAmount(new Money().setValue(103.33).setCurrency("USD"));
+		return retVal;
+	}
+
+	private static String add(Bundle theBundle, Resource theResource, Random theRandom) {
+		String urn = "urn:uuid:" + new UUID(theRandom.nextLong(), theRandom.nextLong());
+		theBundle
+			.addEntry()
+			.setFullUrl(urn)
+			.setResource(theResource)
+			.getRequest()
+			.setMethod(Bundle.HTTPVerb.POST)
+			.setUrl(theResource.fhirType());
+		return urn;
+	}
+
+	private static CodeableConcept concept(String theSystem, String theCode, String theDisplay) {
+		CodeableConcept retVal = new CodeableConcept();
+		retVal.addCoding(new Coding(theSystem, theCode, theDisplay));
+		retVal.setText(theDisplay);
+		return retVal;
+	}
+}
@@ -0,0 +1,93 @@
+package bulkload;
+
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Measures {@link BaseTest#consumeAndCountResponse(PassRecorder, CloseableHttpResponse)},
+ * which every blocking task calls on every response, using responses of the sizes the
+ * tests actually get back.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResponseDrainBenchmark {
+
+	/**
+	 * <code>patient</code> is a read or update response, <code>eob20</code> is the
+	 * default Test02 search page and <code>eob200</code> a large one
+	 */
+	@Param({"patient", "eob20", "eob200"})
+	public String myResponse;
+
+	@Param({"identity", "gzip"})
+	public String myEncoding;
+
+	private byte[] myBody;
+	private PassRecorder myRecorder;
+
+	@Setup
+	public void setup() throws IOException {
+		String body = switch (myResponse) {
+			case "patient" -> Payloads.patient();
+			case "eob20" -> Payloads.eobSearchPage(20);
+			case "eob200" -> Payloads.eobSearchPage(200);
+			default -> throw new IllegalArgumentException("Unknown response: " + myResponse);
+		};
+		myBody = body.getBytes(StandardCharsets.UTF_8);
+		if (myEncoding.equals("gzip")) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			try (GZIPOutputStream gzip = new GZIPOutputStream(bytes)) {
+				gzip.write(myBody);
+			}
+			myBody = bytes.toByteArray();
+		}
+		myRecorder = new PassRecorder();
+	}
+
+	@Benchmark
+	public PassRecorder consumeAndCountResponse() throws IOException {
+		BaseTest.consumeAndCountResponse(myRecorder, new Response(myBody, myEncoding));
+		return myRecorder;
+	}
+
+	/**
+	 * A response backed by an in-memory body, standing in for one read off the wire
+	 */
+	private static class Response extends BasicHttpResponse implements CloseableHttpResponse {
+
+		public Response(byte[] theBody, String theEncoding) {
+			super(HttpVersion.HTTP_1_1, 200, "OK");
+			ByteArrayEntity entity = new ByteArrayEntity(theBody, BaseScaleupTest.CONTENT_TYPE_FHIR_JSON);
+			entity.setContentEncoding(theEncoding);
+			setEntity(entity);
+		}
+
+		@Override
+		public void close() {
+			// nothing to release
+		}
+	}
+}
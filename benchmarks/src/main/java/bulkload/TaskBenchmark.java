@@ -0,0 +1,61 @@
+package bulkload;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs one complete Test02 to Test05 task, including the HTTP round trip, against an
+ * in-process {@link StandInServer} with no injected latency. The result is the cost of
+ * a request as seen by a user, and with <code>-prof gc</code> the allocations the
+ * harness makes for it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TaskBenchmark {
+
+	@Param({"search", "create", "read", "update"})
+	public String myWorkload;
+
+	private StandInServer myServer;
+	private BaseScaleupTest myTest;
+	private BaseScaleupTest.IFunction myFunction;
+	private PassRecorder myRecorder;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		myServer = StandInServer.fromSystemProperties(0);
+		myTest = new BaseScaleupTest(List.of(myServer.getBaseUrl()), "benchmark:benchmark", "benchmark");
+		myTest.loadPatients(false);
+		myFunction = Calibration.mixFor(myWorkload).getFunction(0);
+		myRecorder = new PassRecorder();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		myServer.close();
+	}
+
+	@Benchmark
+	public PassRecorder task() throws Exception {
+		myFunction.run(myRecorder, myTest);
+		return myRecorder;
+	}
+}
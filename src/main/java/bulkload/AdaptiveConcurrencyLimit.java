@@ -0,0 +1,142 @@
+package bulkload;
+
+import ca.uhn.fhir.util.StopWatch;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.text.DecimalFormat;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntConsumer;
+
+/**
+ * Adjusts the number of concurrent uploads to get the most resources/sec out of the
+ * server while keeping latency under a ceiling.
+ * <p>
+ * Every window the controller looks at the throughput, the 95th percentile latency and
+ * the number of overload errors seen since the previous window (AIMD):
+ * <ul>
+ *    <li>If there were errors or the latency went over the ceiling, the limit is cut by 30%</li>
+ *    <li>If throughput dropped by more than 10% compared to the previous window, the limit is reduced by one step</li>
+ *    <li>Otherwise the limit is increased by one step to probe for more throughput</li>
+ * </ul>
+ */
+public class AdaptiveConcurrencyLimit {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(AdaptiveConcurrencyLimit.class);
+	private static final double DECREASE_FACTOR = 0.7;
+	private static final double THROUGHPUT_DROP_TOLERANCE = 0.9;
+	private final int myMinLimit;
+	private final int myMaxLimit;
+	private final int myStep;
+	private final long myLatencyCeilingMillis;
+	private final IntConsumer myLimitSetter;
+	private final Recorder myLatencies = new Recorder(3);
+	private final LongAdder myResources = new LongAdder();
+	private final LongAdder myErrors = new LongAdder();
+	private final StopWatch mySw = new StopWatch();
+	private final ScheduledExecutorService myScheduler;
+	private Histogram myIntervalHistogram;
+	private long myLastWindowNanos = System.nanoTime();
+	private double myLastThroughput;
+	private int myLimit;
+
+	/**
+	 * @param theInitialLimit        The starting number of concurrent uploads
+	 * @param theMaxLimit            The highest number of concurrent uploads to allow
+	 * @param theLatencyCeilingMillis The 95th percentile latency that must not be exceeded
+	 * @param theWindowSeconds       How often to adjust the limit
+	 * @param theLimitSetter         Applies a new limit
+	 */
+	public AdaptiveConcurrencyLimit(int theInitialLimit, int theMaxLimit, long theLatencyCeilingMillis, int theWindowSeconds, IntConsumer theLimitSetter) {
+		myLimit = theInitialLimit;
+		myMinLimit = 1;
+		myMaxLimit = Math.max(theInitialLimit, theMaxLimit);
+		myStep = Math.max(1, theInitialLimit / 10);
+		myLatencyCeilingMillis = theLatencyCeilingMillis;
+		myLimitSetter = theLimitSetter;
+
+		myScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread retVal = new Thread(r, "adaptive-limit");
+			retVal.setDaemon(true);
+			return retVal;
+		});
+		myScheduler.scheduleAtFixedRate(this::adjust, theWindowSeconds, theWindowSeconds, TimeUnit.SECONDS);
+
+		ourLog.info("LIMIT,Millis Elapsed,Hours Elapsed,Old Limit,New Limit,Resources/Sec,95th Percentile Latency (ms),Errors,Reason");
+	}
+
+	public void recordSuccess(long theLatencyMillis, int theResourceCount) {
+		myLatencies.recordValue(Math.max(0, theLatencyMillis));
+		myResources.add(theResourceCount);
+	}
+
+	/**
+	 * Records a request that failed because the server looks overloaded, e.g. it timed out
+	 * or returned a 429 or 5xx. Requests the server refused as invalid shouldn't be
+	 * recorded, as they say nothing about how much load it can take.
+	 */
+	public void recordError() {
+		myErrors.increment();
+	}
+
+	public int getLimit() {
+		return myLimit;
+	}
+
+	public void stop() {
+		myScheduler.shutdown();
+	}
+
+	private synchronized void adjust() {
+		long now = System.nanoTime();
+		double elapsedSeconds = (now - myLastWindowNanos) / 1_000_000_000.0;
+		myLastWindowNanos = now;
+
+		myIntervalHistogram = myLatencies.getIntervalHistogram(myIntervalHistogram);
+		long resources = myResources.sumThenReset();
+		long errors = myErrors.sumThenReset();
+		if (myIntervalHistogram.getTotalCount() == 0 && errors == 0) {
+			return;
+		}
+
+		double throughput = resources / elapsedSeconds;
+		long pct95 = myIntervalHistogram.getValueAtPercentile(95);
+
+		int newLimit;
+		String reason;
+		if (errors > 0) {
+			newLimit = (int) (myLimit * DECREASE_FACTOR);
+			reason = "errors";
+		} else if (pct95 > myLatencyCeilingMillis) {
+			newLimit = (int) (myLimit * DECREASE_FACTOR);
+			reason = "latency over ceiling";
+		} else if (throughput < myLastThroughput * THROUGHPUT_DROP_TOLERANCE) {
+			newLimit = myLimit - myStep;
+			reason = "throughput dropped";
+		} else {
+			newLimit = myLimit + myStep;
+			reason = "probing";
+		}
+		newLimit = Math.max(myMinLimit, Math.min(myMaxLimit, newLimit));
+		myLastThroughput = throughput;
+
+		if (newLimit != myLimit) {
+			ourLog.info("LIMIT,{},{},{},{},{},{},{},{}",
+				mySw.getMillis(),
+				new DecimalFormat("0.0").format((double) mySw.getMillis() / (1000.0 * 60.0 * 60.0)),
+				myLimit,
+				newLimit,
+				(long) throughput,
+				pct95,
+				errors,
+				reason);
+			myLimit = newLimit;
+			myLimitSetter.accept(newLimit);
+		}
+	}
+}
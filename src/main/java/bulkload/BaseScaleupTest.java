@@ -3,170 +3,833 @@ package bulkload;
 import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
 import ca.uhn.fhir.util.FileUtil;
 import ca.uhn.fhir.util.StopWatch;
-import com.codahale.metrics.Histogram;
-import com.codahale.metrics.MetricRegistry;
-import com.codahale.metrics.Timer;
+import com.sun.management.OperatingSystemMXBean;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.Validate;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramLogWriter;
+import org.apache.commons.io.IOUtils;
+import org.apache.http.Header;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
 import org.apache.http.entity.ContentType;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.hl7.fhir.r4.model.Bundle;
-import org.hl7.fhir.r4.model.Patient;
+import org.apache.http.pool.PoolStats;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicLong;
-
-import static org.apache.commons.lang3.StringUtils.isBlank;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class BaseScaleupTest extends BaseTest {
 	public static final ContentType CONTENT_TYPE_FHIR_JSON = ContentType.parse("application/fhir+json");
 	private static final Logger ourLog = LoggerFactory.getLogger(BaseScaleupTest.class);
 	private static final DecimalFormat ourDecimalFormat = new DecimalFormat("0.0");
+	private static final OperatingSystemMXBean ourOperatingSystemBean = (OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+	/**
+	 * Inter-arrival distribution for open-loop mode: "poisson" (default) or "uniform"
+	 */
+	private static final boolean ourUniformArrivals = "uniform".equals(System.getProperty("bulkload.arrivals", "poisson"));
+	/**
+	 * Run each simulated user on its own virtual thread instead of a platform thread
+	 */
+	private static final boolean ourVirtualThreads = Boolean.getBoolean("bulkload.virtualThreads");
+	/**
+	 * Issue requests through the non-blocking HTTP client instead of having each user
+	 * block a thread for the duration of its request
+	 */
+	private static final boolean ourAsync = Boolean.getBoolean("bulkload.async");
+	/**
+	 * If set, run as a coordinator that drives this many agent processes instead of
+	 * sending any requests itself
+	 */
+	private static final int ourAgents = Integer.getInteger("bulkload.agents", 0);
+	private static final int ourCoordinatorPort = Integer.getInteger("bulkload.coordinatorPort", 7900);
+	/**
+	 * If set (as host:port), run as an agent of the coordinator at this address
+	 */
+	private static final String ourCoordinator = System.getProperty("bulkload.coordinator");
+	/**
+	 * How far ahead of time the coordinator schedules the start of each pass, so that
+	 * every agent has received the command before its users start
+	 */
+	private static final long PASS_START_DELAY_MILLIS = 500;
+	/**
+	 * How often the blocking client's connection pool is sampled during a pass
+	 */
+	private static final long POOL_SAMPLE_MILLIS = 100;
+	private static final ScheduledExecutorService ourPoolSampler = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread retVal = new Thread(r, "pool-sampler");
+		retVal.setDaemon(true);
+		return retVal;
+	});
+	/**
+	 * Directory of patient snapshots, which let later runs against the same server skip
+	 * harvesting the patients, or "none" to always harvest
+	 */
+	private static final String ourPatientSnapshotDir = System.getProperty("bulkload.patientSnapshotDir", "patient-snapshots");
+	/**
+	 * Harvest the patients again even if there is a snapshot for the server
+	 */
+	private static final boolean ourRefreshPatientSnapshot = Boolean.getBoolean("bulkload.refreshPatientSnapshot");
+	/**
+	 * Number of patient IDs to harvest and pick from
+	 */
+	private static final int ourPatients = Integer.getInteger("bulkload.patients", 5000);
+	private static final int ourHarvestThreads = Integer.getInteger("bulkload.harvestThreads", 8);
+	private static final int ourHarvestPageSize = Integer.getInteger("bulkload.harvestPageSize", 1000);
+	/**
+	 * If set, updates go to this many patients without leasing them, so that concurrent
+	 * updates collide and the cost of write conflicts can be measured
+	 */
+	private static final int ourContendedPatients = Integer.getInteger("bulkload.contendedPatients", 0);
+	/**
+	 * How many times an update is retried after a write conflict before it counts as an error
+	 */
+	private static final int ourConflictRetries = Integer.getInteger("bulkload.conflictRetries", 3);
+	/**
+	 * How many patients updates remember before the least recently used is read from the server again
+	 */
+	private static final int ourPatientCacheSize = Integer.getInteger("bulkload.patientCacheSize", 10000);
+	private static final Pattern ETAG_VERSION = Pattern.compile("(?:W/)?\"([^\"]*)\"");
 	protected final Logger myCsvLog;
+	protected final LoadProfile myLoadProfile = LoadProfile.fromSystemProperties();
 	private final String myCsvLogName;
-	protected AtomicLong myFunctionCounter = new AtomicLong(0);
-	private ArrayList<String> myPatientIds;
-	private Map<String, String> myPatients;
-	private final AtomicLong myNextPatientIndex = new AtomicLong(0);
+	private final PrintStream myHistogramLogStream;
+	private final HistogramLogWriter myHistogramLogWriter;
+	private OperationMix myOperationMix;
+	private PatientPool myPatientPool;
+	private PatientSelector myPatientSelector;
+	/**
+	 * Patients that have been read or updated, keyed by ID, least recently used first
+	 */
+	private final Map<String, CachedPatient> myPatients = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, CachedPatient> theEldest) {
+			return size() > ourPatientCacheSize;
+		}
+	});
+	/**
+	 * Patients currently leased for an update
+	 */
+	private final Set<String> myLeasedPatients = ConcurrentHashMap.newKeySet();
+	/**
+	 * The highest pass number so far
+	 */
+	private int myPassCount;
 
 	public BaseScaleupTest(List<String> theBaseUrls, String theCredentials, String theCsvLogName) {
 		super(theBaseUrls, theCredentials);
 		myCsvLog = LoggerFactory.getLogger(theCsvLogName);
 		myCsvLogName = theCsvLogName;
+
+		try {
+			myHistogramLogStream = new PrintStream(new FileOutputStream(theCsvLogName + ".hlog", true));
+		} catch (FileNotFoundException e) {
+			throw new InternalErrorException(e);
+		}
+		myHistogramLogWriter = new HistogramLogWriter(myHistogramLogStream);
+		myHistogramLogWriter.outputLogFormatVersion();
+		myHistogramLogWriter.outputStartTime(System.currentTimeMillis());
+		myHistogramLogWriter.outputLegend();
 	}
 
 	protected String getRandomPatientId() {
-		Validate.notNull(myPatientIds);
-		return myPatientIds.get((int) (myNextPatientIndex.incrementAndGet() % myPatientIds.size()));
+		Validate.notNull(myPatientPool);
+		return myPatientPool.getId(myPatientSelector.next());
 	}
 
-	public String getPatientString(String thePatientId) {
-		String retVal = myPatients.get(thePatientId);
-		Validate.notNull(retVal);
-		return retVal;
+	/**
+	 * Picks the patient for an update. Normally the patient is leased so that no other user
+	 * updates it until the lease is closed, which keeps concurrent updates from colliding.
+	 * If <code>bulkload.contendedPatients</code> is set the updates are instead spread over
+	 * that many patients without leasing, so that they collide on purpose.
+	 */
+	public PatientLease leasePatient() {
+		Validate.notNull(myPatientPool);
+		if (ourContendedPatients > 0) {
+			return new PatientLease(myPatientPool.getId(ThreadLocalRandom.current().nextInt(Math.min(ourContendedPatients, myPatientPool.size()))), false);
+		}
+		while (true) {
+			if (myLeasedPatients.size() >= myPatientPool.size()) {
+				throw new InternalErrorException("Every patient is already being updated, use more patients than users");
+			}
+			// Picking again skews the selection slightly away from patients already being updated
+			String retVal = getRandomPatientId();
+			if (myLeasedPatients.add(retVal)) {
+				return new PatientLease(retVal, true);
+			}
+		}
 	}
 
-	protected void loadPatients() {
-		int wantPatients = 5000;
+	/**
+	 * @return The patient as last sent by {@link #replacePatient(String, String, String)}, or
+	 * as read from the server the first time it is asked for (or after
+	 * {@link #forgetPatient(String)}, or once <code>bulkload.patientCacheSize</code> other
+	 * patients have been used since). That read is part of the calling request as far as
+	 * latency is concerned.
+	 */
+	public CachedPatient getPatient(String thePatientId) throws IOException {
+		CachedPatient retVal = myPatients.get(thePatientId);
+		if (retVal != null) {
+			return retVal;
+		}
 
-		ourLog.info("Loading some patient IDs...");
-		Set<String> patientIds = new HashSet<>();
-		Map<String, String> patients = new HashMap<>();
+		try (BaseTest.NodeLease node = leaseNode()) {
+			HttpGet request = new HttpGet(node.getBaseUrl() + "/" + thePatientId);
+			// The body is edited, so it has to be plain JSON whatever the wire format
+			request.addHeader("Accept", CONTENT_TYPE_FHIR_JSON.getMimeType());
+			request.addHeader("Accept-Encoding", "identity");
+			try (var response = myHttpClient.execute(request)) {
+				if (response.getStatusLine().getStatusCode() < 200 || response.getStatusLine().getStatusCode() > 299) {
+					ourLog.error("ERROR: Got HTTP status {} reading {}", response.getStatusLine().getStatusCode(), thePatientId);
+					throw new InternalErrorException("Bad HTTP status");
+				}
+				String body = IOUtils.toString(response.getEntity().getContent(), StandardCharsets.UTF_8);
+				retVal = new CachedPatient(body, parseVersion(getHeader(response, "ETag"), getHeader(response, "Content-Location")));
+			}
+			node.success();
+		}
+		CachedPatient existing = myPatients.putIfAbsent(thePatientId, retVal);
+		return existing != null ? existing : retVal;
+	}
 
-		Bundle bundle = myFhirClient
-			.search()
-			.forResource(Patient.class)
-			.returnBundle(Bundle.class)
-			.count(1000)
-			.withAdditionalHeader("Accept-Encoding", "gzip")
-			.execute();
+	/**
+	 * Non-blocking equivalent of {@link #getPatient(String)}
+	 */
+	public CompletionStage<CachedPatient> getPatientAsync(String thePatientId) {
+		CachedPatient cached = myPatients.get(thePatientId);
+		if (cached != null) {
+			return CompletableFuture.completedFuture(cached);
+		}
 
-		int page = 1;
-		while (true) {
-			bundle
-				.getEntry()
-				.stream()
-				.map(Bundle.BundleEntryComponent::getResource)
-				.filter(t -> t instanceof Patient)
-				.forEach(p -> {
-					String id = p.getIdElement().toUnqualifiedVersionless().getValue();
-					patientIds.add(id);
-					patients.put(id, myCtx.newJsonParser().encodeResourceToString(p));
+		return withNodeAsync(node -> {
+			HttpRequest request = newAsyncRequest(node.getBaseUrl() + "/" + thePatientId)
+				.setHeader("Accept", CONTENT_TYPE_FHIR_JSON.getMimeType())
+				.setHeader("Accept-Encoding", "identity")
+				.GET()
+				.build();
+			return getAsyncHttpClient()
+				.sendAsync(request, HttpResponse.BodyHandlers.ofString())
+				.thenApply(response -> {
+					if (response.statusCode() < 200 || response.statusCode() > 299) {
+						ourLog.error("ERROR: Got HTTP status {} reading {}", response.statusCode(), thePatientId);
+						throw new InternalErrorException("Bad HTTP status");
+					}
+					node.success();
+					CachedPatient patient = new CachedPatient(response.body(), parseVersion(response.headers().firstValue("ETag").orElse(null), response.headers().firstValue("Content-Location").orElse(null)));
+					CachedPatient existing = myPatients.putIfAbsent(thePatientId, patient);
+					return existing != null ? existing : patient;
 				});
+		});
+	}
+
+	protected void loadPatients() throws IOException, InterruptedException, ExecutionException {
+		loadPatients(!"none".equals(ourPatientSnapshotDir));
+	}
+
+	/**
+	 * Fills the pool of patient IDs that requests pick from. Patient bodies are only read
+	 * when a test asks for them.
+	 *
+	 * @param theUseSnapshot If <code>true</code>, map the IDs from the snapshot for this
+	 *                       server if there is one, and save them to one after harvesting if not
+	 */
+	protected void loadPatients(boolean theUseSnapshot) throws IOException, InterruptedException, ExecutionException {
+		if (ourAgents > 0) {
+			// The coordinator doesn't send any requests itself
+			return;
+		}
 
-			String nextUrl = bundle.getLinkOrCreate("next").getUrl();
-			if (patientIds.size() >= wantPatients || isBlank(nextUrl)) {
-				break;
+		String baseUrl = myBaseUrls.get(0);
+		File snapshotFile = PatientSnapshot.fileFor(new File(ourPatientSnapshotDir), baseUrl);
+		if (theUseSnapshot && !ourRefreshPatientSnapshot && snapshotFile.exists()) {
+			StopWatch sw = new StopWatch();
+			try {
+				PatientSnapshot snapshot = PatientSnapshot.open(snapshotFile);
+				if (!snapshot.getBaseUrl().equals(baseUrl)) {
+					ourLog.warn("Patient snapshot {} is for {}, harvesting patients again", snapshotFile, snapshot.getBaseUrl());
+				} else if (snapshot.getPool().size() < ourPatients && !snapshot.isComplete()) {
+					ourLog.info("Patient snapshot {} only has {} patients, harvesting patients again", snapshotFile, snapshot.getPool().size());
+				} else {
+					ourLog.info("Mapped {} patients from {} in {}ms, harvested {} - set bulkload.refreshPatientSnapshot=true to harvest them again", snapshot.getPool().size(), snapshotFile, sw.getMillis(), new Date(snapshot.getCreated()));
+					usePatients(snapshot.getPool());
+					return;
+				}
+			} catch (IOException | InternalErrorException e) {
+				ourLog.warn("Failed to read patient snapshot {}, harvesting patients again: {}", snapshotFile, e.toString());
 			}
+		}
 
-			/*
-			if (!nextUrl.contains("hapi.fhir.org")) {
-				int pathStartIdx = StringUtils.ordinalIndexOf(nextUrl, "/", 3);
-				nextUrl = myFhirClient.getServerBase() + nextUrl.substring(pathStartIdx);
+		PatientHarvester harvester = new PatientHarvester(myHttpClient, baseUrl, ourHarvestPageSize, ourHarvestThreads);
+		PatientPool.Builder patients = harvester.harvest(ourPatients);
+		if (theUseSnapshot) {
+			try {
+				PatientSnapshot snapshot = PatientSnapshot.write(snapshotFile, baseUrl, patients, harvester.isComplete());
+				ourLog.info("Saved {} patients to {}", snapshot.getPool().size(), snapshotFile);
+				usePatients(snapshot.getPool());
+				return;
+			} catch (IOException e) {
+				ourLog.warn("Failed to save patient snapshot {}: {}", snapshotFile, e.toString());
 			}
-			*/
+		}
+		usePatients(patients.build());
+	}
+
+	private void usePatients(PatientPool thePool) {
+		Validate.isTrue(thePool.size() > 0, "No patients found on %s", myBaseUrls.get(0));
+		myPatientPool = thePool.limit(ourPatients);
+		myPatientSelector = PatientSelector.fromSystemProperties(myPatientPool.size());
+		ourLog.info("Selecting from {} patients: {}", myPatientPool.size(), myPatientSelector);
+	}
+
+	protected void run(IFunction theFunction) throws ExecutionException, InterruptedException, IOException {
+		run(new OperationMix().add(myCsvLogName, theFunction, 1));
+	}
 
-			ourLog.info("Have {} patients, loading page {}", patientIds.size(), ++page);
-			bundle = myFhirClient.loadPage().byUrl(nextUrl).andReturnBundle(Bundle.class).execute();
+	/**
+	 * Runs the passes with each request performing an operation picked from the mix. If
+	 * there is more than one operation, each is also reported on its own. When running
+	 * with agents, every agent must be given the same mix as the coordinator.
+	 */
+	protected void run(OperationMix theMix) throws ExecutionException, InterruptedException, IOException {
+		try {
+			runMix(theMix);
+		} finally {
+			myLiveMetrics.close();
 		}
+	}
 
-		ourLog.info("Found {} patients", patientIds.size());
-		myPatientIds = new ArrayList<>(patientIds);
-		myPatients = Collections.synchronizedMap(new HashMap<>(patients));
+	private void runMix(OperationMix theMix) throws ExecutionException, InterruptedException, IOException {
+		myOperationMix = theMix;
+		if (theMix.size() > 1) {
+			ourLog.info("Operation mix: {}", theMix);
+		}
+		List<WireFormat> wireFormats = WireFormat.matrixFromSystemProperties();
+		Validate.isTrue(wireFormats.size() == 1 || (ourCoordinator == null && ourAgents == 0), "A matrix of encodings and formats can't be run with agents");
+		if (ourCoordinator != null) {
+			setWireFormat(wireFormats.get(0));
+			runAsAgent(theMix);
+			return;
+		}
 
+		StringBuilder operationColumns = new StringBuilder();
+		for (int i = 0; theMix.size() > 1 && i < theMix.size(); i++) {
+			String name = theMix.getName(i);
+			operationColumns.append(',').append(name).append(" Count,").append(name).append(" Mean (ms),").append(name).append(" 99th Percentile (ms),").append(name).append(" Max (ms),").append(name).append(" Corrected 99th Percentile (ms),").append(name).append(" Throughput / Sec,").append(name).append(" Average Response (kb),").append(name).append(" Errors");
+		}
+		myCsvLog.info("Timestamp,NEXT,Pass,Searches Performed,Concurrent Users,Min (ms),Mean (ms),75th Percentile (ms),98th Percentile (ms),99th Percentile (ms),Max (ms),Average Response (kb),Max Response (kb),Throughput / Sec,Errors,Target Throughput / Sec,Corrected Mean (ms),Corrected 75th Percentile (ms),Corrected 98th Percentile (ms),Corrected 99th Percentile (ms),Corrected Max (ms),Client CPU (%),Client Platform Threads,Average Wire Response (kb),Max Wire Response (kb),Average Bundle Entries,Average Bundle Total,Measured (s),Throughput CV,Steady,409 Conflicts,412 Precondition Failed,Conflict Rate (%),Conflict Mean (ms),Conflict 99th Percentile (ms),Lease Wait Mean (ms),Lease Wait 99th Percentile (ms),New Connections,Connect Mean (ms),Connect 99th Percentile (ms),Request Write Mean (ms),Request Write 99th Percentile (ms),Time To First Byte Mean (ms),Time To First Byte 99th Percentile (ms),Download Mean (ms),Download 99th Percentile (ms),Pool Leased Max,Pool Available Mean,Pool Pending Mean,Pool Pending Max,Pre-warmed Connections,Connection Reuse (%),Connections Not Kept Alive,Encoding,Format,Client CPU per Request (us){}", operationColumns);
+
+		// Each combination runs the whole load profile, one after the other
+		for (WireFormat next : wireFormats) {
+			if (wireFormats.size() > 1) {
+				ourLog.info("Running with encoding / format {}", next);
+			}
+			setWireFormat(next);
+			runPasses(theMix);
+		}
 	}
 
-	protected void run(IFunction... theFunctions) throws ExecutionException, InterruptedException {
-		myCsvLog.info("Timestamp,NEXT,Pass,Searches Performed,Concurrent Users,Min (ms),Mean (ms),75th Percentile (ms),98th Percentile (ms),99th Percentile (ms),Max (ms),Average Response (kb),Max Response (kb),Throughput / Sec,Errors");
+	private void runPasses(OperationMix theMix) throws ExecutionException, InterruptedException, IOException {
 
-		int pass = 0;
+		// Passes are numbered on from the last combination of a matrix, so that every pass
+		// has its own number in the CSV and histogram log
+		int firstPass = myPassCount;
 		int numThreads;
-		int numLoads = 10;
+		CapacitySearch search = myLoadProfile.getCapacitySearch();
 
-		for (numThreads = 1; numThreads < 200; numThreads++) {
-			for (int i = 0; i < 3; i++) {
-				pass++;
-				performPass(pass, numThreads, numLoads, theFunctions);
+		if (ourAgents > 0) {
+			if (myLoadProfile.isSteadyStateDetection()) {
+				ourLog.warn("Steady state detection isn't supported with agents, passes will have a fixed length");
+			}
+			try (DistributedLoad.Coordinator coordinator = new DistributedLoad.Coordinator(ourCoordinatorPort, ourAgents)) {
+				if (search != null) {
+					search.search((thePass, theUsers, theRatePerUser) -> coordinatePass(coordinator, countPass(firstPass + thePass), theUsers, theRatePerUser));
+					return;
+				}
+				for (numThreads = myLoadProfile.getStartUsers(); numThreads <= myLoadProfile.getMaxUsers(); numThreads += myLoadProfile.getUserStep()) {
+					for (int i = 0; i < myLoadProfile.getPassesPerStep(); i++) {
+						coordinatePass(coordinator, countPass(myPassCount + 1), numThreads, myLoadProfile.getOpenLoopRatePerUser());
+					}
+				}
+			}
+			return;
+		}
+
+		// The executor is shared by all passes so that thread creation doesn't skew the
+		// first requests of each pass
+		ExecutorService executor = newUserExecutor();
+		try {
+			if (search != null) {
+				search.search((thePass, theUsers, theRatePerUser) -> performPass(executor, countPass(firstPass + thePass), theUsers, theRatePerUser, theMix));
+				return;
+			}
+			for (numThreads = myLoadProfile.getStartUsers(); numThreads <= myLoadProfile.getMaxUsers(); numThreads += myLoadProfile.getUserStep()) {
+				for (int i = 0; i < myLoadProfile.getPassesPerStep(); i++) {
+					performPass(executor, countPass(myPassCount + 1), numThreads, myLoadProfile.getOpenLoopRatePerUser(), theMix);
+				}
 			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * @return The given pass number, after noting it as the latest pass run
+	 */
+	private int countPass(int thePass) {
+		myPassCount = Math.max(myPassCount, thePass);
+		return thePass;
+	}
+
+	protected ExecutorService newUserExecutor() {
+		if (ourAsync) {
+			ourLog.info("Running users as asynchronous request chains, up to {} users", myLoadProfile.getMaxUsers());
+			return Executors.newSingleThreadScheduledExecutor();
+		} else if (ourVirtualThreads) {
+			ourLog.info("Running users on virtual threads, up to {} users", myLoadProfile.getMaxUsers());
+			return Executors.newVirtualThreadPerTaskExecutor();
 		}
+		return Executors.newCachedThreadPool();
 	}
 
-	private void performPass(int pass, int numThreads, int numLoads, IFunction[] theFunctions) throws InterruptedException, ExecutionException {
-		MetricRegistry metricRegistry = new MetricRegistry();
-		Timer latencyTimer = metricRegistry.timer("latencyTimer-" + numThreads);
-		Histogram responseCharCount = metricRegistry.histogram("response-charcount-" + numThreads);
+	private CapacitySearch.PassOutcome performPass(ExecutorService executor, int pass, int numThreads, double theRatePerUser, OperationMix theMix) throws InterruptedException, ExecutionException {
+		StopWatch sw = new StopWatch();
+		long cpuStartNanos = ourOperatingSystemBean.getProcessCpuTime();
+		int prewarmed = prewarm(pass, numThreads);
+		long passStartMillis = System.currentTimeMillis();
+		LoadProfile.PassControl control = myLoadProfile.newPass(System.nanoTime(), theRatePerUser);
+		myLiveMetrics.setPass(pass, numThreads);
+		PassRecorder recorder = runUsers(executor, numThreads, control, theMix);
+		recorder.recordPrewarm(prewarmed);
+		long measuredNanos = control.getMeasuredNanos(System.nanoTime());
 
-		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
-		List<Future<Long>> futures = new ArrayList<>();
+		recordClientCpu(recorder, cpuStartNanos, sw.getMillis(), measuredNanos);
+		double clientCpuPercent = getClientCpuPercent(cpuStartNanos, sw.getMillis());
+		int platformThreads = ManagementFactory.getThreadMXBean().getThreadCount();
+		return reportPass(pass, numThreads, control, measuredNanos, passStartMillis, recorder, myErrorCounter.get(), clientCpuPercent, platformThreads);
+	}
 
+	/**
+	 * Opens the blocking client's connections for a pass before it starts (see
+	 * {@link #prewarmConnections(int)}). Asynchronous users don't use the blocking client.
+	 *
+	 * @return The number of connections opened
+	 */
+	private int prewarm(int pass, int theUsers) throws InterruptedException {
+		if (ourAsync) {
+			return 0;
+		}
 		StopWatch sw = new StopWatch();
+		try {
+			int retVal = prewarmConnections(theUsers);
+			if (retVal > 0) {
+				ourLog.info("Pass {} Pre-warmed {} connections in {}", pass, retVal, sw);
+			}
+			return retVal;
+		} catch (IOException e) {
+			ourLog.warn("Pass {} Failed to pre-warm connections, the pass will open them as it goes: {}", pass, e.toString());
+			return 0;
+		}
+	}
+
+	/**
+	 * Runs one pass on the agents and reports the merged result. Client CPU is the
+	 * average across the agents and platform threads are the total.
+	 */
+	private CapacitySearch.PassOutcome coordinatePass(DistributedLoad.Coordinator theCoordinator, int pass, int numThreads, double theRatePerUser) throws IOException {
+		long passStartMillis = System.currentTimeMillis() + PASS_START_DELAY_MILLIS;
+		LoadProfile.PassControl control = myLoadProfile.newPass(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(PASS_START_DELAY_MILLIS), theRatePerUser);
+		List<DistributedLoad.AgentResult> results = theCoordinator.runPass(pass, numThreads, control, passStartMillis);
+		long measuredNanos = control.getMeasuredNanos(System.nanoTime());
+
+		PassRecorder recorder = new PassRecorder();
+		long errors = 0;
+		double clientCpuPercent = 0;
+		int platformThreads = 0;
+		for (DistributedLoad.AgentResult next : results) {
+			recorder.add(next.getRecorder());
+			errors += next.getErrors();
+			clientCpuPercent += next.getClientCpuPercent() / results.size();
+			platformThreads += next.getPlatformThreads();
+		}
+		return reportPass(pass, numThreads, control, measuredNanos, passStartMillis, recorder, errors, clientCpuPercent, platformThreads);
+	}
+
+	/**
+	 * Runs the users the coordinator assigns to this process for each pass until the
+	 * coordinator says the test is over. Nothing is written to the CSV or histogram log.
+	 */
+	private void runAsAgent(OperationMix theMix) throws ExecutionException, InterruptedException, IOException {
+		ExecutorService executor = newUserExecutor();
+		try (DistributedLoad.Agent agent = new DistributedLoad.Agent(ourCoordinator)) {
+			DistributedLoad.PassCommand command;
+			while ((command = agent.nextCommand()) != null) {
+				// Opened while waiting for the pass to start
+				int prewarmed = prewarm(command.getPass(), command.getUsers());
+				long passStartNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(command.getStartMillis() - System.currentTimeMillis());
+				long wait = passStartNanos - System.nanoTime();
+				while (wait > 0) {
+					LockSupport.parkNanos(wait);
+					wait = passStartNanos - System.nanoTime();
+				}
+
+				StopWatch sw = new StopWatch();
+				long cpuStartNanos = ourOperatingSystemBean.getProcessCpuTime();
+				myLiveMetrics.setPass(command.getPass(), command.getUsers());
+				LoadProfile.PassControl control = command.newPassControl(passStartNanos);
+				PassRecorder recorder = runUsers(executor, command.getUsers(), control, theMix);
+				recorder.recordPrewarm(prewarmed);
+				recordClientCpu(recorder, cpuStartNanos, sw.getMillis(), control.getMeasuredNanos(System.nanoTime()));
+				double clientCpuPercent = getClientCpuPercent(cpuStartNanos, sw.getMillis());
+				int platformThreads = ManagementFactory.getThreadMXBean().getThreadCount();
+
+				ourLog.info("Pass {} Finished {} {} across {} threads in {} - {} errors - Client CPU {}%", command.getPass(), recorder.getLatency().getTotalCount(), myCsvLogName, command.getUsers(), sw, myErrorCounter.get(), ourDecimalFormat.format(clientCpuPercent));
+				agent.sendResult(command.getPass(), new DistributedLoad.AgentResult(recorder, myErrorCounter.get(), clientCpuPercent, platformThreads));
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Runs one pass and returns what the users recorded once they have all finished
+	 */
+	protected PassRecorder runUsers(ExecutorService executor, int numThreads, LoadProfile.PassControl theControl, OperationMix theMix) throws InterruptedException, ExecutionException {
+		// Only touched by the sampler thread until sampling is cancelled
+		PassRecorder poolSamples = new PassRecorder();
+		ScheduledFuture<?> sampling = null;
+		if (!ourAsync) {
+			sampling = ourPoolSampler.scheduleAtFixedRate(() -> {
+				PoolStats stats = getConnectionPoolStats();
+				synchronized (poolSamples) {
+					poolSamples.recordPoolSample(stats.getLeased(), stats.getAvailable(), stats.getPending());
+				}
+			}, 0, POOL_SAMPLE_MILLIS, TimeUnit.MILLISECONDS);
+		}
+
+		List<Future<PassRecorder>> futures = new ArrayList<>();
 		for (int i = 0; i < numThreads; i++) {
-			futures.add(executor.submit(new Loader(numLoads, latencyTimer, responseCharCount, theFunctions)));
+			if (ourAsync) {
+				futures.add(new AsyncLoader(theControl, theMix, (ScheduledExecutorService) executor).start());
+			} else {
+				futures.add(executor.submit(new Loader(theControl, theMix)));
+			}
 		}
+		theControl.awaitEnd();
 
+		PassRecorder retVal = new PassRecorder();
 		for (var next : futures) {
-			next.get();
+			retVal.add(next.get());
 		}
+		if (sampling != null) {
+			sampling.cancel(false);
+			synchronized (poolSamples) {
+				retVal.add(poolSamples);
+			}
+		}
+		return retVal;
+	}
 
-		double min = latencyTimer.getSnapshot().getMin();
-		double mean = latencyTimer.getSnapshot().getMean();
-		double pct75 = latencyTimer.getSnapshot().get75thPercentile();
-		double pct98 = latencyTimer.getSnapshot().get98thPercentile();
-		double pct99 = latencyTimer.getSnapshot().get99thPercentile();
-		double max = latencyTimer.getSnapshot().getMax();
-		int totalSearches = numThreads * numLoads;
-		ourLog.info("Pass {} Finished {} {} across {} threads - Min {}ms - Mean {}ms - 75th pct {}ms - 98th pct {}ms - 99th pct {}ms - Average response {} - Max response {} - Overall throughput {} req/sec - {} errors", pass, totalSearches, myCsvLogName, numThreads, formatNanos(min), formatNanos(mean), formatNanos(pct75), formatNanos(pct98), formatNanos(pct99), FileUtil.formatFileSize((long) responseCharCount.getSnapshot().getMean()), FileUtil.formatFileSize(responseCharCount.getSnapshot().getMax()), sw.formatThroughput(totalSearches, TimeUnit.SECONDS), myErrorCounter.get());
-		myCsvLog.info(",NEXT,{},{},{},{},{},{},{},{},{},{},{},{},{}", pass, totalSearches, numThreads, formatNanos(min), formatNanos(mean), formatNanos(pct75), formatNanos(pct98), formatNanos(pct99), formatNanos(max), ourDecimalFormat.format((long) responseCharCount.getSnapshot().getMean() / 1024), ourDecimalFormat.format(responseCharCount.getSnapshot().getMax() / 1024), sw.formatThroughput(totalSearches, TimeUnit.SECONDS), myErrorCounter.get());
+	private static PassRecorder[] newRecorders(OperationMix theMix) {
+		PassRecorder[] retVal = new PassRecorder[theMix.size()];
+		for (int i = 0; i < retVal.length; i++) {
+			retVal[i] = new PassRecorder();
+		}
+		return retVal;
+	}
+
+	/**
+	 * Records the CPU time this process spent during the measured part of a pass. CPU
+	 * time can't be told apart by request, so it is taken to have been spent evenly over
+	 * the whole pass, warm-up included.
+	 */
+	private static void recordClientCpu(PassRecorder theRecorder, long theCpuStartNanos, long theElapsedMillis, long theMeasuredNanos) {
+		long cpuNanos = ourOperatingSystemBean.getProcessCpuTime() - theCpuStartNanos;
+		double measuredFraction = Math.min(1.0, theMeasuredNanos / (double) TimeUnit.MILLISECONDS.toNanos(Math.max(1, theElapsedMillis)));
+		theRecorder.recordClientCpu((long) (cpuNanos * measuredFraction));
+	}
 
-		executor.shutdown();
+	private static double getClientCpuPercent(long theCpuStartNanos, long theElapsedMillis) {
+		long cpuNanos = ourOperatingSystemBean.getProcessCpuTime() - theCpuStartNanos;
+		return 100.0 * cpuNanos / ((double) TimeUnit.MILLISECONDS.toNanos(Math.max(1, theElapsedMillis)) * Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param errors The measured errors so far in the test, which is what the CSV reports
+	 * @return What a capacity search needs to know about the pass
+	 */
+	private CapacitySearch.PassOutcome reportPass(int pass, int numThreads, LoadProfile.PassControl theControl, long theMeasuredNanos, long passStartMillis, PassRecorder recorder, long errors, double clientCpuPercent, int platformThreads) {
+		Histogram latency = recorder.getLatency();
+		Histogram corrected = recorder.getCorrectedLatency();
+		Histogram responseSize = recorder.getResponseSize();
+		Histogram wireResponseSize = recorder.getWireResponseSize();
+		Histogram bundleEntries = recorder.getBundleEntries();
+		Histogram bundleTotal = recorder.getBundleTotal();
+		Histogram conflicts = recorder.getConflictLatency().copy();
+		conflicts.add(recorder.getPreconditionFailedLatency());
+		writeHistogramLog(pass, passStartMillis, latency, corrected);
+
+		long totalSearches = latency.getTotalCount();
+		String throughput = ourDecimalFormat.format(totalSearches * 1e9 / theMeasuredNanos);
+		String measuredSeconds = ourDecimalFormat.format(theMeasuredNanos / 1e9);
+		String throughputCv = Double.isNaN(theControl.getThroughputCv()) ? "" : new DecimalFormat("0.000").format(theControl.getThroughputCv());
+		String conflictRate = ourDecimalFormat.format(conflicts.getTotalCount() * 100.0 / Math.max(1, totalSearches + conflicts.getTotalCount()));
+		String targetThroughput = theControl.getRatePerUser() > 0 ? ourDecimalFormat.format(theControl.getRatePerUser() * numThreads) : "";
+		ourLog.info("Pass {} Finished {} {} across {} threads - Min {}ms - Mean {}ms - 75th pct {}ms - 98th pct {}ms - 99th pct {}ms - Average response {} - Max response {} - Overall throughput {} req/sec - {} errors - Client CPU {}%", pass, totalSearches, myCsvLogName, numThreads, formatNanos(latency.getMinValue()), formatNanos(latency.getMean()), formatNanos(latency.getValueAtPercentile(75)), formatNanos(latency.getValueAtPercentile(98)), formatNanos(latency.getValueAtPercentile(99)), FileUtil.formatFileSize((long) responseSize.getMean()), FileUtil.formatFileSize(responseSize.getMaxValue()), throughput, errors, ourDecimalFormat.format(clientCpuPercent));
+		if (theControl.getRatePerUser() > 0) {
+			ourLog.info("Pass {} Target throughput {} req/sec - Corrected for coordinated omission: Mean {}ms - 75th pct {}ms - 98th pct {}ms - 99th pct {}ms - Max {}ms", pass, targetThroughput, formatNanos(corrected.getMean()), formatNanos(corrected.getValueAtPercentile(75)), formatNanos(corrected.getValueAtPercentile(98)), formatNanos(corrected.getValueAtPercentile(99)), formatNanos(corrected.getMaxValue()));
+		}
+		if (ourAgents == 0) {
+			ourLog.info("Pass {} Balancer {}", pass, describeNodeShareAndClear());
+		}
+		if (!throughputCv.isEmpty()) {
+			ourLog.info("Pass {} Measured for {}s - throughput CV {} - {}", pass, measuredSeconds, throughputCv, theControl.isSteady() ? "steady" : "not steady");
+		}
+		if (bundleEntries.getTotalCount() > 0) {
+			ourLog.info("Pass {} Bundles: {} responses - average {} entries - max {} entries - average total {}", pass, bundleEntries.getTotalCount(), ourDecimalFormat.format(bundleEntries.getMean()), bundleEntries.getMaxValue(), ourDecimalFormat.format(bundleTotal.getMean()));
+		}
+		if (conflicts.getTotalCount() > 0) {
+			ourLog.info("Pass {} Write conflicts: {} x 409 - {} x 412 - {}% of requests sent - Mean {}ms - 99th pct {}ms", pass, recorder.getConflictLatency().getTotalCount(), recorder.getPreconditionFailedLatency().getTotalCount(), conflictRate, formatNanos(conflicts.getMean()), formatNanos(conflicts.getValueAtPercentile(99)));
+		}
+		Histogram lease = recorder.getLeaseLatency();
+		Histogram connect = recorder.getConnectLatency();
+		Histogram write = recorder.getWriteLatency();
+		Histogram firstByte = recorder.getFirstByteLatency();
+		Histogram download = recorder.getDownloadLatency();
+		if (lease.getTotalCount() > 0) {
+			ourLog.info("Pass {} Phases (mean / 99th pct): lease wait {}ms / {}ms - {} new connections {}ms / {}ms - write {}ms / {}ms - first byte {}ms / {}ms - download {}ms / {}ms", pass, formatNanos(lease.getMean()), formatNanos(lease.getValueAtPercentile(99)), connect.getTotalCount(), formatNanos(connect.getMean()), formatNanos(connect.getValueAtPercentile(99)), formatNanos(write.getMean()), formatNanos(write.getValueAtPercentile(99)), formatNanos(firstByte.getMean()), formatNanos(firstByte.getValueAtPercentile(99)), formatNanos(download.getMean()), formatNanos(download.getValueAtPercentile(99)));
+		}
+		if (recorder.getPoolLeased().getTotalCount() > 0) {
+			ourLog.info("Pass {} Connection pool: leased max {} - available mean {} - pending mean {} max {}", pass, recorder.getPoolLeased().getMaxValue(), ourDecimalFormat.format(recorder.getPoolAvailable().getMean()), ourDecimalFormat.format(recorder.getPoolPending().getMean()), recorder.getPoolPending().getMaxValue());
+		}
+		// Every request leases a connection, and the ones that had to be opened are the ones that weren't reused
+		String connectionReuse = lease.getTotalCount() > 0 ? ourDecimalFormat.format(100.0 * (lease.getTotalCount() - connect.getTotalCount()) / lease.getTotalCount()) : "";
+		if (lease.getTotalCount() > 0) {
+			ourLog.info("Pass {} Connections: {} pre-warmed - {}% of requests reused a connection - {} not kept alive by the server", pass, recorder.getPrewarmedConnections(), connectionReuse, recorder.getConnectionsNotKeptAlive());
+		}
+		StringBuilder phaseColumns = new StringBuilder()
+			.append(formatNanos(lease.getMean())).append(',').append(formatNanos(lease.getValueAtPercentile(99)))
+			.append(',').append(connect.getTotalCount()).append(',').append(formatNanos(connect.getMean())).append(',').append(formatNanos(connect.getValueAtPercentile(99)))
+			.append(',').append(formatNanos(write.getMean())).append(',').append(formatNanos(write.getValueAtPercentile(99)))
+			.append(',').append(formatNanos(firstByte.getMean())).append(',').append(formatNanos(firstByte.getValueAtPercentile(99)))
+			.append(',').append(formatNanos(download.getMean())).append(',').append(formatNanos(download.getValueAtPercentile(99)))
+			.append(',').append(recorder.getPoolLeased().getMaxValue())
+			.append(',').append(ourDecimalFormat.format(recorder.getPoolAvailable().getMean()))
+			.append(',').append(ourDecimalFormat.format(recorder.getPoolPending().getMean()))
+			.append(',').append(recorder.getPoolPending().getMaxValue())
+			.append(',').append(recorder.getPrewarmedConnections())
+			.append(',').append(connectionReuse)
+			.append(',').append(recorder.getConnectionsNotKeptAlive());
+		String cpuPerRequest = totalSearches > 0 ? ourDecimalFormat.format(recorder.getClientCpuNanos() / 1000.0 / totalSearches) : "";
+		ourLog.info("Pass {} Wire format: {} - Average wire response {} - Client CPU {}us per request", pass, getWireFormat(), FileUtil.formatFileSize((long) wireResponseSize.getMean()), cpuPerRequest);
+
+		StringBuilder operationColumns = new StringBuilder();
+		for (int i = 0; i < recorder.getOperationCount(); i++) {
+			PassRecorder operation = recorder.getOperation(i);
+			Histogram operationLatency = operation.getLatency();
+			String operationName = myOperationMix != null && i < myOperationMix.size() ? myOperationMix.getName(i) : "operation " + i;
+			String operationThroughput = ourDecimalFormat.format(operationLatency.getTotalCount() * 1e9 / theMeasuredNanos);
+			ourLog.info("Pass {} {}: {} requests - Mean {}ms - 99th pct {}ms - Max {}ms - Corrected 99th pct {}ms - {} req/sec - Average response {} - {} errors", pass, operationName, operationLatency.getTotalCount(), formatNanos(operationLatency.getMean()), formatNanos(operationLatency.getValueAtPercentile(99)), formatNanos(operationLatency.getMaxValue()), formatNanos(operation.getCorrectedLatency().getValueAtPercentile(99)), operationThroughput, FileUtil.formatFileSize((long) operation.getResponseSize().getMean()), operation.getErrors());
+			operationColumns.append(',').append(operationLatency.getTotalCount())
+				.append(',').append(formatNanos(operationLatency.getMean()))
+				.append(',').append(formatNanos(operationLatency.getValueAtPercentile(99)))
+				.append(',').append(formatNanos(operationLatency.getMaxValue()))
+				.append(',').append(formatNanos(operation.getCorrectedLatency().getValueAtPercentile(99)))
+				.append(',').append(operationThroughput)
+				.append(',').append(ourDecimalFormat.format(operation.getResponseSize().getMean() / 1024))
+				.append(',').append(operation.getErrors());
+		}
+		myCsvLog.info(",NEXT,{},{},{},{},{},{},{},{},{},{},{},{},{},{},{},{},{},{},{},{},{},{},{},{},{},{},{},{},{},{},{},{},{},{},{},{},{}{}", pass, totalSearches, numThreads, formatNanos(latency.getMinValue()), formatNanos(latency.getMean()), formatNanos(latency.getValueAtPercentile(75)), formatNanos(latency.getValueAtPercentile(98)), formatNanos(latency.getValueAtPercentile(99)), formatNanos(latency.getMaxValue()), ourDecimalFormat.format(responseSize.getMean() / 1024), ourDecimalFormat.format(responseSize.getMaxValue() / 1024.0), throughput, errors, targetThroughput, formatNanos(corrected.getMean()), formatNanos(corrected.getValueAtPercentile(75)), formatNanos(corrected.getValueAtPercentile(98)), formatNanos(corrected.getValueAtPercentile(99)), formatNanos(corrected.getMaxValue()), ourDecimalFormat.format(clientCpuPercent), platformThreads, ourDecimalFormat.format(wireResponseSize.getMean() / 1024), ourDecimalFormat.format(wireResponseSize.getMaxValue() / 1024.0), ourDecimalFormat.format(bundleEntries.getMean()), ourDecimalFormat.format(bundleTotal.getMean()), measuredSeconds, throughputCv, throughputCv.isEmpty() ? "" : theControl.isSteady(), recorder.getConflictLatency().getTotalCount(), recorder.getPreconditionFailedLatency().getTotalCount(), conflictRate, formatNanos(conflicts.getMean()), formatNanos(conflicts.getValueAtPercentile(99)), phaseColumns, getWireFormat().getEncodingName(), getWireFormat().getFormatName(), cpuPerRequest, operationColumns);
+
+		// Failed requests are already among the requests recorded, and are left out of
+		// the latency so that quick failures don't make a failing level look fast
+		double sloPercentile = myLoadProfile.getCapacitySearch() != null ? myLoadProfile.getCapacitySearch().getSloPercentile() : 99;
+		return new CapacitySearch.PassOutcome(totalSearches * 1e9 / theMeasuredNanos, recorder.getSuccessfulCorrectedLatency(), sloPercentile, (double) recorder.getErrors() / Math.max(1, totalSearches));
+	}
+
+	/**
+	 * Appends the full latency distribution for a pass to the histogram log so that
+	 * runs can be compared offline at any percentile, e.g. using HistogramLogProcessor
+	 * with <code>-tag pass12-corrected -outputValueUnitRatio 1000000</code>
+	 */
+	private void writeHistogramLog(int thePass, long thePassStartMillis, Histogram theLatency, Histogram theCorrected) {
+		long passEndMillis = System.currentTimeMillis();
+		theLatency.setStartTimeStamp(thePassStartMillis);
+		theLatency.setEndTimeStamp(passEndMillis);
+		theLatency.setTag("pass" + thePass + "-uncorrected");
+		theCorrected.setStartTimeStamp(thePassStartMillis);
+		theCorrected.setEndTimeStamp(passEndMillis);
+		theCorrected.setTag("pass" + thePass + "-corrected");
+		synchronized (myHistogramLogWriter) {
+			myHistogramLogWriter.outputIntervalHistogram(theLatency);
+			myHistogramLogWriter.outputIntervalHistogram(theCorrected);
+			myHistogramLogStream.flush();
+		}
 	}
 
 	public CloseableHttpClient getHttpClient() {
 		return myHttpClient;
 	}
 
-	public void replacePatient(String thePatientId, String thePatient) {
-		myPatients.put(thePatientId, thePatient);
+	/**
+	 * Remembers the patient as it was successfully written
+	 *
+	 * @param theVersion The version the server gave the write, or <code>null</code> if it didn't say
+	 */
+	public void replacePatient(String thePatientId, String thePatient, String theVersion) {
+		myPatients.put(thePatientId, new CachedPatient(thePatient, theVersion));
+	}
+
+	/**
+	 * Drops the remembered patient, e.g. because a write conflict showed it is out of date,
+	 * so that it is read from the server the next time it is asked for
+	 */
+	public void forgetPatient(String thePatientId) {
+		myPatients.remove(thePatientId);
+	}
+
+	/**
+	 * @return The maximum number of times an update is retried after a write conflict
+	 */
+	public static int getConflictRetries() {
+		return ourConflictRetries;
+	}
+
+	/**
+	 * Finds the version ID of a resource in a response, from the <code>ETag</code>
+	 * (<code>W/"3"</code>) if there is one, or else from a <code>_history</code> URL
+	 *
+	 * @return The version, or <code>null</code> if the response didn't say
+	 */
+	public static String parseVersion(String theETag, String theLocation) {
+		if (theETag != null) {
+			Matcher matcher = ETAG_VERSION.matcher(theETag);
+			if (matcher.matches()) {
+				return matcher.group(1);
+			}
+		}
+		if (theLocation != null) {
+			int index = theLocation.lastIndexOf("/_history/");
+			if (index != -1) {
+				return theLocation.substring(index + "/_history/".length());
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return The value for an <code>If-Match</code> header asking for the given version
+	 */
+	public static String toIfMatch(String theVersion) {
+		return "W/\"" + theVersion + "\"";
+	}
+
+	/**
+	 * @return The value of the first header with the given name, or <code>null</code> if there isn't one
+	 */
+	protected static String getHeader(CloseableHttpResponse theResponse, String theName) {
+		Header header = theResponse.getFirstHeader(theName);
+		return header != null ? header.getValue() : null;
+	}
+
+	/**
+	 * A patient body along with the version it was read or written as
+	 */
+	public static class CachedPatient {
+
+		private final String myBody;
+		private final String myVersion;
+
+		public CachedPatient(String theBody, String theVersion) {
+			myBody = theBody;
+			myVersion = theVersion;
+		}
+
+		public String getBody() {
+			return myBody;
+		}
+
+		/**
+		 * @return The version ID, or <code>null</code> if the server didn't say
+		 */
+		public String getVersion() {
+			return myVersion;
+		}
+	}
+
+	/**
+	 * A patient picked by {@link #leasePatient()}. Closing the lease lets other users
+	 * update the patient again.
+	 */
+	public class PatientLease implements AutoCloseable {
+
+		private final String myPatientId;
+		private final boolean myExclusive;
+		private boolean myClosed;
+
+		private PatientLease(String thePatientId, boolean theExclusive) {
+			myPatientId = thePatientId;
+			myExclusive = theExclusive;
+		}
+
+		public String getPatientId() {
+			return myPatientId;
+		}
+
+		@Override
+		public void close() {
+			if (!myClosed) {
+				myClosed = true;
+				if (myExclusive) {
+					myLeasedPatients.remove(myPatientId);
+				}
+			}
+		}
 	}
 
 	protected interface IFunction {
 
-		void run(Histogram theResponseCharCounter, BaseScaleupTest theTest) throws Exception;
+		void run(PassRecorder theRecorder, BaseScaleupTest theTest) throws Exception;
+
+		/**
+		 * Non-blocking equivalent of {@link #run(PassRecorder, BaseScaleupTest)}, used when
+		 * running with <code>bulkload.async</code>. The returned stage completes once the
+		 * response has been consumed, and completes exceptionally with an
+		 * {@link InternalErrorException} if the server returned an error.
+		 */
+		CompletionStage<Void> runAsync(PassRecorder theRecorder, BaseScaleupTest theTest);
 
 	}
 
@@ -175,35 +838,231 @@ public class BaseScaleupTest extends BaseTest {
 	}
 
 
-	private class Loader implements Callable<Long> {
+	/**
+	 * Intended send times for one user in open-loop mode. If a response comes back
+	 * late the next request is sent immediately, but its latency is still measured
+	 * from the time it should have been sent.
+	 */
+	private static class ArrivalSchedule {
 
-		private final int myNumLoads;
-		private final Timer myTimer;
-		private final Histogram myResponseCharCounter;
-		private final IFunction[] myFunctions;
+		private final double myMeanIntervalNanos;
+		private long myNext;
+		private boolean myFirst = true;
 
-		public Loader(int theNumLoads, Timer theTimer, Histogram theResponseCharCounter, IFunction[] theFunctions) {
-			myNumLoads = theNumLoads;
-			myTimer = theTimer;
-			myResponseCharCounter = theResponseCharCounter;
-			myFunctions = theFunctions;
+		public ArrivalSchedule(long thePassStartNanos, double theRatePerUser) {
+			myMeanIntervalNanos = 1_000_000_000.0 / theRatePerUser;
+			myNext = thePassStartNanos;
+			if (ourUniformArrivals) {
+				// Stagger the users so that they don't all fire in lockstep
+				myNext += (long) (ThreadLocalRandom.current().nextDouble() * myMeanIntervalNanos);
+			}
+		}
+
+		public long next() {
+			if (!myFirst || !ourUniformArrivals) {
+				myNext += nextInterval();
+			}
+			myFirst = false;
+			return myNext;
+		}
+
+		private long nextInterval() {
+			if (ourUniformArrivals) {
+				return (long) myMeanIntervalNanos;
+			}
+			return (long) (-Math.log(1.0 - ThreadLocalRandom.current().nextDouble()) * myMeanIntervalNanos);
+		}
+
+		/**
+		 * @return A schedule for a new user, or <code>null</code> when running closed-loop
+		 */
+		public static ArrivalSchedule forUser(LoadProfile.PassControl theControl) {
+			return theControl.getRatePerUser() > 0 ? new ArrivalSchedule(theControl.getStartNanos(), theControl.getRatePerUser()) : null;
+		}
+	}
+
+	private class Loader implements Callable<PassRecorder> {
+
+		private final LoadProfile.PassControl myControl;
+		private final OperationMix myMix;
+		/**
+		 * One per operation of the mix
+		 */
+		private final PassRecorder[] myRecorders;
+		/**
+		 * Receives response sizes during the warm-up, and is then thrown away
+		 */
+		private final PassRecorder myWarmupRecorder = new PassRecorder();
+		private final ArrivalSchedule mySchedule;
+
+		public Loader(LoadProfile.PassControl theControl, OperationMix theMix) {
+			myControl = theControl;
+			myMix = theMix;
+			myRecorders = newRecorders(theMix);
+			mySchedule = ArrivalSchedule.forUser(theControl);
 		}
 
 		@Override
-		public Long call() throws Exception {
-			for (int i = 0; i < myNumLoads; i++) {
-				StopWatch sw = new StopWatch();
+		public PassRecorder call() throws Exception {
+			int recorded = 0;
+			while (myControl.hasNext(recorded)) {
+				long intendedStart = 0;
+				if (mySchedule != null) {
+					intendedStart = mySchedule.next();
+					long wait = intendedStart - System.nanoTime();
+					while (wait > 0) {
+						LockSupport.parkNanos(wait);
+						wait = intendedStart - System.nanoTime();
+					}
+					// The pass may have ended while waiting for the arrival
+					if (!myControl.hasNext(recorded)) {
+						break;
+					}
+				}
+
+				long actualStart = System.nanoTime();
+				if (mySchedule == null) {
+					intendedStart = actualStart;
+				}
+				boolean measuring = myControl.isMeasuring(actualStart);
+				int operation = myMix.next();
+				PassRecorder recorder = measuring ? myRecorders[operation] : myWarmupRecorder;
+
+				myLiveMetrics.requestStarted();
+				boolean success = true;
 				try {
-					IFunction function = myFunctions[(int) (myFunctionCounter.incrementAndGet() % myFunctions.length)];
-					function.run(myResponseCharCounter, BaseScaleupTest.this);
+					myMix.getFunction(operation).run(recorder, BaseScaleupTest.this);
 				} catch (InternalErrorException e) {
-					myErrorCounter.incrementAndGet();
+					success = false;
+				}
+				long end = System.nanoTime();
+				myLiveMetrics.requestFinished(end - actualStart, success);
+
+				// Errors in the warm-up are thrown away along with its latencies
+				if (measuring) {
+					if (!success) {
+						myErrorCounter.incrementAndGet();
+					}
+					recorder.recordLatency(end - actualStart, end - intendedStart, success);
+					myControl.recordCompletion();
+					recorded++;
 				}
-				long millis = sw.getMillis();
-				myTimer.update(millis, TimeUnit.MILLISECONDS);
 			}
 
-			return null;
+			return PassRecorder.ofOperations(myRecorders);
+		}
+	}
+
+	/**
+	 * Asynchronous equivalent of {@link Loader}. Each user is a chain of requests where
+	 * the next request is issued from the completion of the previous one, so no thread
+	 * is held while a request is in flight. The recorder is only ever touched by one
+	 * link of the chain at a time.
+	 */
+	private class AsyncLoader {
+
+		private final LoadProfile.PassControl myControl;
+		private final OperationMix myMix;
+		private final PassRecorder[] myRecorders;
+		private final PassRecorder myWarmupRecorder = new PassRecorder();
+		private final ArrivalSchedule mySchedule;
+		private final ScheduledExecutorService myScheduler;
+		private final CompletableFuture<PassRecorder> myResult = new CompletableFuture<>();
+		private int myRecorded;
+
+		public AsyncLoader(LoadProfile.PassControl theControl, OperationMix theMix, ScheduledExecutorService theScheduler) {
+			myControl = theControl;
+			myMix = theMix;
+			myRecorders = newRecorders(theMix);
+			myScheduler = theScheduler;
+			mySchedule = ArrivalSchedule.forUser(theControl);
+		}
+
+		public CompletableFuture<PassRecorder> start() {
+			sendNext();
+			return myResult;
+		}
+
+		private void sendNext() {
+			if (!myControl.hasNext(myRecorded)) {
+				myResult.complete(PassRecorder.ofOperations(myRecorders));
+				return;
+			}
+
+			if (mySchedule != null) {
+				long intendedStart = mySchedule.next();
+				long wait = intendedStart - System.nanoTime();
+				if (wait > 0) {
+					myScheduler.schedule(() -> {
+						try {
+							// The pass may have ended while waiting for the arrival
+							if (myControl.hasNext(myRecorded)) {
+								send(intendedStart);
+							} else {
+								myResult.complete(PassRecorder.ofOperations(myRecorders));
+							}
+						} catch (Throwable t) {
+							myResult.completeExceptionally(t);
+						}
+					}, wait, TimeUnit.NANOSECONDS);
+				} else {
+					send(intendedStart);
+				}
+			} else {
+				send(0);
+			}
+		}
+
+		private void send(long theIntendedStart) {
+			long actualStart = System.nanoTime();
+			long intendedStart = mySchedule != null ? theIntendedStart : actualStart;
+			boolean measuring = myControl.isMeasuring(actualStart);
+			int operation = myMix.next();
+			PassRecorder recorder = measuring ? myRecorders[operation] : myWarmupRecorder;
+
+			myLiveMetrics.requestStarted();
+			CompletableFuture<Void> stage;
+			try {
+				stage = myMix.getFunction(operation).runAsync(recorder, BaseScaleupTest.this).toCompletableFuture();
+			} catch (Exception e) {
+				stage = CompletableFuture.failedFuture(e);
+			}
+
+			if (stage.isDone()) {
+				// Completing here would send the next request from inside this one, which
+				// recurses until the stack overflows if requests keep failing straight away
+				long end = System.nanoTime();
+				stage.whenCompleteAsync((theResult, theFailure) -> complete(actualStart, intendedStart, end, measuring, recorder, theFailure), myScheduler);
+			} else {
+				stage.whenComplete((theResult, theFailure) -> complete(actualStart, intendedStart, System.nanoTime(), measuring, recorder, theFailure));
+			}
+		}
+
+		private void complete(long theActualStart, long theIntendedStart, long theEnd, boolean theMeasuring, PassRecorder theRecorder, Throwable theFailure) {
+			try {
+				myLiveMetrics.requestFinished(theEnd - theActualStart, theFailure == null);
+				if (theFailure != null) {
+					Throwable cause = theFailure instanceof CompletionException ? theFailure.getCause() : theFailure;
+					if (!(cause instanceof InternalErrorException)) {
+						myResult.completeExceptionally(cause);
+						return;
+					}
+				}
+
+				// Errors in the warm-up are thrown away along with its latencies
+				if (theMeasuring) {
+					if (theFailure != null) {
+						myErrorCounter.incrementAndGet();
+					}
+					theRecorder.recordLatency(theEnd - theActualStart, theEnd - theIntendedStart, theFailure == null);
+					myControl.recordCompletion();
+					myRecorded++;
+				}
+				sendNext();
+			} catch (Throwable t) {
+				// Nothing observes the stage this runs in, so the pass would wait for this user forever
+				myResult.completeExceptionally(t);
+			}
 		}
 	}
 }
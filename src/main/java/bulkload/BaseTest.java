@@ -5,38 +5,106 @@ import ca.uhn.fhir.parser.LenientErrorHandler;
 import ca.uhn.fhir.rest.api.Constants;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
 import ca.uhn.fhir.rest.client.interceptor.BasicAuthInterceptor;
-import com.codahale.metrics.Histogram;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
 import org.apache.commons.codec.binary.Base64;
-import org.apache.commons.io.IOUtils;
 import org.apache.http.ConnectionReuseStrategy;
+import org.apache.http.Header;
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
 import org.apache.http.HttpRequestInterceptor;
 import org.apache.http.client.UserTokenHandler;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.client.utils.URIUtils;
+import org.apache.http.conn.UnsupportedSchemeException;
+import org.apache.http.conn.routing.HttpRoute;
 import org.apache.http.impl.DefaultConnectionReuseStrategy;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.DefaultClientConnectionReuseStrategy;
 import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.DefaultSchemePortResolver;
 import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
 import org.apache.http.protocol.HttpContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.charset.StandardCharsets;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
 
 public class BaseTest {
+	private static final Logger ourLog = LoggerFactory.getLogger(BaseTest.class);
 	protected final FhirContext myCtx;
 	protected final IGenericClient myFhirClient;
 	protected final CloseableHttpClient myHttpClient;
 	protected final List<String> myBaseUrls;
-	protected AtomicLong myBaseUrlCounter = new AtomicLong(0);
+	private final String myAuthorizationHeader;
+	private HttpClient myAsyncHttpClient;
+	private final AtomicInteger myAsyncThreadCounter = new AtomicInteger(0);
+	protected final LoadBalancer myLoadBalancer;
+	protected final LiveMetrics myLiveMetrics;
+	private final PoolingHttpClientConnectionManager myConnectionManager;
+	/**
+	 * The route of each node, which the connection manager keeps a separate pool for
+	 */
+	private final List<HttpRoute> myRoutes;
+	private final ScheduledExecutorService myConnectionEvictor;
+	private volatile WireFormat myWireFormat = WireFormat.SERVER_DEFAULT;
 	protected AtomicLong myErrorCounter = new AtomicLong(0);
 
+	/**
+	 * Maximum number of pooled HTTP connections to each node. This needs to be at least as
+	 * high as the number of concurrent users or requests will queue up waiting for a connection
+	 */
+	private static final int ourMaxConnections = Integer.getInteger("bulkload.maxConnections", 1000);
+	/**
+	 * Open the connections each pass will need before it starts
+	 */
+	private static final boolean ourPrewarmConnections = Boolean.parseBoolean(System.getProperty("bulkload.prewarmConnections", "true"));
+	/**
+	 * Pooled connections that have been idle for longer than this are closed, so that
+	 * they aren't reused after the server has given up on them
+	 */
+	private static final long ourMaxIdleMillis = Long.getLong("bulkload.maxIdleMillis", 20000L);
+	/**
+	 * How often pooled connections are checked for having been idle too long or expired
+	 */
+	private static final long ourIdleCheckMillis = Long.getLong("bulkload.idleCheckMillis", 5000L);
+	private static final int CONNECT_TIMEOUT_MILLIS = 60 * 1000;
+	/**
+	 * Number of threads used by the non-blocking client to complete responses
+	 */
+	private static final int ourAsyncThreads = Integer.getInteger("bulkload.asyncThreads", 4);
+	/**
+	 * Use HTTP/2 (h2c upgrade over plain HTTP) for the non-blocking client, falling back
+	 * to HTTP/1.1 keep-alive if the server doesn't support it
+	 */
+	private static final boolean ourHttp2 = Boolean.getBoolean("bulkload.http2");
+
 	public BaseTest(List<String> theBaseUrls, String theCredentials) {
 		myBaseUrls = theBaseUrls;
+		myLoadBalancer = LoadBalancer.fromSystemProperties(theBaseUrls.size());
+		myLiveMetrics = LiveMetrics.fromSystemProperties(theBaseUrls);
 		myCtx = FhirContext.forR4Cached();
 		myCtx.setParserErrorHandler(new LenientErrorHandler());
 		myCtx.getRestfulClientFactory().setSocketTimeout(100000);
@@ -44,21 +112,46 @@ public class BaseTest {
 		myFhirClient.registerInterceptor(new BasicAuthInterceptor(theCredentials));
 
 		String encodedCredentials = Base64.encodeBase64String(theCredentials.getBytes(Constants.CHARSET_US_ASCII));
+		myAuthorizationHeader = "Basic " + encodedCredentials;
 
 		RequestConfig requestConfig = RequestConfig.custom()
-			.setConnectTimeout(60 * 1000)
+			.setConnectTimeout(CONNECT_TIMEOUT_MILLIS)
 			.setConnectionRequestTimeout(60 * 1000)
 			.setSocketTimeout(60 * 1000)
 			.setContentCompressionEnabled(false)
-			.setStaleConnectionCheckEnabled(true)
 			.build();
 
+		// Configured explicitly, rather than left to the builder, so that its leases and
+		// connects can be timed and its stats sampled. Each node is a separate route with
+		// its own pool, and the total leaves room for all of them to be full, so a slow
+		// node can't take connections away from the others.
+		myConnectionManager = new RequestPhases.ConnectionManager();
+		myConnectionManager.setDefaultMaxPerRoute(ourMaxConnections);
+		myConnectionManager.setMaxTotal(ourMaxConnections * theBaseUrls.size());
+		myRoutes = theBaseUrls.stream().map(BaseTest::routeFor).toList();
+
+		// Idle connections are checked on a timer instead of probing every connection as
+		// it is leased. The check on lease is kept only for connections idle long enough
+		// that the timer should have closed them.
+		myConnectionManager.setValidateAfterInactivity((int) ourMaxIdleMillis);
+		myConnectionEvictor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread retVal = new Thread(r, "connection-evictor");
+			retVal.setDaemon(true);
+			return retVal;
+		});
+		myConnectionEvictor.scheduleWithFixedDelay(() -> {
+			myConnectionManager.closeExpiredConnections();
+			myConnectionManager.closeIdleConnections(ourMaxIdleMillis, TimeUnit.MILLISECONDS);
+		}, ourIdleCheckMillis, ourIdleCheckMillis, TimeUnit.MILLISECONDS);
+
 		ConnectionReuseStrategy reuseStrategy= DefaultClientConnectionReuseStrategy.INSTANCE;
 		myHttpClient = HttpClientBuilder
 			.create()
 			.addInterceptorFirst((HttpRequestInterceptor) (request, context) -> request.addHeader("Authorization", "Basic " + encodedCredentials))
-			.setMaxConnPerRoute(1000)
-			.setMaxConnTotal(1000)
+			// Ahead of the standard interceptors, so that they see the encoded body
+			.addInterceptorFirst((HttpRequestInterceptor) (request, context) -> myWireFormat.apply(request))
+			.setConnectionManager(myConnectionManager)
+			.setRequestExecutor(new RequestPhases.RequestExecutor())
 			.setConnectionReuseStrategy(new DefaultConnectionReuseStrategy())
 			.setConnectionReuseStrategy(reuseStrategy)
 			.setDefaultRequestConfig(requestConfig)
@@ -74,14 +167,280 @@ public class BaseTest {
 	}
 
 
-	protected String getNextBaseUrl() {
-		return myBaseUrls.get((int) (myBaseUrlCounter.incrementAndGet() % myBaseUrls.size()));
+	/**
+	 * Returns the non-blocking client, which multiplexes all in-flight requests over a
+	 * small number of connections and completes them on a handful of threads
+	 */
+	public synchronized HttpClient getAsyncHttpClient() {
+		if (myAsyncHttpClient == null) {
+			myAsyncHttpClient = HttpClient
+				.newBuilder()
+				.version(ourHttp2 ? HttpClient.Version.HTTP_2 : HttpClient.Version.HTTP_1_1)
+				.connectTimeout(Duration.ofSeconds(60))
+				.executor(Executors.newFixedThreadPool(ourAsyncThreads, r -> {
+					// Daemon, since nothing shuts the client down once the test is over
+					Thread retVal = new Thread(r, "async-client-" + myAsyncThreadCounter.incrementAndGet());
+					retVal.setDaemon(true);
+					return retVal;
+				}))
+				.build();
+		}
+		return myAsyncHttpClient;
+	}
+
+	/**
+	 * Creates a request for the non-blocking client with the same credentials,
+	 * timeouts and {@link WireFormat} as the blocking one. A body should be created with
+	 * {@link #newAsyncBody(HttpRequest.Builder, String)} so that it is encoded the same way.
+	 */
+	public HttpRequest.Builder newAsyncRequest(String theUrl) {
+		HttpRequest.Builder retVal = HttpRequest
+			.newBuilder(URI.create(theUrl))
+			.timeout(Duration.ofSeconds(60))
+			.header("Authorization", myAuthorizationHeader);
+		myWireFormat.apply(retVal);
+		return retVal;
+	}
+
+	/**
+	 * Creates the body of a request for the non-blocking client, encoded with the current {@link WireFormat}
+	 */
+	public HttpRequest.BodyPublisher newAsyncBody(HttpRequest.Builder theRequest, String theBody) {
+		return myWireFormat.encodeBody(theRequest, theBody);
+	}
+
+	/**
+	 * Sends a request to a leased node on the non-blocking client and records the
+	 * response size, failing with an {@link InternalErrorException} if the response
+	 * isn't a 2xx
+	 *
+	 * @param theRequest Builds the request for the node
+	 */
+	public CompletionStage<Void> executeAsync(Function<NodeLease, HttpRequest> theRequest, PassRecorder theRecorder) {
+		return withNodeAsync(node -> sendAsync(theRequest.apply(node))
+			.thenAccept(response -> {
+				if (response.statusCode() < 200 || response.statusCode() > 299) {
+					ourLog.error("ERROR: Got HTTP status {}", response.statusCode());
+					throw new InternalErrorException("Bad HTTP status");
+				}
+				response.body().recordTo(theRecorder);
+				node.success();
+			}));
+	}
+
+	/**
+	 * Leases a node for a request on the non-blocking client. The lease is closed once
+	 * the stage returned by <code>theRequest</code> completes, or straight away if
+	 * <code>theRequest</code> throws, in which case the returned stage fails with what
+	 * it threw.
+	 *
+	 * @param theRequest Sends the request to the node, calling {@link NodeLease#success()} if it succeeds
+	 */
+	public <T> CompletionStage<T> withNodeAsync(Function<NodeLease, CompletionStage<T>> theRequest) {
+		NodeLease node = leaseNode();
+		CompletionStage<T> retVal;
+		try {
+			retVal = theRequest.apply(node);
+		} catch (RuntimeException e) {
+			retVal = CompletableFuture.failedFuture(e);
+		}
+		return retVal.whenComplete((result, throwable) -> node.close());
+	}
+
+	/**
+	 * Sends a request on the non-blocking client, measuring the response body as it
+	 * arrives. Unlike {@link #executeAsync(Function, PassRecorder)} the status is left
+	 * for the caller to check.
+	 */
+	public CompletableFuture<HttpResponse<ResponseDrain>> sendAsync(HttpRequest theRequest) {
+		return getAsyncHttpClient().sendAsync(theRequest, drainingBodyHandler());
+	}
+
+	/**
+	 * Discards the response body as it arrives, measuring it with a {@link ResponseDrain}
+	 */
+	private static HttpResponse.BodyHandler<ResponseDrain> drainingBodyHandler() {
+		return responseInfo -> {
+			ResponseDrain drain = new ResponseDrain();
+			drain.begin(responseInfo.headers().firstValue("Content-Encoding").orElse(null), responseInfo.headers().firstValue("Content-Type").orElse(null));
+			return HttpResponse.BodySubscribers.fromSubscriber(new DrainingSubscriber(drain), subscriber -> drain);
+		};
+	}
+
+	private static class DrainingSubscriber implements Flow.Subscriber<List<ByteBuffer>> {
+
+		private final ResponseDrain myDrain;
+
+		private DrainingSubscriber(ResponseDrain theDrain) {
+			myDrain = theDrain;
+		}
+
+		@Override
+		public void onSubscribe(Flow.Subscription theSubscription) {
+			theSubscription.request(Long.MAX_VALUE);
+		}
+
+		@Override
+		public void onNext(List<ByteBuffer> theItem) {
+			for (ByteBuffer next : theItem) {
+				myDrain.update(next);
+			}
+		}
+
+		@Override
+		public void onError(Throwable theThrowable) {
+			// The failure is reported through the response future
+		}
+
+		@Override
+		public void onComplete() {
+			// nothing
+		}
+	}
+
+	/**
+	 * Chooses the node the next request is sent to. The lease must be closed once the
+	 * response has been consumed, after calling {@link NodeLease#success()} if the
+	 * request succeeded.
+	 */
+	public NodeLease leaseNode() {
+		return new NodeLease(myLoadBalancer.acquire());
+	}
+
+	/**
+	 * Opens connections to every node ahead of a pass, so that its first requests don't
+	 * pay for connecting and the pass measures the same thing whatever came before it.
+	 * Each node gets enough open connections for an even share of the users, counting
+	 * the ones already in its pool.
+	 *
+	 * @return The number of connections opened
+	 */
+	public int prewarmConnections(int theUsers) throws IOException, InterruptedException {
+		if (!ourPrewarmConnections) {
+			return 0;
+		}
+		int perNode = (theUsers + myRoutes.size() - 1) / myRoutes.size();
+		int retVal = 0;
+		for (HttpRoute next : myRoutes) {
+			int want = Math.min(perNode, myConnectionManager.getMaxPerRoute(next));
+			List<HttpClientConnection> leased = new ArrayList<>();
+			try {
+				// Lease them all at once so that each lease gets a different connection
+				while (leased.size() < want) {
+					HttpClientConnection connection;
+					try {
+						connection = myConnectionManager.requestConnection(next, null).get(CONNECT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+					} catch (ExecutionException e) {
+						throw new IOException("Failed to lease a connection to " + next.getTargetHost(), e.getCause());
+					}
+					leased.add(connection);
+					if (!connection.isOpen()) {
+						HttpClientContext context = HttpClientContext.create();
+						myConnectionManager.connect(connection, next, CONNECT_TIMEOUT_MILLIS, context);
+						myConnectionManager.routeComplete(connection, next, context);
+						retVal++;
+					}
+				}
+			} finally {
+				for (HttpClientConnection connection : leased) {
+					myConnectionManager.releaseConnection(connection, null, 0, TimeUnit.MILLISECONDS);
+				}
+			}
+		}
+		return retVal;
+	}
+
+	/**
+	 * @return The route the client takes to a node, which identifies its pool
+	 */
+	private static HttpRoute routeFor(String theBaseUrl) {
+		HttpHost host = URIUtils.extractHost(URI.create(theBaseUrl));
+		try {
+			HttpHost target = new HttpHost(host.getHostName(), DefaultSchemePortResolver.INSTANCE.resolve(host), host.getSchemeName());
+			return new HttpRoute(target, null, "https".equalsIgnoreCase(target.getSchemeName()));
+		} catch (UnsupportedSchemeException e) {
+			throw new InternalErrorException("Unsupported scheme in " + theBaseUrl, e);
+		}
+	}
+
+	/**
+	 * @return The current state of the blocking client's connection pool
+	 */
+	public PoolStats getConnectionPoolStats() {
+		return myConnectionManager.getTotalStats();
+	}
+
+	/**
+	 * Sets how the requests of both clients are encoded from now on
+	 */
+	public void setWireFormat(WireFormat theWireFormat) {
+		myWireFormat = theWireFormat;
+	}
+
+	public WireFormat getWireFormat() {
+		return myWireFormat;
+	}
+
+	public LiveMetrics getLiveMetrics() {
+		return myLiveMetrics;
+	}
+
+	/**
+	 * Describes the share of requests each node received since the last time this was called
+	 */
+	public String describeNodeShareAndClear() {
+		return myLoadBalancer.describeShareAndClear(myBaseUrls);
+	}
+
+	public class NodeLease implements AutoCloseable {
+
+		private final int myNode;
+		private final long myStartNanos = System.nanoTime();
+		private boolean mySuccess;
+		private boolean myClosed;
+
+		private NodeLease(int theNode) {
+			myNode = theNode;
+		}
+
+		public String getBaseUrl() {
+			return myBaseUrls.get(myNode);
+		}
+
+		public void success() {
+			mySuccess = true;
+		}
+
+		@Override
+		public void close() {
+			if (!myClosed) {
+				myClosed = true;
+				long latencyNanos = System.nanoTime() - myStartNanos;
+				myLoadBalancer.release(myNode, latencyNanos, mySuccess);
+				myLiveMetrics.nodeFinished(myNode, latencyNanos, mySuccess);
+			}
+		}
 	}
 
-	public static void consumeAndCountResponse(Histogram theResponseCharCounter, CloseableHttpResponse response) throws IOException {
-		InputStream content = response.getEntity().getContent();
-		int chars = IOUtils.toString(content, StandardCharsets.UTF_8).length();
-		response.getEntity().consumeContent();
-		theResponseCharCounter.update(chars);
+	/**
+	 * Reads the rest of the response and records its size, along with the entry count
+	 * and total if it's a Bundle. The body is discarded without being decoded into a
+	 * String, using a buffer that belongs to the calling thread.
+	 */
+	public static void consumeAndCountResponse(PassRecorder theRecorder, CloseableHttpResponse response) throws IOException {
+		HttpEntity entity = response.getEntity();
+		ResponseDrain drain = ResponseDrain.forCurrentThread();
+		if (entity == null) {
+			drain.begin(null, null);
+		} else {
+			Header contentEncoding = entity.getContentEncoding();
+			Header contentType = entity.getContentType();
+			drain.begin(contentEncoding != null ? contentEncoding.getValue() : null, contentType != null ? contentType.getValue() : null);
+			try (InputStream content = entity.getContent()) {
+				drain.drain(content);
+			}
+		}
+		drain.recordTo(theRecorder);
+		RequestPhases.current().recordTo(theRecorder);
 	}
 }
@@ -0,0 +1,271 @@
+package bulkload;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.apache.commons.lang3.Validate;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.apache.commons.lang3.StringUtils.isNotBlank;
+
+/**
+ * Re-packs the entries of Synthea bundles into transactions of a target size.
+ * <p>
+ * Bundles are read one entry at a time. Large bundles are split into several
+ * transactions which must be sent in order, and any <code>urn:uuid:</code> reference to
+ * an entry that was sent in an earlier transaction is rewritten to the ID the server
+ * assigned to it. A transaction is only cut once every placeholder referenced so far
+ * has been seen, so forward references always stay within the same transaction.
+ * Bundles smaller than the target are coalesced with other small bundles, which is
+ * safe since placeholders are never shared between bundles.
+ */
+public class BundleRebatcher {
+
+	private static final String URN_UUID_PREFIX = "urn:uuid:";
+	private static final ObjectMapper ourMapper = new ObjectMapper();
+	private final int myTargetEntries;
+	private final long myTargetBytes;
+	private final Object myCoalesceLock = new Object();
+	private Transaction myCoalescing = new Transaction();
+
+	/**
+	 * @param theTargetEntries Target number of entries per transaction, or 0 for no limit
+	 * @param theTargetBytes   Target size of each transaction in bytes, or 0 for no limit
+	 */
+	public BundleRebatcher(int theTargetEntries, long theTargetBytes) {
+		Validate.isTrue(theTargetEntries > 0 || theTargetBytes > 0, "A target entry count or byte size is required");
+		myTargetEntries = theTargetEntries;
+		myTargetBytes = theTargetBytes;
+	}
+
+	/**
+	 * Reads one bundle and splits it into transactions. The transactions must be sent
+	 * in the order they are returned using {@link #send(List, ISender)}. A small bundle
+	 * may be held back to be coalesced with later ones, in which case the list is empty,
+	 * so {@link #flush()} must be called once all bundles have been read.
+	 *
+	 * @param theSource Identifies the bundle in {@link Transaction#getSources()}
+	 */
+	public List<Transaction> read(InputStream theBundle, int theSource) throws IOException {
+		List<Transaction> retVal = new ArrayList<>();
+		Set<String> seen = new HashSet<>();
+		Set<String> forwardReferences = new HashSet<>();
+		Transaction current = new Transaction();
+
+		try (JsonParser parser = ourMapper.getFactory().createParser(theBundle)) {
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				throw new IOException("Bundle is not a JSON object");
+			}
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String fieldName = parser.getCurrentName();
+				JsonToken value = parser.nextToken();
+				if (!"entry".equals(fieldName) || value != JsonToken.START_ARRAY) {
+					parser.skipChildren();
+					continue;
+				}
+
+				while (parser.nextToken() == JsonToken.START_OBJECT) {
+					long start = parser.getTokenLocation().getByteOffset();
+					ObjectNode entry = parser.readValueAsTree();
+					long size = parser.getCurrentLocation().getByteOffset() - start;
+
+					String fullUrl = entry.path("fullUrl").asText(null);
+					if (fullUrl != null) {
+						seen.add(fullUrl);
+						forwardReferences.remove(fullUrl);
+					}
+					for (ObjectNode next : findPlaceholderReferences(entry, new ArrayList<>())) {
+						String reference = next.get("reference").asText();
+						if (!seen.contains(reference)) {
+							forwardReferences.add(reference);
+						}
+					}
+
+					current.add(entry, size, fullUrl);
+					if (current.isFull() && forwardReferences.isEmpty()) {
+						current.mySources.add(theSource);
+						retVal.add(current);
+						current = new Transaction();
+					}
+				}
+			}
+		}
+
+		if (current.isEmpty()) {
+			return retVal;
+		}
+		current.mySources.add(theSource);
+		if (!retVal.isEmpty()) {
+			retVal.add(current);
+			return retVal;
+		}
+
+		Transaction coalesced = coalesce(current);
+		if (coalesced != null) {
+			retVal.add(coalesced);
+		}
+		return retVal;
+	}
+
+	/**
+	 * Returns any small bundles that are still waiting to be coalesced
+	 */
+	public List<Transaction> flush() {
+		Transaction remaining;
+		synchronized (myCoalesceLock) {
+			remaining = myCoalescing;
+			myCoalescing = new Transaction();
+		}
+		List<Transaction> retVal = new ArrayList<>();
+		if (!remaining.isEmpty()) {
+			retVal.add(remaining);
+		}
+		return retVal;
+	}
+
+	/**
+	 * @return A transaction that is ready to send, or <code>null</code> if the bundle is being held back
+	 */
+	private Transaction coalesce(Transaction theTransaction) {
+		synchronized (myCoalesceLock) {
+			Transaction retVal = null;
+			if (!myCoalescing.isEmpty() && myCoalescing.wouldOverflow(theTransaction)) {
+				retVal = myCoalescing;
+				myCoalescing = new Transaction();
+			}
+			myCoalescing.addAll(theTransaction);
+			if (retVal == null && myCoalescing.isFull()) {
+				retVal = myCoalescing;
+				myCoalescing = new Transaction();
+			}
+			return retVal;
+		}
+	}
+
+	/**
+	 * Sends the transactions read from one bundle in order, rewriting placeholder
+	 * references to entries that were created by an earlier transaction. If one fails
+	 * the ones before it stay committed, so sending the bundle again creates their
+	 * resources twice.
+	 */
+	public static void send(List<Transaction> theTransactions, ISender theSender) throws IOException {
+		Map<String, String> resolved = new HashMap<>();
+		for (Transaction next : theTransactions) {
+			send(next, resolved, theSender);
+		}
+	}
+
+	private static void send(Transaction theTransaction, Map<String, String> theResolved, ISender theSender) throws IOException {
+		ObjectNode bundle = ourMapper.createObjectNode();
+		bundle.put("resourceType", "Bundle");
+		bundle.put("type", "transaction");
+		ArrayNode entries = bundle.putArray("entry");
+		for (ObjectNode next : theTransaction.myEntries) {
+			if (!theResolved.isEmpty()) {
+				for (ObjectNode reference : findPlaceholderReferences(next, new ArrayList<>())) {
+					String target = theResolved.get(reference.get("reference").asText());
+					if (target != null) {
+						reference.put("reference", target);
+					}
+				}
+			}
+			entries.add(next);
+		}
+
+		String response = theSender.send(ourMapper.writeValueAsString(bundle), theTransaction.myEntries.size());
+
+		JsonNode responseEntries = ourMapper.readTree(response).path("entry");
+		for (int i = 0; i < theTransaction.myFullUrls.size() && i < responseEntries.size(); i++) {
+			String fullUrl = theTransaction.myFullUrls.get(i);
+			String location = responseEntries.get(i).path("response").path("location").asText(null);
+			if (fullUrl != null && isNotBlank(location)) {
+				int historyIdx = location.indexOf("/_history");
+				theResolved.put(fullUrl, historyIdx != -1 ? location.substring(0, historyIdx) : location);
+			}
+		}
+	}
+
+	private static List<ObjectNode> findPlaceholderReferences(JsonNode theNode, List<ObjectNode> theTarget) {
+		if (theNode.isObject()) {
+			JsonNode reference = theNode.get("reference");
+			if (reference != null && reference.isTextual() && reference.asText().startsWith(URN_UUID_PREFIX)) {
+				theTarget.add((ObjectNode) theNode);
+			}
+			for (Iterator<JsonNode> iter = theNode.elements(); iter.hasNext(); ) {
+				findPlaceholderReferences(iter.next(), theTarget);
+			}
+		} else if (theNode.isArray()) {
+			for (JsonNode next : theNode) {
+				findPlaceholderReferences(next, theTarget);
+			}
+		}
+		return theTarget;
+	}
+
+	public interface ISender {
+
+		/**
+		 * @param theTransaction The transaction bundle to send
+		 * @param theEntryCount  The number of entries in the transaction
+		 * @return The transaction-response bundle
+		 */
+		String send(String theTransaction, int theEntryCount) throws IOException;
+
+	}
+
+	public class Transaction {
+
+		private final List<ObjectNode> myEntries = new ArrayList<>();
+		private final List<String> myFullUrls = new ArrayList<>();
+		private final List<Integer> mySources = new ArrayList<>();
+		private long myBytes;
+
+		public void add(ObjectNode theEntry, long theBytes, String theFullUrl) {
+			myEntries.add(theEntry);
+			myFullUrls.add(theFullUrl);
+			myBytes += theBytes;
+		}
+
+		public void addAll(Transaction theOther) {
+			myEntries.addAll(theOther.myEntries);
+			myFullUrls.addAll(theOther.myFullUrls);
+			mySources.addAll(theOther.mySources);
+			myBytes += theOther.myBytes;
+		}
+
+		/**
+		 * @return The bundles that entries in this transaction were read from
+		 */
+		public List<Integer> getSources() {
+			return mySources;
+		}
+
+		public int getEntryCount() {
+			return myEntries.size();
+		}
+
+		public boolean isEmpty() {
+			return myEntries.isEmpty();
+		}
+
+		public boolean isFull() {
+			return (myTargetEntries > 0 && myEntries.size() >= myTargetEntries) || (myTargetBytes > 0 && myBytes >= myTargetBytes);
+		}
+
+		public boolean wouldOverflow(Transaction theOther) {
+			return (myTargetEntries > 0 && myEntries.size() + theOther.myEntries.size() > myTargetEntries) || (myTargetBytes > 0 && myBytes + theOther.myBytes > myTargetBytes);
+		}
+	}
+}
@@ -0,0 +1,120 @@
+package bulkload;
+
+import ca.uhn.fhir.util.StopWatch;
+import com.sun.management.OperatingSystemMXBean;
+import org.HdrHistogram.Histogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.text.DecimalFormat;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Measures the harness's own limits by running the Test02 to Test05 tasks against an
+ * in-process {@link StandInServer}. For each number of users the client-side latency is
+ * compared with the time the server spent on each request, and the difference is the
+ * overhead added by the harness (HTTP client, response handling and scheduling). The
+ * highest throughput reached is the most the harness can measure on this machine.
+ * <p>
+ * Since the stand-in server runs in the same JVM, the client CPU per request includes
+ * the server's share, so it is an upper bound.
+ */
+public class Calibration {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(Calibration.class);
+	private static final DecimalFormat ourDecimalFormat = new DecimalFormat("0.000");
+	private static final OperatingSystemMXBean ourOperatingSystemBean = (OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+
+	public static void main(String[] args) throws Exception {
+		String workload = args.length > 0 ? args[0] : "mixedbag";
+		int requestsPerUser = Integer.getInteger("bulkload.calibrationRequests", 200);
+		int[] users = Arrays.stream(System.getProperty("bulkload.calibrationUsers", "1,2,4,8,16,32,64,128,256").split(",")).mapToInt(Integer::parseInt).toArray();
+		OperationMix mix = mixFor(workload);
+
+		try (StandInServer standIn = StandInServer.fromSystemProperties(0)) {
+			BaseScaleupTest test = new BaseScaleupTest(List.of(standIn.getBaseUrl()), "calibration:calibration", "calibration");
+			// The stand-in listens on a different port each time, so a snapshot would never be reused
+			test.loadPatients(false);
+			ExecutorService executor = test.newUserExecutor();
+			try {
+				ourLog.info("Warming up...");
+				test.runUsers(executor, 4, LoadProfile.PassControl.forRequests(System.nanoTime(), requestsPerUser), mix);
+				standIn.getIntervalHandlingTimes();
+
+				ourLog.info("CALIBRATION,Workload,Users,Requests,Throughput / Sec,Client Mean (ms),Client 99th Percentile (ms),Server Mean (ms),Server 99th Percentile (ms),Overhead Mean (ms),Client CPU / Request (ms),Errors");
+				double bestThroughput = 0;
+				int bestUsers = 0;
+				double singleUserOverhead = 0;
+				double singleUserCpu = 0;
+				for (int next : users) {
+					long errorsBefore = test.myErrorCounter.get();
+					long cpuStart = ourOperatingSystemBean.getProcessCpuTime();
+					StopWatch sw = new StopWatch();
+					PassRecorder recorder = test.runUsers(executor, next, LoadProfile.PassControl.forRequests(System.nanoTime(), requestsPerUser), mix);
+					long elapsedMillis = Math.max(1, sw.getMillis());
+					long cpuNanos = ourOperatingSystemBean.getProcessCpuTime() - cpuStart;
+
+					Histogram client = recorder.getLatency();
+					Histogram server = standIn.getIntervalHandlingTimes();
+					long requests = client.getTotalCount();
+					double throughput = requests * 1000.0 / elapsedMillis;
+					double overheadMillis = (client.getMean() - server.getMean()) / 1_000_000.0;
+					double cpuPerRequestMillis = requests > 0 ? cpuNanos / 1_000_000.0 / requests : 0;
+
+					ourLog.info("CALIBRATION,{},{},{},{},{},{},{},{},{},{},{}",
+						workload,
+						next,
+						requests,
+						new DecimalFormat("0.0").format(throughput),
+						ourDecimalFormat.format(client.getMean() / 1_000_000.0),
+						ourDecimalFormat.format(client.getValueAtPercentile(99) / 1_000_000.0),
+						ourDecimalFormat.format(server.getMean() / 1_000_000.0),
+						ourDecimalFormat.format(server.getValueAtPercentile(99) / 1_000_000.0),
+						ourDecimalFormat.format(overheadMillis),
+						ourDecimalFormat.format(cpuPerRequestMillis),
+						test.myErrorCounter.get() - errorsBefore);
+
+					if (throughput > bestThroughput) {
+						bestThroughput = throughput;
+						bestUsers = next;
+					}
+					if (next == users[0]) {
+						singleUserOverhead = overheadMillis;
+						singleUserCpu = cpuPerRequestMillis;
+					}
+				}
+
+				ourLog.info("Harness maximum throughput for {} is {} req/sec at {} users - overhead per request at {} users is {}ms mean - {}ms CPU per request including the stand-in server",
+					workload,
+					new DecimalFormat("0.0").format(bestThroughput),
+					bestUsers,
+					users[0],
+					ourDecimalFormat.format(singleUserOverhead),
+					ourDecimalFormat.format(singleUserCpu));
+			} finally {
+				executor.shutdown();
+				test.getLiveMetrics().close();
+			}
+		}
+	}
+
+	static OperationMix mixFor(String theWorkload) {
+		switch (theWorkload) {
+			case "search":
+				return new OperationMix().add(theWorkload, new Test02_SearchForEobsByPatient.SearchTask(), 1);
+			case "create":
+				return new OperationMix().add(theWorkload, new Test03_Create.CreateTask(), 1);
+			case "read":
+				return new OperationMix().add(theWorkload, new Test04_Read.ReadTask(), 1);
+			case "update":
+				return new OperationMix().add(theWorkload, new Test05_Update.UpdateTask(), 1);
+			case "mixedbag":
+				return Test06_MixedBag.newMix();
+			default:
+				throw new IllegalArgumentException("Unknown workload: " + theWorkload + " - expected search, create, read, update or mixedbag");
+		}
+	}
+}
@@ -0,0 +1,297 @@
+package bulkload;
+
+import org.HdrHistogram.Histogram;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Finds the highest load a server sustains within a service level objective (a latency
+ * percentile and an error rate) without stepping through every level in between.
+ * <p>
+ * The load is either the number of users or, in open-loop mode, the total arrival rate
+ * with a fixed number of users. Starting from the lowest level, the load is doubled until
+ * a pass misses the objective, and the highest passing and lowest failing levels are then
+ * narrowed down by bisection until they are within the requested precision. This takes
+ * a few dozen passes at most, each of which is reported like any other pass.
+ * <p>
+ * Besides the maximum sustainable throughput the search reports the knee, the pass with
+ * the highest ratio of throughput to mean latency. Up to the knee more load mostly buys
+ * more throughput, and beyond it mostly more latency.
+ */
+public class CapacitySearch {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(CapacitySearch.class);
+	private static final DecimalFormat ourDecimalFormat = new DecimalFormat("0.0");
+
+	public enum Dimension {
+		USERS, RATE
+	}
+
+	private final Dimension myDimension;
+	private final double myMinLevel;
+	private final double myMaxLevel;
+	private final int myRateUsers;
+	private final double myRatePerUser;
+	private final double mySloPercentile;
+	private final long mySloNanos;
+	private final double mySloErrorRate;
+	private final double myPrecision;
+	private final int myMaxPasses;
+	private final int myWarmupPasses;
+
+	/**
+	 * @param theMinLevel      Lowest number of users, or lowest total rate (requests/sec), to try
+	 * @param theMaxLevel      Highest number of users, or highest total rate, to try
+	 * @param theRateUsers     Number of users sharing the rate when searching by rate
+	 * @param theRatePerUser   Open-loop rate of each user when searching by users, or 0 for closed-loop
+	 * @param thePrecision     The search ends once the highest passing and lowest failing levels are within this fraction of each other
+	 * @param theWarmupPasses  Number of passes at the lowest level to run before the search, which are reported but not judged
+	 */
+	public CapacitySearch(Dimension theDimension, double theMinLevel, double theMaxLevel, int theRateUsers, double theRatePerUser, double theSloPercentile, long theSloNanos, double theSloErrorRate, double thePrecision, int theMaxPasses, int theWarmupPasses) {
+		Validate.isTrue(theMinLevel > 0 && theMaxLevel >= theMinLevel, "The search range must be positive");
+		Validate.isTrue(thePrecision > 0, "The search precision must be positive");
+		Validate.isTrue(theMaxPasses > 0, "At least one pass is required");
+		Validate.isTrue(theWarmupPasses >= 0, "The number of warm-up passes can't be negative");
+		myDimension = theDimension;
+		myMinLevel = theMinLevel;
+		myMaxLevel = theMaxLevel;
+		myRateUsers = theRateUsers;
+		myRatePerUser = theRatePerUser;
+		mySloPercentile = theSloPercentile;
+		mySloNanos = theSloNanos;
+		mySloErrorRate = theSloErrorRate;
+		myPrecision = thePrecision;
+		myMaxPasses = theMaxPasses;
+		myWarmupPasses = theWarmupPasses;
+	}
+
+	/**
+	 * Runs the search and logs the result
+	 */
+	public Result search(IPassRunner theRunner) throws IOException, InterruptedException, ExecutionException {
+		ourLog.info("Starting {}", this);
+		List<PassOutcome> outcomes = new ArrayList<>();
+		PassOutcome best = null;
+		PassOutcome firstFailure = null;
+
+		// A cold client and server would miss the objective at any level, so warm them up first
+		for (int i = 1; i <= myWarmupPasses; i++) {
+			ourLog.info("Capacity search warm-up pass {} at {}", i, describe(myMinLevel));
+			runLevel(theRunner, i, myMinLevel);
+		}
+
+		// Bracket: double the load until the objective is missed
+		double level = myMinLevel;
+		while (outcomes.size() < myMaxPasses) {
+			PassOutcome outcome = run(theRunner, outcomes, level);
+			if (!outcome.isMet()) {
+				firstFailure = outcome;
+				break;
+			}
+			best = outcome;
+			if (level >= myMaxLevel) {
+				break;
+			}
+			level = roundLevel(Math.min(myMaxLevel, level * 2));
+		}
+
+		// Bisect between the highest passing and lowest failing levels
+		if (best != null && firstFailure != null) {
+			double low = best.getLevel();
+			double high = firstFailure.getLevel();
+			while (outcomes.size() < myMaxPasses && high - low > Math.max(myDimension == Dimension.USERS ? 1 : 0, low * myPrecision)) {
+				PassOutcome outcome = run(theRunner, outcomes, roundLevel((low + high) / 2));
+				if (outcome.isMet()) {
+					low = outcome.getLevel();
+					if (outcome.getThroughput() > best.getThroughput()) {
+						best = outcome;
+					}
+				} else {
+					high = outcome.getLevel();
+					firstFailure = outcome;
+				}
+			}
+		}
+
+		PassOutcome knee = null;
+		for (PassOutcome next : outcomes) {
+			if (knee == null || next.getPower() > knee.getPower()) {
+				knee = next;
+			}
+		}
+
+		Result retVal = new Result(best, firstFailure, knee, outcomes.size());
+		ourLog.info("Capacity search finished after {} passes:", outcomes.size());
+		if (best == null) {
+			ourLog.info(" * The objective was missed even at {}", describe(myMinLevel));
+		} else {
+			ourLog.info(" * Maximum sustainable throughput {} req/sec at {} - p{} {}ms - {}% errors", ourDecimalFormat.format(best.getThroughput()), describe(best.getLevel()), mySloPercentile, ourDecimalFormat.format(best.getPercentileNanos() / 1_000_000.0), ourDecimalFormat.format(100 * best.getErrorRate()));
+		}
+		if (firstFailure == null) {
+			ourLog.info(" * The objective was still met at the maximum of {}", describe(myMaxLevel));
+		} else {
+			ourLog.info(" * Objective first missed at {} - p{} {}ms - {}% errors", describe(firstFailure.getLevel()), mySloPercentile, ourDecimalFormat.format(firstFailure.getPercentileNanos() / 1_000_000.0), ourDecimalFormat.format(100 * firstFailure.getErrorRate()));
+		}
+		ourLog.info(" * Knee at {} - {} req/sec - mean {}ms", describe(knee.getLevel()), ourDecimalFormat.format(knee.getThroughput()), ourDecimalFormat.format(knee.getMeanNanos() / 1_000_000.0));
+		return retVal;
+	}
+
+	private PassOutcome run(IPassRunner theRunner, List<PassOutcome> theOutcomes, double theLevel) throws IOException, InterruptedException, ExecutionException {
+		int pass = myWarmupPasses + theOutcomes.size() + 1;
+		PassOutcome retVal = runLevel(theRunner, pass, theLevel);
+		retVal.setMet(retVal.getPercentileNanos() <= mySloNanos && retVal.getErrorRate() <= mySloErrorRate);
+		theOutcomes.add(retVal);
+		ourLog.info("Capacity search pass {} at {} {} the objective - p{} {}ms - {}% errors", pass, describe(theLevel), retVal.isMet() ? "meets" : "misses", mySloPercentile, ourDecimalFormat.format(retVal.getPercentileNanos() / 1_000_000.0), ourDecimalFormat.format(100 * retVal.getErrorRate()));
+		return retVal;
+	}
+
+	private PassOutcome runLevel(IPassRunner theRunner, int thePass, double theLevel) throws IOException, InterruptedException, ExecutionException {
+		PassOutcome retVal;
+		if (myDimension == Dimension.USERS) {
+			retVal = theRunner.runPass(thePass, (int) theLevel, myRatePerUser);
+		} else {
+			retVal = theRunner.runPass(thePass, myRateUsers, theLevel / myRateUsers);
+		}
+		retVal.setLevel(theLevel);
+		return retVal;
+	}
+
+	private double roundLevel(double theLevel) {
+		if (myDimension == Dimension.USERS) {
+			return Math.floor(theLevel);
+		}
+		return theLevel;
+	}
+
+	private String describe(double theLevel) {
+		if (myDimension == Dimension.USERS) {
+			return (int) theLevel + " users";
+		}
+		return ourDecimalFormat.format(theLevel) + " req/sec target";
+	}
+
+	@Override
+	public String toString() {
+		return "capacity search for the highest " + (myDimension == Dimension.USERS ? "number of users" : "arrival rate") + " from " + describe(myMinLevel) + " to " + describe(myMaxLevel) + " meeting p" + mySloPercentile + " <= " + mySloNanos / 1_000_000 + "ms and error rate <= " + 100 * mySloErrorRate + "% in at most " + myMaxPasses + " passes after " + myWarmupPasses + " warm-up passes";
+	}
+
+	public double getSloPercentile() {
+		return mySloPercentile;
+	}
+
+	public interface IPassRunner {
+
+		/**
+		 * Runs and reports one pass
+		 *
+		 * @param theRatePerUser Open-loop rate of each user, or 0 for closed-loop
+		 */
+		PassOutcome runPass(int thePass, int theUsers, double theRatePerUser) throws IOException, InterruptedException, ExecutionException;
+	}
+
+	/**
+	 * The measurements of one pass that the search decides on
+	 */
+	public static class PassOutcome {
+
+		private final double myThroughput;
+		private final long myMeanNanos;
+		private final long myPercentileNanos;
+		private final double myErrorRate;
+		private double myLevel;
+		private boolean myMet;
+
+		/**
+		 * @param theLatency The latency histogram of the pass, corrected for coordinated omission in open-loop mode
+		 */
+		public PassOutcome(double theThroughput, Histogram theLatency, double theSloPercentile, double theErrorRate) {
+			myThroughput = theThroughput;
+			myMeanNanos = (long) theLatency.getMean();
+			myPercentileNanos = theLatency.getValueAtPercentile(theSloPercentile);
+			myErrorRate = theErrorRate;
+		}
+
+		public double getThroughput() {
+			return myThroughput;
+		}
+
+		public long getMeanNanos() {
+			return myMeanNanos;
+		}
+
+		public long getPercentileNanos() {
+			return myPercentileNanos;
+		}
+
+		public double getErrorRate() {
+			return myErrorRate;
+		}
+
+		public double getLevel() {
+			return myLevel;
+		}
+
+		void setLevel(double theLevel) {
+			myLevel = theLevel;
+		}
+
+		public boolean isMet() {
+			return myMet;
+		}
+
+		void setMet(boolean theMet) {
+			myMet = theMet;
+		}
+
+		/**
+		 * Throughput divided by mean latency, which peaks at the knee of the load curve
+		 */
+		public double getPower() {
+			return myMeanNanos > 0 ? myThroughput / myMeanNanos : 0;
+		}
+	}
+
+	public static class Result {
+
+		private final PassOutcome myMaxSustainable;
+		private final PassOutcome myFirstFailure;
+		private final PassOutcome myKnee;
+		private final int myPasses;
+
+		public Result(PassOutcome theMaxSustainable, PassOutcome theFirstFailure, PassOutcome theKnee, int thePasses) {
+			myMaxSustainable = theMaxSustainable;
+			myFirstFailure = theFirstFailure;
+			myKnee = theKnee;
+			myPasses = thePasses;
+		}
+
+		/**
+		 * @return The passing pass with the highest throughput, or <code>null</code> if none passed
+		 */
+		public PassOutcome getMaxSustainable() {
+			return myMaxSustainable;
+		}
+
+		/**
+		 * @return The failing pass at the lowest level, or <code>null</code> if none failed
+		 */
+		public PassOutcome getFirstFailure() {
+			return myFirstFailure;
+		}
+
+		public PassOutcome getKnee() {
+			return myKnee;
+		}
+
+		public int getPasses() {
+			return myPasses;
+		}
+	}
+}
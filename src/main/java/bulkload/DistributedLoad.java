@@ -0,0 +1,265 @@
+package bulkload;
+
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Spreads the passes of a scale-up test across several agent processes so that the
+ * load isn't limited by what one JVM can generate.
+ * <p>
+ * The {@link Coordinator} drives the pass schedule. For each pass it splits the users
+ * between the agents and tells them when to start, and each {@link Agent} runs its
+ * share of the users and sends back its raw histograms, which the coordinator merges
+ * into a single result. Messages are exchanged over one plain TCP connection per agent.
+ */
+public class DistributedLoad {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(DistributedLoad.class);
+	private static final int STOP = -1;
+
+	public static class Coordinator implements Closeable {
+
+		private final ServerSocket myServerSocket;
+		private final List<Connection> myAgents = new ArrayList<>();
+
+		/**
+		 * Waits for the given number of agents to connect
+		 */
+		public Coordinator(int thePort, int theAgentCount) throws IOException {
+			Validate.isTrue(theAgentCount > 0, "At least one agent is required");
+			myServerSocket = new ServerSocket(thePort);
+			ourLog.info("Waiting for {} agents to connect on port {}", theAgentCount, thePort);
+			while (myAgents.size() < theAgentCount) {
+				Socket socket = myServerSocket.accept();
+				myAgents.add(new Connection(socket));
+				ourLog.info("Agent {}/{} connected from {}", myAgents.size(), theAgentCount, socket.getRemoteSocketAddress());
+			}
+		}
+
+		/**
+		 * Runs one pass on every agent and waits for all of them to report back
+		 *
+		 * @param theUsers       The total number of users, which are split evenly between the agents
+		 * @param theControl     The warm-up, length and open-loop rate of the pass. Steady state detection isn't applied by the agents.
+		 * @param theStartMillis The wall clock time at which every agent starts its users
+		 */
+		public List<AgentResult> runPass(int thePass, int theUsers, LoadProfile.PassControl theControl, long theStartMillis) throws IOException {
+			for (int i = 0; i < myAgents.size(); i++) {
+				int users = theUsers / myAgents.size() + (i < theUsers % myAgents.size() ? 1 : 0);
+				DataOutputStream output = myAgents.get(i).myOutput;
+				output.writeInt(thePass);
+				output.writeInt(users);
+				output.writeLong(theStartMillis);
+				output.writeLong(theControl.getWarmupNanos());
+				output.writeInt(theControl.getRequestsPerUser());
+				output.writeLong(theControl.getPassNanos());
+				output.writeDouble(theControl.getRatePerUser());
+				output.flush();
+			}
+
+			List<AgentResult> retVal = new ArrayList<>();
+			for (Connection next : myAgents) {
+				DataInputStream input = next.myInput;
+				int pass = input.readInt();
+				Validate.isTrue(pass == thePass, "Agent reported pass %d while waiting for pass %d", pass, thePass);
+				long errors = input.readLong();
+				double clientCpuPercent = input.readDouble();
+				int platformThreads = input.readInt();
+				retVal.add(new AgentResult(PassRecorder.readFrom(input), errors, clientCpuPercent, platformThreads));
+			}
+			return retVal;
+		}
+
+		/**
+		 * Tells the agents to exit
+		 */
+		@Override
+		public void close() throws IOException {
+			for (Connection next : myAgents) {
+				try {
+					next.myOutput.writeInt(STOP);
+					next.myOutput.flush();
+				} catch (IOException e) {
+					ourLog.warn("Failed to stop agent: {}", e.toString());
+				}
+				next.mySocket.close();
+			}
+			myServerSocket.close();
+		}
+	}
+
+	public static class Agent implements Closeable {
+
+		private final Connection myConnection;
+
+		/**
+		 * Connects to the coordinator, waiting for up to a minute for it to start
+		 *
+		 * @param theCoordinator The coordinator's address as <code>host:port</code>
+		 */
+		public Agent(String theCoordinator) throws IOException, InterruptedException {
+			int colonIdx = theCoordinator.lastIndexOf(':');
+			Validate.isTrue(colonIdx > 0, "Coordinator address must be host:port, got %s", theCoordinator);
+			String host = theCoordinator.substring(0, colonIdx);
+			int port = Integer.parseInt(theCoordinator.substring(colonIdx + 1));
+
+			myConnection = connect(host, port);
+			ourLog.info("Connected to coordinator at {}", theCoordinator);
+		}
+
+		private static Connection connect(String theHost, int thePort) throws IOException, InterruptedException {
+			long giveUp = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(1);
+			while (true) {
+				try {
+					return new Connection(new Socket(theHost, thePort));
+				} catch (ConnectException e) {
+					if (System.currentTimeMillis() > giveUp) {
+						throw e;
+					}
+					ourLog.info("Waiting for coordinator at {}:{}", theHost, thePort);
+					Thread.sleep(1000);
+				}
+			}
+		}
+
+		/**
+		 * Waits for the coordinator to start the next pass
+		 *
+		 * @return The pass to run, or <code>null</code> if the test is over
+		 */
+		public PassCommand nextCommand() throws IOException {
+			int pass = myConnection.myInput.readInt();
+			if (pass == STOP) {
+				return null;
+			}
+			int users = myConnection.myInput.readInt();
+			long startMillis = myConnection.myInput.readLong();
+			long warmupNanos = myConnection.myInput.readLong();
+			int requestsPerUser = myConnection.myInput.readInt();
+			long passNanos = myConnection.myInput.readLong();
+			double ratePerUser = myConnection.myInput.readDouble();
+			return new PassCommand(pass, users, startMillis, warmupNanos, requestsPerUser, passNanos, ratePerUser);
+		}
+
+		public void sendResult(int thePass, AgentResult theResult) throws IOException {
+			DataOutputStream output = myConnection.myOutput;
+			output.writeInt(thePass);
+			output.writeLong(theResult.getErrors());
+			output.writeDouble(theResult.getClientCpuPercent());
+			output.writeInt(theResult.getPlatformThreads());
+			theResult.getRecorder().writeTo(output);
+			output.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			myConnection.mySocket.close();
+		}
+	}
+
+	public static class PassCommand {
+
+		private final int myPass;
+		private final int myUsers;
+		private final long myStartMillis;
+		private final long myWarmupNanos;
+		private final int myRequestsPerUser;
+		private final long myPassNanos;
+		private final double myRatePerUser;
+
+		public PassCommand(int thePass, int theUsers, long theStartMillis, long theWarmupNanos, int theRequestsPerUser, long thePassNanos, double theRatePerUser) {
+			myPass = thePass;
+			myUsers = theUsers;
+			myStartMillis = theStartMillis;
+			myWarmupNanos = theWarmupNanos;
+			myRequestsPerUser = theRequestsPerUser;
+			myPassNanos = thePassNanos;
+			myRatePerUser = theRatePerUser;
+		}
+
+		public int getPass() {
+			return myPass;
+		}
+
+		public int getUsers() {
+			return myUsers;
+		}
+
+		/**
+		 * @return The wall clock time at which the users should start
+		 */
+		public long getStartMillis() {
+			return myStartMillis;
+		}
+
+		/**
+		 * Creates the control for this pass, which starts at the given time on this
+		 * process's clock
+		 */
+		public LoadProfile.PassControl newPassControl(long theStartNanos) {
+			return new LoadProfile.PassControl(theStartNanos, myRatePerUser, myWarmupNanos, myRequestsPerUser, myPassNanos, 0, myPassNanos, TimeUnit.SECONDS.toNanos(1), 0, 0);
+		}
+	}
+
+	public static class AgentResult {
+
+		private final PassRecorder myRecorder;
+		private final long myErrors;
+		private final double myClientCpuPercent;
+		private final int myPlatformThreads;
+
+		/**
+		 * @param theErrors The total number of errors the agent has seen since it started
+		 */
+		public AgentResult(PassRecorder theRecorder, long theErrors, double theClientCpuPercent, int thePlatformThreads) {
+			myRecorder = theRecorder;
+			myErrors = theErrors;
+			myClientCpuPercent = theClientCpuPercent;
+			myPlatformThreads = thePlatformThreads;
+		}
+
+		public PassRecorder getRecorder() {
+			return myRecorder;
+		}
+
+		public long getErrors() {
+			return myErrors;
+		}
+
+		public double getClientCpuPercent() {
+			return myClientCpuPercent;
+		}
+
+		public int getPlatformThreads() {
+			return myPlatformThreads;
+		}
+	}
+
+	private static class Connection {
+
+		private final Socket mySocket;
+		private final DataInputStream myInput;
+		private final DataOutputStream myOutput;
+
+		public Connection(Socket theSocket) throws IOException {
+			mySocket = theSocket;
+			mySocket.setTcpNoDelay(true);
+			myInput = new DataInputStream(new BufferedInputStream(theSocket.getInputStream()));
+			myOutput = new DataOutputStream(new BufferedOutputStream(theSocket.getOutputStream()));
+		}
+	}
+}
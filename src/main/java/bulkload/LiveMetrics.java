@@ -0,0 +1,357 @@
+package bulkload;
+
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Rolling one-second view of a running test, so that a long pass or bulk load can be
+ * watched and lined up with the server's own graphs while it runs instead of only once
+ * it ends.
+ * <p>
+ * Requests are recorded into HdrHistogram {@link Recorder}s and {@link LongAdder}s,
+ * which are wait-free for the recording threads. Once a second a background thread
+ * swaps out the interval histograms, appends a line to the JSON-lines file and renders
+ * the OpenMetrics page that the HTTP endpoint serves until the next second, so neither
+ * the file nor a scrape ever touches the request path.
+ * <p>
+ * Configured by the <code>bulkload.metricsPort</code> (serves <code>/metrics</code>)
+ * and <code>bulkload.metricsFile</code> system properties. With neither set nothing is
+ * recorded.
+ */
+public class LiveMetrics implements Closeable {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(LiveMetrics.class);
+	private static final ObjectMapper ourMapper = new ObjectMapper();
+	private static final String CONTENT_TYPE = "application/openmetrics-text; version=1.0.0; charset=utf-8";
+	private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+	private static final long INTERVAL_MILLIS = 1000;
+
+	private final boolean myEnabled;
+	private final List<String> myNodes;
+	private final Recorder myLatency = new Recorder(3);
+	private final LongAdder myCompleted = new LongAdder();
+	private final LongAdder myErrors = new LongAdder();
+	private final LongAdder myLatencySumNanos = new LongAdder();
+	private final LongAdder myInFlight = new LongAdder();
+	private final LongAdder myResources = new LongAdder();
+	private final Recorder[] myNodeLatency;
+	private final LongAdder[] myNodeCompleted;
+	private final LongAdder[] myNodeErrors;
+	private final LongAdder[] myNodeLatencySumNanos;
+	private final HttpServer myServer;
+	private final BufferedWriter myFileWriter;
+	private final ScheduledExecutorService myTicker;
+	private volatile int myPass;
+	private volatile int myUsers;
+	private volatile byte[] myPage = "# EOF\n".getBytes(StandardCharsets.UTF_8);
+
+	// Only touched by the ticker thread
+	private Histogram myIntervalLatency;
+	private Histogram[] myIntervalNodeLatency;
+	private long myLastTickNanos = System.nanoTime();
+	private long myLastCompleted;
+	private long myLastErrors;
+	private long myLastResources;
+	private long[] myLastNodeCompleted;
+	private long[] myLastNodeErrors;
+
+	/**
+	 * @param theNodes    The base URL of each node, in load balancer order
+	 * @param thePort     The port to serve <code>/metrics</code> on, 0 to pick a free one, or -1 for no endpoint
+	 * @param theFileName The JSON-lines file to append to, or <code>null</code> for none
+	 */
+	public LiveMetrics(List<String> theNodes, int thePort, String theFileName) throws IOException {
+		myEnabled = thePort >= 0 || theFileName != null;
+		myNodes = theNodes;
+		myNodeLatency = new Recorder[theNodes.size()];
+		myNodeCompleted = new LongAdder[theNodes.size()];
+		myNodeErrors = new LongAdder[theNodes.size()];
+		myNodeLatencySumNanos = new LongAdder[theNodes.size()];
+		myIntervalNodeLatency = new Histogram[theNodes.size()];
+		myLastNodeCompleted = new long[theNodes.size()];
+		myLastNodeErrors = new long[theNodes.size()];
+		for (int i = 0; i < theNodes.size(); i++) {
+			myNodeLatency[i] = new Recorder(3);
+			myNodeCompleted[i] = new LongAdder();
+			myNodeErrors[i] = new LongAdder();
+			myNodeLatencySumNanos[i] = new LongAdder();
+		}
+
+		if (!myEnabled) {
+			myServer = null;
+			myFileWriter = null;
+			myTicker = null;
+			return;
+		}
+
+		if (theFileName != null) {
+			myFileWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(theFileName, true), StandardCharsets.UTF_8));
+			ourLog.info("Writing live metrics every second to {}", theFileName);
+		} else {
+			myFileWriter = null;
+		}
+		if (thePort >= 0) {
+			myServer = HttpServer.create(new InetSocketAddress(thePort), 0);
+			myServer.createContext("/metrics", this::serve);
+			myServer.start();
+			ourLog.info("Serving live metrics on http://localhost:{}/metrics", myServer.getAddress().getPort());
+		} else {
+			myServer = null;
+		}
+
+		myTicker = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread retVal = new Thread(r, "live-metrics");
+			retVal.setDaemon(true);
+			return retVal;
+		});
+		myTicker.scheduleAtFixedRate(this::tick, INTERVAL_MILLIS, INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	public static LiveMetrics fromSystemProperties(List<String> theNodes) {
+		try {
+			return new LiveMetrics(theNodes, Integer.getInteger("bulkload.metricsPort", -1), System.getProperty("bulkload.metricsFile"));
+		} catch (IOException e) {
+			throw new InternalErrorException("Failed to start live metrics", e);
+		}
+	}
+
+	/**
+	 * Call before sending a request, and {@link #requestFinished(long, boolean)} once it is over
+	 */
+	public void requestStarted() {
+		if (myEnabled) {
+			myInFlight.increment();
+		}
+	}
+
+	/**
+	 * @param theLatencyNanos Time the whole request took, as the test sees it
+	 */
+	public void requestFinished(long theLatencyNanos, boolean theSuccess) {
+		if (myEnabled) {
+			myInFlight.decrement();
+			myLatency.recordValue(Math.max(1, theLatencyNanos));
+			myLatencySumNanos.add(theLatencyNanos);
+			myCompleted.increment();
+			if (!theSuccess) {
+				myErrors.increment();
+			}
+		}
+	}
+
+	/**
+	 * Records one HTTP exchange with a node. A test request can make several.
+	 */
+	public void nodeFinished(int theNode, long theLatencyNanos, boolean theSuccess) {
+		if (myEnabled) {
+			myNodeLatency[theNode].recordValue(Math.max(1, theLatencyNanos));
+			myNodeLatencySumNanos[theNode].add(theLatencyNanos);
+			myNodeCompleted[theNode].increment();
+			if (!theSuccess) {
+				myNodeErrors[theNode].increment();
+			}
+		}
+	}
+
+	/**
+	 * Counts resources written, for loads where the resource rate matters more than the request rate
+	 */
+	public void recordResources(long theResources) {
+		if (myEnabled) {
+			myResources.add(theResources);
+		}
+	}
+
+	/**
+	 * Labels the following seconds with the pass they belong to
+	 */
+	public void setPass(int thePass, int theUsers) {
+		myPass = thePass;
+		myUsers = theUsers;
+	}
+
+	private void tick() {
+		try {
+			long now = System.nanoTime();
+			double seconds = Math.max(1, now - myLastTickNanos) / 1e9;
+			myLastTickNanos = now;
+			myIntervalLatency = myLatency.getIntervalHistogram(myIntervalLatency);
+			long completed = myCompleted.sum();
+			long errors = myErrors.sum();
+			long resources = myResources.sum();
+
+			ObjectNode line = ourMapper.createObjectNode();
+			line.put("timestamp", Instant.now().toString());
+			line.put("pass", myPass);
+			line.put("users", myUsers);
+			line.put("intervalSeconds", round(seconds));
+			line.put("completed", completed - myLastCompleted);
+			line.put("errors", errors - myLastErrors);
+			line.put("throughput", round((completed - myLastCompleted) / seconds));
+			line.put("inFlight", myInFlight.sum());
+			if (resources > 0) {
+				line.put("resourcesPerSecond", round((resources - myLastResources) / seconds));
+			}
+			line.set("latencyMs", toJson(myIntervalLatency));
+
+			StringBuilder page = new StringBuilder();
+			page.append("# TYPE bulkload_requests counter\n");
+			page.append("# HELP bulkload_requests Requests completed, including failed ones\n");
+			page.append("bulkload_requests_total ").append(completed).append('\n');
+			page.append("# TYPE bulkload_errors counter\n");
+			page.append("bulkload_errors_total ").append(errors).append('\n');
+			page.append("# TYPE bulkload_resources counter\n");
+			page.append("bulkload_resources_total ").append(resources).append('\n');
+			page.append("# TYPE bulkload_in_flight gauge\n");
+			page.append("bulkload_in_flight ").append(myInFlight.sum()).append('\n');
+			page.append("# TYPE bulkload_throughput gauge\n");
+			page.append("# HELP bulkload_throughput Requests per second over the last second\n");
+			page.append("bulkload_throughput ").append(round((completed - myLastCompleted) / seconds)).append('\n');
+			page.append("# TYPE bulkload_pass gauge\n");
+			page.append("bulkload_pass ").append(myPass).append('\n');
+			page.append("# TYPE bulkload_users gauge\n");
+			page.append("bulkload_users ").append(myUsers).append('\n');
+			page.append("# TYPE bulkload_latency_seconds summary\n");
+			page.append("# HELP bulkload_latency_seconds Request latency, with quantiles over the last second\n");
+			appendSummary(page, "bulkload_latency_seconds", "", myIntervalLatency, completed, myLatencySumNanos.sum());
+
+			myLastCompleted = completed;
+			myLastErrors = errors;
+			myLastResources = resources;
+
+			ArrayNode nodes = line.putArray("nodes");
+			StringBuilder nodeRequests = new StringBuilder("# TYPE bulkload_node_requests counter\n");
+			StringBuilder nodeErrors = new StringBuilder("# TYPE bulkload_node_errors counter\n");
+			StringBuilder nodeLatency = new StringBuilder("# TYPE bulkload_node_latency_seconds summary\n");
+			for (int i = 0; i < myNodes.size(); i++) {
+				myIntervalNodeLatency[i] = myNodeLatency[i].getIntervalHistogram(myIntervalNodeLatency[i]);
+				long nodeCompleted = myNodeCompleted[i].sum();
+				long nodeErrorCount = myNodeErrors[i].sum();
+				String label = "node=\"" + escape(myNodes.get(i)) + "\"";
+
+				ObjectNode node = nodes.addObject();
+				node.put("node", myNodes.get(i));
+				node.put("completed", nodeCompleted - myLastNodeCompleted[i]);
+				node.put("errors", nodeErrorCount - myLastNodeErrors[i]);
+				node.set("latencyMs", toJson(myIntervalNodeLatency[i]));
+
+				nodeRequests.append("bulkload_node_requests_total{").append(label).append("} ").append(nodeCompleted).append('\n');
+				nodeErrors.append("bulkload_node_errors_total{").append(label).append("} ").append(nodeErrorCount).append('\n');
+				appendSummary(nodeLatency, "bulkload_node_latency_seconds", label, myIntervalNodeLatency[i], nodeCompleted, myNodeLatencySumNanos[i].sum());
+
+				myLastNodeCompleted[i] = nodeCompleted;
+				myLastNodeErrors[i] = nodeErrorCount;
+			}
+			page.append(nodeRequests).append(nodeErrors).append(nodeLatency).append("# EOF\n");
+			myPage = page.toString().getBytes(StandardCharsets.UTF_8);
+
+			if (myFileWriter != null) {
+				myFileWriter.write(ourMapper.writeValueAsString(line));
+				myFileWriter.write('\n');
+				myFileWriter.flush();
+			}
+		} catch (Exception e) {
+			// Keep ticking, a failed write shouldn't stop the metrics
+			ourLog.warn("Failed to update live metrics: {}", e.toString());
+		}
+	}
+
+	private static void appendSummary(StringBuilder thePage, String theName, String theLabels, Histogram theInterval, long theCount, long theSumNanos) {
+		String separator = theLabels.isEmpty() ? "" : ",";
+		for (double next : QUANTILES) {
+			double value = theInterval.getTotalCount() > 0 ? theInterval.getValueAtPercentile(next * 100) / 1e9 : Double.NaN;
+			thePage.append(theName).append("{").append(theLabels).append(separator).append("quantile=\"").append(next).append("\"} ").append(formatDouble(value)).append('\n');
+		}
+		String labels = theLabels.isEmpty() ? "" : "{" + theLabels + "}";
+		thePage.append(theName).append("_count").append(labels).append(' ').append(theCount).append('\n');
+		thePage.append(theName).append("_sum").append(labels).append(' ').append(formatDouble(theSumNanos / 1e9)).append('\n');
+	}
+
+	private static ObjectNode toJson(Histogram theInterval) {
+		ObjectNode retVal = ourMapper.createObjectNode();
+		retVal.put("count", theInterval.getTotalCount());
+		if (theInterval.getTotalCount() > 0) {
+			retVal.put("mean", round(theInterval.getMean() / 1e6));
+			retVal.put("p50", round(theInterval.getValueAtPercentile(50) / 1e6));
+			retVal.put("p90", round(theInterval.getValueAtPercentile(90) / 1e6));
+			retVal.put("p99", round(theInterval.getValueAtPercentile(99) / 1e6));
+			retVal.put("max", round(theInterval.getMaxValue() / 1e6));
+		}
+		return retVal;
+	}
+
+	private static double round(double theValue) {
+		return Math.round(theValue * 1000) / 1000.0;
+	}
+
+	private static String formatDouble(double theValue) {
+		return Double.isNaN(theValue) ? "NaN" : String.format(Locale.US, "%.6f", theValue);
+	}
+
+	private static String escape(String theLabelValue) {
+		return theLabelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+	private void serve(HttpExchange theExchange) throws IOException {
+		try (theExchange) {
+			byte[] page = myPage;
+			theExchange.getResponseHeaders().add("Content-Type", CONTENT_TYPE);
+			theExchange.sendResponseHeaders(200, page.length);
+			try (OutputStream output = theExchange.getResponseBody()) {
+				output.write(page);
+			}
+		}
+	}
+
+	/**
+	 * Writes a last line for the time since the previous one, and stops the endpoint
+	 */
+	@Override
+	public void close() {
+		if (!myEnabled) {
+			return;
+		}
+		myTicker.shutdown();
+		try {
+			if (myTicker.awaitTermination(5, TimeUnit.SECONDS)) {
+				tick();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (myServer != null) {
+			myServer.stop(0);
+		}
+		if (myFileWriter != null) {
+			try {
+				myFileWriter.close();
+			} catch (IOException e) {
+				ourLog.warn("Failed to close live metrics file: {}", e.toString());
+			}
+		}
+	}
+}
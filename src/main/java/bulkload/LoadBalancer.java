@@ -0,0 +1,220 @@
+package bulkload;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.text.DecimalFormat;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Chooses which of several cluster nodes each request is sent to.
+ * <p>
+ * Callers {@link #acquire() acquire} a node before sending a request and
+ * {@link #release(int, long, boolean) release} it once the response is complete, so
+ * the balancer knows how many requests each node has outstanding and how quickly it
+ * is answering. A node that fails several requests in a row is ejected for a while,
+ * unless every node has been ejected. All bookkeeping is lock-free.
+ */
+public class LoadBalancer {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(LoadBalancer.class);
+	private static final DecimalFormat ourDecimalFormat = new DecimalFormat("0.0");
+	/**
+	 * Time constant over which the peak EWMA latency decays back towards recent latencies
+	 */
+	private static final long DECAY_NANOS = TimeUnit.SECONDS.toNanos(10);
+	private final Strategy myStrategy;
+	private final Node[] myNodes;
+	private final int myEjectAfterErrors;
+	private final long myEjectNanos;
+	private final AtomicLong myRoundRobinCounter = new AtomicLong(0);
+
+	/**
+	 * @param theNodeCount       The number of nodes
+	 * @param theStrategy        How to choose a node
+	 * @param theEjectAfterErrors Number of consecutive errors after which a node is ejected, or 0 to never eject
+	 * @param theEjectMillis     How long an ejected node is left alone
+	 */
+	public LoadBalancer(int theNodeCount, Strategy theStrategy, int theEjectAfterErrors, long theEjectMillis) {
+		myStrategy = theStrategy;
+		myEjectAfterErrors = theEjectAfterErrors;
+		myEjectNanos = TimeUnit.MILLISECONDS.toNanos(theEjectMillis);
+		myNodes = new Node[theNodeCount];
+		for (int i = 0; i < theNodeCount; i++) {
+			myNodes[i] = new Node();
+		}
+	}
+
+	/**
+	 * Creates a balancer configured by the <code>bulkload.balancer</code>,
+	 * <code>bulkload.ejectAfterErrors</code> and <code>bulkload.ejectMillis</code> system properties
+	 */
+	public static LoadBalancer fromSystemProperties(int theNodeCount) {
+		Strategy strategy = Strategy.valueOf(System.getProperty("bulkload.balancer", Strategy.ROUND_ROBIN.name()).toUpperCase(Locale.US));
+		int ejectAfterErrors = Integer.getInteger("bulkload.ejectAfterErrors", 5);
+		long ejectMillis = Long.getLong("bulkload.ejectMillis", 30000L);
+		return new LoadBalancer(theNodeCount, strategy, ejectAfterErrors, ejectMillis);
+	}
+
+	/**
+	 * Chooses a node for a request. The node must be passed to
+	 * {@link #release(int, long, boolean)} once the request is complete.
+	 */
+	public int acquire() {
+		long now = System.nanoTime();
+		int retVal;
+		switch (myStrategy) {
+			case LEAST_OUTSTANDING:
+				retVal = chooseLowestCost(now, false);
+				break;
+			case PEAK_EWMA:
+				retVal = chooseLowestCost(now, true);
+				break;
+			case ROUND_ROBIN:
+			default:
+				retVal = chooseRoundRobin(now);
+				break;
+		}
+
+		myNodes[retVal].myOutstanding.incrementAndGet();
+		myNodes[retVal].myRequests.increment();
+		return retVal;
+	}
+
+	public void release(int theNode, long theLatencyNanos, boolean theSuccess) {
+		Node node = myNodes[theNode];
+		node.myOutstanding.decrementAndGet();
+		node.updateLatency(System.nanoTime(), theLatencyNanos);
+
+		if (theSuccess) {
+			node.myConsecutiveErrors.set(0);
+		} else {
+			node.myErrors.increment();
+			int errors = node.myConsecutiveErrors.incrementAndGet();
+			if (myEjectAfterErrors > 0 && errors >= myEjectAfterErrors) {
+				node.myConsecutiveErrors.set(0);
+				node.myEjectedUntilNanos = System.nanoTime() + myEjectNanos;
+				ourLog.warn("Ejecting node {} for {}ms after {} consecutive errors", theNode, TimeUnit.NANOSECONDS.toMillis(myEjectNanos), errors);
+			}
+		}
+	}
+
+	/**
+	 * Describes the share of requests each node received since the last time this was called
+	 */
+	public String describeShareAndClear(List<String> theNodeNames) {
+		long[] requests = new long[myNodes.length];
+		long[] errors = new long[myNodes.length];
+		long total = 0;
+		for (int i = 0; i < myNodes.length; i++) {
+			requests[i] = myNodes[i].myRequests.sumThenReset();
+			errors[i] = myNodes[i].myErrors.sumThenReset();
+			total += requests[i];
+		}
+
+		long now = System.nanoTime();
+		StringBuilder retVal = new StringBuilder();
+		retVal.append(myStrategy.name().toLowerCase(Locale.US)).append(" request share:");
+		for (int i = 0; i < myNodes.length; i++) {
+			retVal.append("\n * ").append(theNodeNames.get(i)).append(" - ");
+			retVal.append(ourDecimalFormat.format(total > 0 ? 100.0 * requests[i] / total : 0)).append("% (");
+			retVal.append(requests[i]).append(" requests, ").append(errors[i]).append(" errors, peak EWMA ");
+			retVal.append(ourDecimalFormat.format(myNodes[i].getPeakEwmaNanos(now) / 1000000.0)).append("ms)");
+			if (myNodes[i].isEjected(now)) {
+				retVal.append(" EJECTED");
+			}
+		}
+		return retVal.toString();
+	}
+
+	private int chooseRoundRobin(long theNow) {
+		for (int attempt = 0; attempt < myNodes.length; attempt++) {
+			int candidate = (int) (myRoundRobinCounter.incrementAndGet() % myNodes.length);
+			if (!myNodes[candidate].isEjected(theNow)) {
+				return candidate;
+			}
+		}
+		return (int) (myRoundRobinCounter.incrementAndGet() % myNodes.length);
+	}
+
+	/**
+	 * Picks the node with the fewest outstanding requests, weighted by its peak EWMA
+	 * latency if requested. Scanning starts at a random node so ties are spread out.
+	 */
+	private int chooseLowestCost(long theNow, boolean theWeightByLatency) {
+		int start = ThreadLocalRandom.current().nextInt(myNodes.length);
+		int retVal = -1;
+		double lowestCost = Double.MAX_VALUE;
+		for (int pass = 0; pass < 2 && retVal == -1; pass++) {
+			for (int i = 0; i < myNodes.length; i++) {
+				int candidate = (start + i) % myNodes.length;
+				Node node = myNodes[candidate];
+				// On the second pass every node is ejected, so use them anyway
+				if (pass == 0 && node.isEjected(theNow)) {
+					continue;
+				}
+				double cost = node.myOutstanding.get() + 1;
+				if (theWeightByLatency) {
+					cost *= Math.max(1.0, node.getPeakEwmaNanos(theNow));
+				}
+				if (cost < lowestCost) {
+					lowestCost = cost;
+					retVal = candidate;
+				}
+			}
+		}
+		return retVal;
+	}
+
+	public enum Strategy {
+		ROUND_ROBIN,
+		LEAST_OUTSTANDING,
+		PEAK_EWMA
+	}
+
+	private static class Node {
+
+		private final AtomicInteger myOutstanding = new AtomicInteger(0);
+		private final AtomicInteger myConsecutiveErrors = new AtomicInteger(0);
+		private final LongAdder myRequests = new LongAdder();
+		private final LongAdder myErrors = new LongAdder();
+		private final AtomicLong myPeakEwmaBits = new AtomicLong(Double.doubleToLongBits(0));
+		private final AtomicLong myLastUpdateNanos = new AtomicLong(System.nanoTime());
+		private volatile long myEjectedUntilNanos;
+
+		public boolean isEjected(long theNow) {
+			return myEjectedUntilNanos - theNow > 0;
+		}
+
+		/**
+		 * A latency above the current average replaces it immediately, while lower
+		 * latencies only pull the average down gradually, so a node that stalls is
+		 * avoided straight away and only trusted again once it has recovered.
+		 */
+		public void updateLatency(long theNow, long theLatencyNanos) {
+			double weight = decayWeight(theNow, myLastUpdateNanos.getAndSet(theNow));
+			while (true) {
+				long currentBits = myPeakEwmaBits.get();
+				double current = Double.longBitsToDouble(currentBits);
+				double next = theLatencyNanos > current ? theLatencyNanos : current * weight + theLatencyNanos * (1.0 - weight);
+				if (myPeakEwmaBits.compareAndSet(currentBits, Double.doubleToLongBits(next))) {
+					return;
+				}
+			}
+		}
+
+		public double getPeakEwmaNanos(long theNow) {
+			return Double.longBitsToDouble(myPeakEwmaBits.get()) * decayWeight(theNow, myLastUpdateNanos.get());
+		}
+
+		private static double decayWeight(long theNow, long theLastUpdate) {
+			return Math.exp(-Math.max(0, theNow - theLastUpdate) / (double) DECAY_NANOS);
+		}
+	}
+}
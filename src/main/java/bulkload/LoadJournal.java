@@ -0,0 +1,272 @@
+package bulkload;
+
+import com.google.common.hash.Hashing;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Persistent record of which files have been loaded, so that an interrupted load can
+ * be restarted without uploading everything again.
+ * <p>
+ * The journal is a memory-mapped hash table of the fingerprints of the files that have
+ * been loaded, with 8 byte slots and linear probing. Files are found by fingerprint
+ * rather than by their position in the directory walk, whose order isn't specified,
+ * so adding, removing or reordering files between runs only affects those files.
+ * Checking a file never blocks, and marking one only contends with other threads
+ * marking files. The table is kept at most half full, and is doubled by writing a new
+ * one next to it and moving it into place, so a crash part way through leaves the old
+ * one intact. Writes reach the page cache immediately, so they survive the JVM dying,
+ * and are forced to disk periodically in the background.
+ */
+public final class LoadJournal implements Closeable {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(LoadJournal.class);
+	private static final long MAGIC = 0x53594e4a524e4c32L;
+	/**
+	 * Journals written before files were found by fingerprint, with one slot per position in the walk
+	 */
+	private static final long POSITIONAL_MAGIC = 0x53594e4a524e4c31L;
+	private static final int HEADER_BYTES = 16;
+	private static final int MIN_SLOTS = 1024;
+	private static final VarHandle ourSlots = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+	private final Path myFile;
+	private final ScheduledExecutorService myFlusher;
+	private volatile Table myTable;
+	private volatile int myCount;
+
+	/**
+	 * @param theFile          The journal file, which is created if it doesn't exist
+	 * @param theExpectedFiles The number of files that will be walked, which sizes the
+	 *                         table. More can be marked, the table grows as needed.
+	 */
+	public LoadJournal(Path theFile, int theExpectedFiles) throws IOException {
+		myFile = theFile;
+
+		long[] fingerprints = new long[0];
+		if (Files.exists(theFile) && Files.size(theFile) >= HEADER_BYTES) {
+			try (FileChannel channel = FileChannel.open(theFile, StandardOpenOption.READ)) {
+				ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.nativeOrder());
+				channel.read(header, 0);
+				header.flip();
+				long magic = header.getLong();
+				Validate.isTrue(magic == MAGIC || magic == POSITIONAL_MAGIC, "%s is not a load journal", theFile);
+				int slots = (int) header.getLong();
+				if (magic == MAGIC) {
+					myTable = Table.open(theFile, slots);
+					myCount = myTable.count();
+				} else {
+					ourLog.info("Converting load journal {} to look files up by fingerprint", theFile);
+					fingerprints = new Table(channel, channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES + 8L * slots), slots).fingerprints(0);
+				}
+			}
+		}
+
+		int expected = Math.max(theExpectedFiles, fingerprints.length + myCount);
+		if (myTable == null || myTable.mySlots < slotsFor(expected)) {
+			if (myTable != null) {
+				fingerprints = myTable.fingerprints(myCount);
+				myTable.myChannel.close();
+			}
+			rebuild(fingerprints, slotsFor(expected));
+		}
+
+		myFlusher = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread retVal = new Thread(r, "journal-flush");
+			retVal.setDaemon(true);
+			return retVal;
+		});
+		myFlusher.scheduleWithFixedDelay(() -> myTable.myBuffer.force(), 5, 5, TimeUnit.SECONDS);
+
+		ourLog.info("Using load journal {} with {} completed files", theFile, myCount);
+	}
+
+	public boolean isComplete(long theFingerprint) {
+		Table table = myTable;
+		for (int i = table.indexOf(theFingerprint); ; i = (i + 1) & (table.mySlots - 1)) {
+			long next = table.get(i);
+			if (next == theFingerprint) {
+				return true;
+			}
+			if (next == 0) {
+				return false;
+			}
+		}
+	}
+
+	public synchronized void markComplete(long theFingerprint) {
+		Table table = myTable;
+		for (int i = table.indexOf(theFingerprint); ; i = (i + 1) & (table.mySlots - 1)) {
+			long next = table.get(i);
+			if (next == theFingerprint) {
+				return;
+			}
+			if (next == 0) {
+				table.set(i, theFingerprint);
+				break;
+			}
+		}
+
+		myCount++;
+		if (myCount > table.mySlots / 2) {
+			try {
+				long[] fingerprints = table.fingerprints(myCount);
+				rebuild(fingerprints, table.mySlots * 2);
+				table.myChannel.close();
+			} catch (IOException e) {
+				// The file is marked in the current table, which just stays fuller than it should
+				ourLog.warn("Failed to grow load journal {}: {}", myFile, e.toString());
+			}
+		}
+	}
+
+	public int countCompleted() {
+		return myCount;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		myFlusher.shutdown();
+		myTable.myBuffer.force();
+		myTable.myChannel.close();
+	}
+
+	/**
+	 * Writes a new table holding the given fingerprints next to the journal, and then
+	 * moves it over the journal and switches to it. The journal is untouched until the
+	 * new table is complete and on disk.
+	 */
+	private void rebuild(long[] theFingerprints, int theSlots) throws IOException {
+		Path temp = myFile.resolveSibling(myFile.getFileName() + ".tmp");
+		try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			Table table = new Table(channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES + 8L * theSlots), theSlots);
+			table.myBuffer.putLong(0, MAGIC);
+			table.myBuffer.putLong(8, theSlots);
+			int count = 0;
+			for (long next : theFingerprints) {
+				int i = table.indexOf(next);
+				while (table.get(i) != 0 && table.get(i) != next) {
+					i = (i + 1) & (theSlots - 1);
+				}
+				if (table.get(i) == 0) {
+					table.set(i, next);
+					count++;
+				}
+			}
+			table.myBuffer.force();
+			myCount = count;
+		}
+		Files.move(temp, myFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		myTable = Table.open(myFile, theSlots);
+	}
+
+	/**
+	 * @return The number of slots that keeps the table at most half full with the given number of files
+	 */
+	private static int slotsFor(int theFiles) {
+		int retVal = MIN_SLOTS;
+		while (retVal / 2 < theFiles) {
+			retVal *= 2;
+		}
+		return retVal;
+	}
+
+	/**
+	 * Identifies a file by its name, size and modification time. This only needs a
+	 * stat call, so finished files can be skipped on restart without reading them.
+	 * The result is never 0, which marks an empty slot.
+	 */
+	public static long fingerprint(Path thePath) throws IOException {
+		BasicFileAttributes attributes = Files.readAttributes(thePath, BasicFileAttributes.class);
+		long retVal = Hashing
+			.murmur3_128()
+			.newHasher()
+			.putString(thePath.getFileName().toString(), StandardCharsets.UTF_8)
+			.putLong(attributes.size())
+			.putLong(attributes.lastModifiedTime().toMillis())
+			.hash()
+			.asLong();
+		return retVal != 0 ? retVal : 1;
+	}
+
+	/**
+	 * One mapping of the journal file
+	 */
+	private static class Table {
+
+		private final FileChannel myChannel;
+		private final MappedByteBuffer myBuffer;
+		private final int mySlots;
+
+		private Table(FileChannel theChannel, MappedByteBuffer theBuffer, int theSlots) {
+			myChannel = theChannel;
+			myBuffer = theBuffer;
+			myBuffer.order(ByteOrder.nativeOrder());
+			mySlots = theSlots;
+		}
+
+		private static Table open(Path theFile, int theSlots) throws IOException {
+			Validate.isTrue(theSlots > 0 && Integer.bitCount(theSlots) == 1, "%s has a corrupt header", theFile);
+			FileChannel channel = FileChannel.open(theFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			return new Table(channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES + 8L * theSlots), theSlots);
+		}
+
+		/**
+		 * The fingerprint is already a hash, so its low bits are as good a slot as any
+		 */
+		private int indexOf(long theFingerprint) {
+			return (int) theFingerprint & (mySlots - 1);
+		}
+
+		private long get(int theIndex) {
+			return (long) ourSlots.getVolatile(myBuffer, HEADER_BYTES + 8 * theIndex);
+		}
+
+		private void set(int theIndex, long theFingerprint) {
+			ourSlots.setRelease(myBuffer, HEADER_BYTES + 8 * theIndex, theFingerprint);
+		}
+
+		private int count() {
+			int retVal = 0;
+			for (int i = 0; i < mySlots; i++) {
+				if (get(i) != 0) {
+					retVal++;
+				}
+			}
+			return retVal;
+		}
+
+		/**
+		 * @param theCount The number of fingerprints in the table, or 0 if it isn't known
+		 */
+		private long[] fingerprints(int theCount) {
+			long[] retVal = new long[theCount > 0 ? theCount : count()];
+			int found = 0;
+			for (int i = 0; i < mySlots && found < retVal.length; i++) {
+				long next = get(i);
+				if (next != 0) {
+					retVal[found++] = next;
+				}
+			}
+			return retVal;
+		}
+	}
+}
@@ -0,0 +1,393 @@
+package bulkload;
+
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Describes the passes of a scale-up test: which numbers of users to step through, how
+ * many passes to run at each step and how long each pass lasts.
+ * <p>
+ * Settings are read from the properties file named by <code>bulkload.loadProfile</code>,
+ * and any of them can be overridden with a system property of the same name prefixed
+ * with <code>bulkload.</code>, e.g. <code>-Dbulkload.passSeconds=60</code>. Without any
+ * settings the profile is the original one: 3 passes of 10 requests per user at every
+ * step from 1 to 199 users.
+ * <p>
+ * A pass is either a fixed number of requests per user or, if <code>passSeconds</code>
+ * is set, a fixed duration. Either way it may start with a warm-up window whose requests
+ * are sent but not recorded. A timed pass can instead be ended as soon as throughput is
+ * steady, judged by the coefficient of variation (standard deviation / mean) of the number
+ * of requests completed in each of the last few windows, or extended while it isn't, up to
+ * <code>maxPassSeconds</code>.
+ */
+public class LoadProfile {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(LoadProfile.class);
+
+	private final int myStartUsers;
+	private final int myMaxUsers;
+	private final int myUserStep;
+	private final int myPassesPerStep;
+	private final int myRequestsPerUser;
+	private final long myPassNanos;
+	private final long myWarmupNanos;
+	private final long myWindowNanos;
+	private final int mySteadyStateWindows;
+	private final double mySteadyStateCv;
+	private final long myMinPassNanos;
+	private final long myMaxPassNanos;
+	private final double myOpenLoopRatePerUser;
+	private final CapacitySearch myCapacitySearch;
+
+	public LoadProfile(Properties theProperties) {
+		myStartUsers = Integer.parseInt(get(theProperties, "startUsers", "1"));
+		myMaxUsers = Integer.parseInt(get(theProperties, "maxUsers", "199"));
+		myUserStep = Integer.parseInt(get(theProperties, "userStep", "1"));
+		myPassesPerStep = Integer.parseInt(get(theProperties, "passesPerStep", "3"));
+		myRequestsPerUser = Integer.parseInt(get(theProperties, "requestsPerUser", "10"));
+		myPassNanos = secondsToNanos(get(theProperties, "passSeconds", "0"));
+		myWarmupNanos = secondsToNanos(get(theProperties, "warmupSeconds", "0"));
+		myWindowNanos = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(get(theProperties, "windowMillis", "1000")));
+		mySteadyStateWindows = Integer.parseInt(get(theProperties, "steadyStateWindows", "0"));
+		mySteadyStateCv = Double.parseDouble(get(theProperties, "steadyStateCv", "0.05"));
+		myMinPassNanos = secondsToNanos(get(theProperties, "minPassSeconds", "0"));
+		myMaxPassNanos = secondsToNanos(get(theProperties, "maxPassSeconds", Double.toString(4 * myPassNanos / 1e9)));
+		myOpenLoopRatePerUser = Double.parseDouble(get(theProperties, "openLoopRatePerUser", "0"));
+
+		String search = get(theProperties, "search", "steps");
+		double sloPercentile = Double.parseDouble(get(theProperties, "sloPercentile", "99"));
+		long sloNanos = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(get(theProperties, "sloMillis", "250")));
+		double sloErrorRate = Double.parseDouble(get(theProperties, "sloErrorRate", "0.001"));
+		double searchPrecision = Double.parseDouble(get(theProperties, "searchPrecision", "0.05"));
+		int searchMaxPasses = Integer.parseInt(get(theProperties, "searchMaxPasses", "30"));
+		int searchWarmupPasses = Integer.parseInt(get(theProperties, "searchWarmupPasses", "1"));
+		switch (search) {
+			case "steps":
+				myCapacitySearch = null;
+				break;
+			case "users":
+				myCapacitySearch = new CapacitySearch(CapacitySearch.Dimension.USERS, myStartUsers, myMaxUsers, 0, myOpenLoopRatePerUser, sloPercentile, sloNanos, sloErrorRate, searchPrecision, searchMaxPasses, searchWarmupPasses);
+				break;
+			case "rate":
+				double minRate = Double.parseDouble(get(theProperties, "searchMinRate", "10"));
+				double maxRate = Double.parseDouble(get(theProperties, "searchMaxRate", "100000"));
+				myCapacitySearch = new CapacitySearch(CapacitySearch.Dimension.RATE, minRate, maxRate, myMaxUsers, 0, sloPercentile, sloNanos, sloErrorRate, searchPrecision, searchMaxPasses, searchWarmupPasses);
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown search: " + search + " - expected steps, users or rate");
+		}
+
+		Validate.isTrue(myStartUsers > 0 && myUserStep > 0 && myPassesPerStep > 0, "startUsers, userStep and passesPerStep must be positive");
+		Validate.isTrue(myPassNanos > 0 || myRequestsPerUser > 0, "Either passSeconds or requestsPerUser must be set");
+		Validate.isTrue(myWindowNanos > 0, "windowMillis must be positive");
+		Validate.isTrue(mySteadyStateWindows == 0 || mySteadyStateWindows >= 2, "steadyStateWindows must be at least 2");
+		Validate.isTrue(mySteadyStateWindows == 0 || myPassNanos > 0, "Steady state detection needs a timed pass (passSeconds)");
+		Validate.isTrue(myMinPassNanos <= Math.max(myPassNanos, myMaxPassNanos), "minPassSeconds must not be more than maxPassSeconds");
+	}
+
+	/**
+	 * Reads the profile named by <code>bulkload.loadProfile</code>, if any, along with
+	 * any <code>bulkload.*</code> overrides
+	 */
+	public static LoadProfile fromSystemProperties() {
+		Properties properties = new Properties();
+		String file = System.getProperty("bulkload.loadProfile");
+		if (file != null) {
+			try (Reader reader = new FileReader(file)) {
+				properties.load(reader);
+			} catch (IOException e) {
+				throw new InternalErrorException("Failed to read load profile " + file, e);
+			}
+		}
+		LoadProfile retVal = new LoadProfile(properties);
+		ourLog.info("Load profile: {}", retVal);
+		return retVal;
+	}
+
+	private static String get(Properties theProperties, String theKey, String theDefault) {
+		return System.getProperty("bulkload." + theKey, theProperties.getProperty(theKey, theDefault)).trim();
+	}
+
+	private static long secondsToNanos(String theSeconds) {
+		return (long) (Double.parseDouble(theSeconds) * TimeUnit.SECONDS.toNanos(1));
+	}
+
+	public int getStartUsers() {
+		return myStartUsers;
+	}
+
+	public int getMaxUsers() {
+		return myMaxUsers;
+	}
+
+	public int getUserStep() {
+		return myUserStep;
+	}
+
+	public int getPassesPerStep() {
+		return myPassesPerStep;
+	}
+
+	public boolean isSteadyStateDetection() {
+		return mySteadyStateWindows > 0;
+	}
+
+	/**
+	 * @return The capacity search to run instead of stepping through the users, or <code>null</code> to step
+	 */
+	public CapacitySearch getCapacitySearch() {
+		return myCapacitySearch;
+	}
+
+	/**
+	 * @return The rate at which each user sends requests in open-loop mode, or 0 for closed-loop
+	 */
+	public double getOpenLoopRatePerUser() {
+		return myOpenLoopRatePerUser;
+	}
+
+	/**
+	 * Starts controlling a pass that begins at the given time
+	 */
+	public PassControl newPass(long thePassStartNanos) {
+		return newPass(thePassStartNanos, myOpenLoopRatePerUser);
+	}
+
+	/**
+	 * Starts controlling a pass that begins at the given time, with its own open-loop rate
+	 *
+	 * @param theRatePerUser Requests/sec sent by each user, or 0 for closed-loop
+	 */
+	public PassControl newPass(long thePassStartNanos, double theRatePerUser) {
+		if (myPassNanos > 0) {
+			return new PassControl(thePassStartNanos, theRatePerUser, myWarmupNanos, 0, myPassNanos, myMinPassNanos, myMaxPassNanos, myWindowNanos, mySteadyStateWindows, mySteadyStateCv);
+		}
+		return new PassControl(thePassStartNanos, theRatePerUser, myWarmupNanos, myRequestsPerUser, 0, 0, 0, myWindowNanos, 0, 0);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder retVal = new StringBuilder();
+		if (myCapacitySearch != null) {
+			retVal.append(myCapacitySearch).append(", passes of ");
+		} else {
+			retVal
+				.append(myStartUsers).append(" to ").append(myMaxUsers).append(" users in steps of ").append(myUserStep)
+				.append(", ").append(myPassesPerStep).append(" passes per step of ");
+		}
+		if (myPassNanos > 0) {
+			retVal.append(myPassNanos / 1e9).append("s");
+		} else {
+			retVal.append(myRequestsPerUser).append(" requests per user");
+		}
+		if (myWarmupNanos > 0) {
+			retVal.append(" after ").append(myWarmupNanos / 1e9).append("s warm-up");
+		}
+		if (mySteadyStateWindows > 0) {
+			retVal.append(", or from ").append(myMinPassNanos / 1e9).append("s up to ").append(myMaxPassNanos / 1e9).append("s until the throughput CV over ").append(mySteadyStateWindows).append(" windows of ").append(myWindowNanos / 1_000_000).append("ms is at most ").append(mySteadyStateCv);
+		}
+		return retVal.toString();
+	}
+
+	/**
+	 * Decides when the users of one pass stop sending requests and which of their
+	 * requests are recorded. Users call {@link #hasNext(int)} before each request and
+	 * {@link #isMeasuring(long)} to know whether to record it, while the thread that
+	 * started them calls {@link #awaitEnd()} to end a timed pass.
+	 */
+	public static class PassControl {
+
+		private final long myStartNanos;
+		private final double myRatePerUser;
+		private final long myMeasureStartNanos;
+		private final int myRequestsPerUser;
+		private final long myPassNanos;
+		private final long myMinPassNanos;
+		private final long myMaxPassNanos;
+		private final long myWindowNanos;
+		private final int mySteadyStateWindows;
+		private final double mySteadyStateCv;
+		private final LongAdder myCompleted = new LongAdder();
+		private volatile boolean myStopped;
+		private double myThroughputCv = Double.NaN;
+		private boolean mySteady;
+
+		/**
+		 * @param theRatePerUser     Requests/sec sent by each user in open-loop mode, or 0 for closed-loop
+		 * @param theRequestsPerUser Number of recorded requests per user, or 0 for a timed pass
+		 * @param thePassNanos       Length of a timed pass after the warm-up, without steady state detection
+		 * @param theMinPassNanos    Shortest a timed pass may be when steady state detection ends it
+		 * @param theMaxPassNanos    Longest a timed pass may run while waiting for a steady state
+		 */
+		public PassControl(long theStartNanos, double theRatePerUser, long theWarmupNanos, int theRequestsPerUser, long thePassNanos, long theMinPassNanos, long theMaxPassNanos, long theWindowNanos, int theSteadyStateWindows, double theSteadyStateCv) {
+			myStartNanos = theStartNanos;
+			myRatePerUser = theRatePerUser;
+			myMeasureStartNanos = theStartNanos + theWarmupNanos;
+			myRequestsPerUser = theRequestsPerUser;
+			myPassNanos = thePassNanos;
+			myMinPassNanos = theMinPassNanos;
+			myMaxPassNanos = Math.max(thePassNanos, theMaxPassNanos);
+			myWindowNanos = theWindowNanos;
+			mySteadyStateWindows = theSteadyStateWindows;
+			mySteadyStateCv = theSteadyStateCv;
+		}
+
+		/**
+		 * A closed-loop pass of a fixed number of requests per user with no warm-up
+		 */
+		public static PassControl forRequests(long theStartNanos, int theRequestsPerUser) {
+			return new PassControl(theStartNanos, 0, 0, theRequestsPerUser, 0, 0, 0, TimeUnit.SECONDS.toNanos(1), 0, 0);
+		}
+
+		public long getStartNanos() {
+			return myStartNanos;
+		}
+
+		/**
+		 * @return Requests/sec sent by each user in open-loop mode, or 0 for closed-loop
+		 */
+		public double getRatePerUser() {
+			return myRatePerUser;
+		}
+
+		public long getWarmupNanos() {
+			return myMeasureStartNanos - myStartNanos;
+		}
+
+		/**
+		 * @return The number of recorded requests per user, or 0 for a timed pass
+		 */
+		public int getRequestsPerUser() {
+			return myRequestsPerUser;
+		}
+
+		/**
+		 * @return The length of a timed pass after the warm-up, without steady state detection
+		 */
+		public long getPassNanos() {
+			return myPassNanos;
+		}
+
+		/**
+		 * @param theRecordedCount The number of requests the user has recorded so far in this pass
+		 */
+		public boolean hasNext(int theRecordedCount) {
+			if (myRequestsPerUser > 0) {
+				return theRecordedCount < myRequestsPerUser;
+			}
+			return !myStopped;
+		}
+
+		/**
+		 * @return <code>true</code> if a request sent at the given time is past the warm-up and should be recorded
+		 */
+		public boolean isMeasuring(long theSendNanos) {
+			return theSendNanos >= myMeasureStartNanos;
+		}
+
+		/**
+		 * Called by users when a recorded request completes
+		 */
+		public void recordCompletion() {
+			myCompleted.increment();
+		}
+
+		/**
+		 * For a timed pass, blocks until the pass is over and then tells the users to
+		 * stop. Returns immediately for a pass of a fixed number of requests.
+		 */
+		public void awaitEnd() {
+			if (myRequestsPerUser > 0) {
+				return;
+			}
+
+			long[] windows = new long[Math.max(1, mySteadyStateWindows)];
+			int windowCount = 0;
+			long nextWindowEnd = myMeasureStartNanos;
+			sleepUntil(nextWindowEnd);
+			long lastCompleted = myCompleted.sum();
+			while (true) {
+				nextWindowEnd += myWindowNanos;
+				sleepUntil(nextWindowEnd);
+				long completed = myCompleted.sum();
+				windows[windowCount++ % windows.length] = completed - lastCompleted;
+				lastCompleted = completed;
+
+				long elapsed = nextWindowEnd - myMeasureStartNanos;
+				if (mySteadyStateWindows == 0) {
+					if (elapsed >= myPassNanos) {
+						break;
+					}
+					continue;
+				}
+				if (windowCount >= windows.length) {
+					myThroughputCv = coefficientOfVariation(windows);
+					mySteady = myThroughputCv <= mySteadyStateCv;
+					if (mySteady && elapsed >= myMinPassNanos) {
+						break;
+					}
+				}
+				if (elapsed >= myMaxPassNanos) {
+					break;
+				}
+			}
+			myStopped = true;
+		}
+
+		/**
+		 * @return The time since the end of the warm-up
+		 */
+		public long getMeasuredNanos(long theEndNanos) {
+			return Math.max(1, theEndNanos - myMeasureStartNanos);
+		}
+
+		/**
+		 * @return The coefficient of variation of the throughput over the last windows of a timed pass, or NaN if it wasn't measured
+		 */
+		public double getThroughputCv() {
+			return myThroughputCv;
+		}
+
+		/**
+		 * @return <code>true</code> if steady state detection ended a timed pass, <code>false</code> if it ran out of time or wasn't enabled
+		 */
+		public boolean isSteady() {
+			return mySteady;
+		}
+
+		private static double coefficientOfVariation(long[] theWindows) {
+			double mean = 0;
+			for (long next : theWindows) {
+				mean += next;
+			}
+			mean /= theWindows.length;
+			if (mean == 0) {
+				return Double.NaN;
+			}
+			double variance = 0;
+			for (long next : theWindows) {
+				variance += (next - mean) * (next - mean);
+			}
+			variance /= theWindows.length;
+			return Math.sqrt(variance) / mean;
+		}
+
+		private static void sleepUntil(long theNanos) {
+			long wait = theNanos - System.nanoTime();
+			while (wait > 0) {
+				LockSupport.parkNanos(wait);
+				wait = theNanos - System.nanoTime();
+			}
+		}
+	}
+}
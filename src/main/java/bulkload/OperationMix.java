@@ -0,0 +1,120 @@
+package bulkload;
+
+import org.apache.commons.lang3.Validate;
+
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The operations a test performs and how often each is chosen, e.g. 70% reads, 20%
+ * searches, 8% creates and 2% updates. Every request picks its operation independently
+ * with the calling thread's {@link ThreadLocalRandom}, so choosing never contends. The
+ * index of the chosen operation is also the index of its recorder in a
+ * {@link PassRecorder}, so each operation's latencies are kept apart.
+ */
+public class OperationMix {
+
+	private final List<String> myNames = new ArrayList<>();
+	private final List<BaseScaleupTest.IFunction> myFunctions = new ArrayList<>();
+	private final List<Double> myWeights = new ArrayList<>();
+	private double[] myCumulativeWeights = new double[0];
+
+	/**
+	 * @param theWeight The relative weight of the operation, which needn't add up to anything in particular
+	 */
+	public OperationMix add(String theName, BaseScaleupTest.IFunction theFunction, double theWeight) {
+		Validate.isTrue(theWeight > 0, "The weight of %s must be positive", theName);
+		Validate.isTrue(!myNames.contains(theName), "Duplicate operation %s", theName);
+		myNames.add(theName);
+		myFunctions.add(theFunction);
+		myWeights.add(theWeight);
+		myCumulativeWeights = Arrays.copyOf(myCumulativeWeights, myCumulativeWeights.length + 1);
+		myCumulativeWeights[myCumulativeWeights.length - 1] = (myCumulativeWeights.length > 1 ? myCumulativeWeights[myCumulativeWeights.length - 2] : 0) + theWeight;
+		return this;
+	}
+
+	/**
+	 * Creates a mix of the given operations weighted by the <code>bulkload.mix</code>
+	 * system property, e.g. <code>read:70,search:20,create:8,update:2</code>. Operations
+	 * left out of the property aren't performed, and a weight that isn't positive is an
+	 * error. Without the property every operation is equally likely.
+	 *
+	 * @param theOperations The operations by name, in the order they should be reported
+	 *                      whatever order the property lists them in
+	 */
+	public static OperationMix fromSystemProperties(Map<String, BaseScaleupTest.IFunction> theOperations) {
+		OperationMix retVal = new OperationMix();
+		String spec = System.getProperty("bulkload.mix");
+		if (spec == null || spec.isBlank()) {
+			theOperations.forEach((name, function) -> retVal.add(name, function, 1));
+			return retVal;
+		}
+
+		Map<String, Double> weights = new HashMap<>();
+		for (String next : spec.split(",")) {
+			String[] parts = next.trim().split(":");
+			Validate.isTrue(parts.length == 2, "Expected [operation]:[weight], got %s", next);
+			String name = parts[0].trim();
+			Validate.isTrue(theOperations.containsKey(name), "Unknown operation %s - expected one of %s", name, theOperations.keySet());
+			double weight = Double.parseDouble(parts[1].trim());
+			Validate.isTrue(weight > 0, "The weight of %s must be positive, got %s", name, parts[1].trim());
+			Validate.isTrue(weights.put(name, weight) == null, "Duplicate operation %s", name);
+		}
+		theOperations.forEach((name, function) -> {
+			Double weight = weights.get(name);
+			if (weight != null) {
+				retVal.add(name, function, weight);
+			}
+		});
+		Validate.isTrue(retVal.size() > 0, "bulkload.mix doesn't include any operation: %s", spec);
+		return retVal;
+	}
+
+	/**
+	 * @return The index of the operation for the next request
+	 */
+	public int next() {
+		int size = myCumulativeWeights.length;
+		if (size == 1) {
+			return 0;
+		}
+		double value = ThreadLocalRandom.current().nextDouble() * myCumulativeWeights[size - 1];
+		for (int i = 0; i < size - 1; i++) {
+			if (value < myCumulativeWeights[i]) {
+				return i;
+			}
+		}
+		return size - 1;
+	}
+
+	public int size() {
+		return myNames.size();
+	}
+
+	public String getName(int theIndex) {
+		return myNames.get(theIndex);
+	}
+
+	public BaseScaleupTest.IFunction getFunction(int theIndex) {
+		return myFunctions.get(theIndex);
+	}
+
+	@Override
+	public String toString() {
+		DecimalFormat format = new DecimalFormat("0.#");
+		double total = myCumulativeWeights.length > 0 ? myCumulativeWeights[myCumulativeWeights.length - 1] : 1;
+		StringBuilder retVal = new StringBuilder();
+		for (int i = 0; i < myNames.size(); i++) {
+			if (i > 0) {
+				retVal.append(", ");
+			}
+			retVal.append(myNames.get(i)).append(' ').append(format.format(myWeights.get(i) * 100 / total)).append('%');
+		}
+		return retVal.toString();
+	}
+}
@@ -0,0 +1,400 @@
+package bulkload;
+
+import org.HdrHistogram.Histogram;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+
+/**
+ * Records the latencies and their phases, response sizes, Bundle sizes and write conflicts seen by a single worker during a pass.
+ * Each worker owns its own instance so recording never contends, and the
+ * recorders are merged using {@link #add(PassRecorder)} once the pass is over.
+ * <p>
+ * When a test mixes several operations each worker records every operation separately,
+ * and the merged recorder keeps the recorder of each operation (see
+ * {@link #getOperation(int)}) alongside the totals.
+ */
+public class PassRecorder {
+
+	/**
+	 * Number of significant decimal digits kept by the histograms. Values are
+	 * recorded in nanoseconds, so this gives 0.1% precision across the whole range.
+	 */
+	private static final int SIGNIFICANT_DIGITS = 3;
+	private final Histogram myLatency = newHistogram();
+	private final Histogram myCorrectedLatency = newHistogram();
+	private final Histogram myFailedCorrectedLatency = newHistogram();
+	private final Histogram myResponseSize = newHistogram();
+	private final Histogram myWireResponseSize = newHistogram();
+	private final Histogram myBundleEntries = newHistogram();
+	private final Histogram myBundleTotal = newHistogram();
+	private final Histogram myConflictLatency = newHistogram();
+	private final Histogram myPreconditionFailedLatency = newHistogram();
+	private final Histogram myLeaseLatency = newHistogram();
+	private final Histogram myConnectLatency = newHistogram();
+	private final Histogram myWriteLatency = newHistogram();
+	private final Histogram myFirstByteLatency = newHistogram();
+	private final Histogram myDownloadLatency = newHistogram();
+	private final Histogram myPoolLeased = newHistogram();
+	private final Histogram myPoolAvailable = newHistogram();
+	private final Histogram myPoolPending = newHistogram();
+	private final List<PassRecorder> myOperations = new ArrayList<>();
+	private long myErrors;
+	private long myConnectionsNotKeptAlive;
+	private long myPrewarmedConnections;
+	private long myClientCpuNanos;
+
+	/**
+	 * Records a request, whether it succeeded or not
+	 *
+	 * @param theLatencyNanos          Time from the actual send until the response was consumed
+	 * @param theCorrectedLatencyNanos Time from the intended send until the response was consumed
+	 */
+	public void recordLatency(long theLatencyNanos, long theCorrectedLatencyNanos, boolean theSuccess) {
+		myLatency.recordValue(Math.max(1, theLatencyNanos));
+		myCorrectedLatency.recordValue(Math.max(1, theCorrectedLatencyNanos));
+		if (!theSuccess) {
+			myErrors++;
+			myFailedCorrectedLatency.recordValue(Math.max(1, theCorrectedLatencyNanos));
+		}
+	}
+
+	/**
+	 * @param theWireBytes    Size of the body as received, before undoing any content encoding
+	 * @param theDecodedBytes Size of the body after undoing any content encoding
+	 */
+	public void recordResponseSize(long theWireBytes, long theDecodedBytes) {
+		myWireResponseSize.recordValue(theWireBytes);
+		myResponseSize.recordValue(theDecodedBytes);
+	}
+
+	/**
+	 * @param theEntries Number of entries in a Bundle response
+	 * @param theTotal   The Bundle's <code>total</code>, or -1 if it didn't have one
+	 */
+	public void recordBundle(long theEntries, long theTotal) {
+		myBundleEntries.recordValue(theEntries);
+		if (theTotal >= 0) {
+			myBundleTotal.recordValue(theTotal);
+		}
+	}
+
+	/**
+	 * Records a write the server refused because another write to the same resource got
+	 * there first. The request is retried, so this is latency on top of what
+	 * {@link #recordLatency(long, long, boolean)} sees as a single request.
+	 *
+	 * @param theStatus      409 (Conflict) or 412 (Precondition Failed)
+	 * @param theLatencyNanos Time from sending the refused request until the response was consumed
+	 */
+	public void recordConflict(int theStatus, long theLatencyNanos) {
+		Histogram histogram = theStatus == 412 ? myPreconditionFailedLatency : myConflictLatency;
+		histogram.recordValue(Math.max(1, theLatencyNanos));
+	}
+
+	/**
+	 * Records where the time of a request on the blocking client went (see {@link RequestPhases})
+	 *
+	 * @param theConnectNanos Time spent opening a new connection, or -1 if the leased connection was already open
+	 * @param theKeptAlive    Whether the connection was still open, and so could be reused, once the request was done
+	 */
+	public void recordPhases(long theLeaseNanos, long theConnectNanos, long theWriteNanos, long theFirstByteNanos, long theDownloadNanos, boolean theKeptAlive) {
+		myLeaseLatency.recordValue(Math.max(1, theLeaseNanos));
+		if (theConnectNanos >= 0) {
+			myConnectLatency.recordValue(Math.max(1, theConnectNanos));
+		}
+		myWriteLatency.recordValue(Math.max(1, theWriteNanos));
+		myFirstByteLatency.recordValue(Math.max(1, theFirstByteNanos));
+		myDownloadLatency.recordValue(Math.max(1, theDownloadNanos));
+		if (!theKeptAlive) {
+			myConnectionsNotKeptAlive++;
+		}
+	}
+
+	/**
+	 * @param theConnections The number of connections opened ahead of the pass
+	 */
+	public void recordPrewarm(int theConnections) {
+		myPrewarmedConnections += theConnections;
+	}
+
+	/**
+	 * Records one sample of the blocking client's connection pool
+	 *
+	 * @param theLeased    Connections handed out to requests
+	 * @param theAvailable Idle connections kept open for reuse
+	 * @param thePending   Requests waiting for a connection
+	 */
+	public void recordPoolSample(int theLeased, int theAvailable, int thePending) {
+		myPoolLeased.recordValue(theLeased);
+		myPoolAvailable.recordValue(theAvailable);
+		myPoolPending.recordValue(thePending);
+	}
+
+	/**
+	 * @param theCpuNanos CPU time the client process spent on the requests recorded here
+	 */
+	public void recordClientCpu(long theCpuNanos) {
+		myClientCpuNanos += theCpuNanos;
+	}
+
+	public void add(PassRecorder theOther) {
+		List<Histogram> others = theOther.getHistograms();
+		List<Histogram> histograms = getHistograms();
+		for (int i = 0; i < histograms.size(); i++) {
+			histograms.get(i).add(others.get(i));
+		}
+		myErrors += theOther.myErrors;
+		myConnectionsNotKeptAlive += theOther.myConnectionsNotKeptAlive;
+		myPrewarmedConnections += theOther.myPrewarmedConnections;
+		myClientCpuNanos += theOther.myClientCpuNanos;
+		for (int i = 0; i < theOther.myOperations.size(); i++) {
+			getOperation(i).add(theOther.myOperations.get(i));
+		}
+	}
+
+	/**
+	 * Adds what one operation of a mix recorded, both to the totals and to the recorder
+	 * of that operation
+	 */
+	public void addOperation(int theIndex, PassRecorder theOperation) {
+		add(theOperation);
+		getOperation(theIndex).add(theOperation);
+	}
+
+	/**
+	 * @param theOperations The recorder of each operation of a mix, by index
+	 * @return The totals along with the recorder of each operation, or the only recorder
+	 * if there is just one operation
+	 */
+	public static PassRecorder ofOperations(PassRecorder[] theOperations) {
+		if (theOperations.length == 1) {
+			return theOperations[0];
+		}
+		PassRecorder retVal = new PassRecorder();
+		for (int i = 0; i < theOperations.length; i++) {
+			retVal.addOperation(i, theOperations[i]);
+		}
+		return retVal;
+	}
+
+	/**
+	 * Writes the raw histograms in HdrHistogram's compressed encoding, so that
+	 * recorders from several processes can be merged without losing precision
+	 */
+	public void writeTo(DataOutput theOutput) throws IOException {
+		for (Histogram next : getHistograms()) {
+			ByteBuffer buffer = ByteBuffer.allocate(next.getNeededByteBufferCapacity());
+			int length = next.encodeIntoCompressedByteBuffer(buffer);
+			theOutput.writeInt(length);
+			theOutput.write(buffer.array(), 0, length);
+		}
+		theOutput.writeLong(myErrors);
+		theOutput.writeLong(myConnectionsNotKeptAlive);
+		theOutput.writeLong(myPrewarmedConnections);
+		theOutput.writeLong(myClientCpuNanos);
+		theOutput.writeInt(myOperations.size());
+		for (PassRecorder next : myOperations) {
+			next.writeTo(theOutput);
+		}
+	}
+
+	public static PassRecorder readFrom(DataInput theInput) throws IOException {
+		PassRecorder retVal = new PassRecorder();
+		for (Histogram next : retVal.getHistograms()) {
+			byte[] bytes = new byte[theInput.readInt()];
+			theInput.readFully(bytes);
+			try {
+				next.add(Histogram.decodeFromCompressedByteBuffer(ByteBuffer.wrap(bytes), 0));
+			} catch (DataFormatException e) {
+				throw new IOException("Invalid histogram", e);
+			}
+		}
+		retVal.myErrors = theInput.readLong();
+		retVal.myConnectionsNotKeptAlive = theInput.readLong();
+		retVal.myPrewarmedConnections = theInput.readLong();
+		retVal.myClientCpuNanos = theInput.readLong();
+		int operations = theInput.readInt();
+		for (int i = 0; i < operations; i++) {
+			retVal.myOperations.add(readFrom(theInput));
+		}
+		return retVal;
+	}
+
+	public Histogram getLatency() {
+		return myLatency;
+	}
+
+	public Histogram getCorrectedLatency() {
+		return myCorrectedLatency;
+	}
+
+	/**
+	 * @return A copy of {@link #getCorrectedLatency()} without the requests that failed,
+	 * which are often quick and so would flatter the latency of a failing server
+	 */
+	public Histogram getSuccessfulCorrectedLatency() {
+		Histogram retVal = myCorrectedLatency.copy();
+		retVal.subtract(myFailedCorrectedLatency);
+		return retVal;
+	}
+
+	/**
+	 * @return Response sizes in bytes after undoing any content encoding
+	 */
+	public Histogram getResponseSize() {
+		return myResponseSize;
+	}
+
+	/**
+	 * @return Response sizes in bytes as received on the wire
+	 */
+	public Histogram getWireResponseSize() {
+		return myWireResponseSize;
+	}
+
+	/**
+	 * @return Number of entries in each Bundle response
+	 */
+	public Histogram getBundleEntries() {
+		return myBundleEntries;
+	}
+
+	/**
+	 * @return The <code>total</code> of each Bundle response that had one
+	 */
+	public Histogram getBundleTotal() {
+		return myBundleTotal;
+	}
+
+	/**
+	 * @return The number of failed requests
+	 */
+	public long getErrors() {
+		return myErrors;
+	}
+
+	/**
+	 * @return The number of requests after which the server closed the connection, so that it couldn't be reused
+	 */
+	public long getConnectionsNotKeptAlive() {
+		return myConnectionsNotKeptAlive;
+	}
+
+	/**
+	 * @return The number of connections opened ahead of the pass
+	 */
+	public long getPrewarmedConnections() {
+		return myPrewarmedConnections;
+	}
+
+	/**
+	 * @return CPU time the client processes spent on the requests recorded here
+	 */
+	public long getClientCpuNanos() {
+		return myClientCpuNanos;
+	}
+
+	/**
+	 * @return The number of operations recorded separately, which is 0 unless several operations were mixed
+	 */
+	public int getOperationCount() {
+		return myOperations.size();
+	}
+
+	/**
+	 * @return The recorder of one operation of a mix, by its index in the {@link OperationMix}
+	 */
+	public PassRecorder getOperation(int theIndex) {
+		while (myOperations.size() <= theIndex) {
+			myOperations.add(new PassRecorder());
+		}
+		return myOperations.get(theIndex);
+	}
+
+	/**
+	 * @return Latency of each write refused with a 409 (Conflict)
+	 */
+	public Histogram getConflictLatency() {
+		return myConflictLatency;
+	}
+
+	/**
+	 * @return Latency of each write refused with a 412 (Precondition Failed), meaning its
+	 * <code>If-Match</code> version was no longer current
+	 */
+	public Histogram getPreconditionFailedLatency() {
+		return myPreconditionFailedLatency;
+	}
+
+	/**
+	 * @return Time spent waiting for the pool to hand out a connection, per request
+	 */
+	public Histogram getLeaseLatency() {
+		return myLeaseLatency;
+	}
+
+	/**
+	 * @return Time spent opening each new connection
+	 */
+	public Histogram getConnectLatency() {
+		return myConnectLatency;
+	}
+
+	/**
+	 * @return Time spent sending each request
+	 */
+	public Histogram getWriteLatency() {
+		return myWriteLatency;
+	}
+
+	/**
+	 * @return Time from the end of each request until its response headers arrived
+	 */
+	public Histogram getFirstByteLatency() {
+		return myFirstByteLatency;
+	}
+
+	/**
+	 * @return Time from the response headers until each body was consumed
+	 */
+	public Histogram getDownloadLatency() {
+		return myDownloadLatency;
+	}
+
+	/**
+	 * @return Samples of the number of leased connections in the pool
+	 */
+	public Histogram getPoolLeased() {
+		return myPoolLeased;
+	}
+
+	/**
+	 * @return Samples of the number of idle connections in the pool
+	 */
+	public Histogram getPoolAvailable() {
+		return myPoolAvailable;
+	}
+
+	/**
+	 * @return Samples of the number of requests waiting for a connection
+	 */
+	public Histogram getPoolPending() {
+		return myPoolPending;
+	}
+
+	private List<Histogram> getHistograms() {
+		return List.of(myLatency, myCorrectedLatency, myFailedCorrectedLatency, myResponseSize, myWireResponseSize, myBundleEntries, myBundleTotal, myConflictLatency, myPreconditionFailedLatency, myLeaseLatency, myConnectLatency, myWriteLatency, myFirstByteLatency, myDownloadLatency, myPoolLeased, myPoolAvailable, myPoolPending);
+	}
+
+	private static Histogram newHistogram() {
+		Histogram retVal = new Histogram(SIGNIFICANT_DIGITS);
+		retVal.setAutoResize(true);
+		return retVal;
+	}
+}
@@ -0,0 +1,201 @@
+package bulkload;
+
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.util.StopWatch;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.io.IOUtils;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Collects the IDs of the patients on a server using <code>_elements=id</code> searches,
+ * so that no patient bodies are sent or parsed.
+ * <p>
+ * Servers page through search results either by offset (HAPI FHIR's
+ * <code>_getpagesoffset</code>, or <code>_offset</code>) or with an opaque cursor, and
+ * the next link of the first page shows which. With an offset the URL of every later
+ * page is known up front, so several pages are fetched at once and added in order until
+ * one comes back short. With a cursor each page has to wait for the one before it.
+ */
+public class PatientHarvester {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(PatientHarvester.class);
+	private static final ObjectMapper ourMapper = new ObjectMapper();
+	private static final Pattern OFFSET_PARAM = Pattern.compile("[?&](?:_getpagesoffset|_offset)=(\\d+)");
+	private static final long PROGRESS_LOG_MILLIS = 5000;
+
+	private final CloseableHttpClient myHttpClient;
+	private final String myBaseUrl;
+	private final int myPageSize;
+	private final int myThreads;
+	private boolean myComplete;
+
+	/**
+	 * @param thePageSize The <code>_count</code> to ask for, which the server may lower
+	 * @param theThreads  The number of pages to fetch at once when the server pages by offset
+	 */
+	public PatientHarvester(CloseableHttpClient theHttpClient, String theBaseUrl, int thePageSize, int theThreads) {
+		myHttpClient = theHttpClient;
+		myBaseUrl = theBaseUrl;
+		myPageSize = thePageSize;
+		myThreads = theThreads;
+	}
+
+	/**
+	 * @return Up to the given number of IDs (e.g. <code>Patient/123</code>), in the order the server returned them
+	 */
+	public PatientPool.Builder harvest(int theWantPatients) throws IOException, InterruptedException, ExecutionException {
+		StopWatch sw = new StopWatch();
+		ourLog.info("Harvesting up to {} patient IDs from {}...", theWantPatients, myBaseUrl);
+		PatientPool.Builder retVal = new PatientPool.Builder();
+		myComplete = false;
+
+		Page page = fetch(myBaseUrl + "/Patient?_elements=id&_count=" + myPageSize);
+		if (!add(retVal, page, theWantPatients)) {
+			Matcher offset = page.myNextUrl != null ? OFFSET_PARAM.matcher(page.myNextUrl) : null;
+			if (offset != null && offset.find() && Integer.parseInt(offset.group(1)) > 0 && myThreads > 1) {
+				harvestByOffset(retVal, page.myNextUrl, offset.start(1), offset.end(1), Integer.parseInt(offset.group(1)), theWantPatients, sw);
+			} else {
+				harvestByCursor(retVal, page, theWantPatients, sw);
+			}
+		}
+
+		ourLog.info("Harvested {} patient IDs in {}{}", retVal.size(), sw, myComplete ? ", which is every patient on the server" : "");
+		return retVal;
+	}
+
+	/**
+	 * @return <code>true</code> if the last harvest found every patient on the server
+	 */
+	public boolean isComplete() {
+		return myComplete;
+	}
+
+	private void harvestByCursor(PatientPool.Builder theIds, Page theFirstPage, int theWantPatients, StopWatch theSw) throws IOException {
+		Page page = theFirstPage;
+		long lastLog = 0;
+		while (page.myNextUrl != null) {
+			page = fetch(page.myNextUrl);
+			if (add(theIds, page, theWantPatients)) {
+				return;
+			}
+			lastLog = logProgress(theIds, theSw, lastLog);
+		}
+		myComplete = true;
+	}
+
+	/**
+	 * @param theOffsetStart Where the offset value starts in the URL of the second page
+	 * @param theOffsetEnd   Where the offset value ends in the URL of the second page
+	 * @param theStep        The offset of the second page, which is the page size the server chose
+	 */
+	private void harvestByOffset(PatientPool.Builder theIds, String theSecondPageUrl, int theOffsetStart, int theOffsetEnd, int theStep, int theWantPatients, StopWatch theSw) throws InterruptedException, ExecutionException {
+		ExecutorService executor = Executors.newFixedThreadPool(myThreads);
+		Deque<Future<Page>> inFlight = new ArrayDeque<>();
+		try {
+			long nextOffset = theStep;
+			long lastLog = 0;
+			while (true) {
+				while (inFlight.size() < myThreads && nextOffset < theWantPatients) {
+					String url = theSecondPageUrl.substring(0, theOffsetStart) + nextOffset + theSecondPageUrl.substring(theOffsetEnd);
+					inFlight.add(executor.submit(() -> fetch(url)));
+					nextOffset += theStep;
+				}
+				if (inFlight.isEmpty()) {
+					break;
+				}
+
+				Page page = inFlight.removeFirst().get();
+				if (add(theIds, page, theWantPatients)) {
+					break;
+				}
+				if (page.myEntries < theStep || page.myNextUrl == null) {
+					myComplete = true;
+					break;
+				}
+				lastLog = logProgress(theIds, theSw, lastLog);
+			}
+		} finally {
+			for (Future<Page> next : inFlight) {
+				next.cancel(true);
+			}
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if there are now as many IDs as wanted
+	 */
+	private static boolean add(PatientPool.Builder theIds, Page thePage, int theWantPatients) {
+		for (String next : thePage.myIds) {
+			if (theIds.size() >= theWantPatients) {
+				return true;
+			}
+			theIds.add(next);
+		}
+		return theIds.size() >= theWantPatients;
+	}
+
+	private static long logProgress(PatientPool.Builder theIds, StopWatch theSw, long theLastLog) {
+		if (theSw.getMillis() - theLastLog < PROGRESS_LOG_MILLIS) {
+			return theLastLog;
+		}
+		ourLog.info("Have {} patient IDs after {} - {}/sec", theIds.size(), theSw, theSw.formatThroughput(theIds.size(), TimeUnit.SECONDS));
+		return theSw.getMillis();
+	}
+
+	private Page fetch(String theUrl) throws IOException {
+		HttpGet request = new HttpGet(theUrl);
+		request.addHeader("Accept", BaseScaleupTest.CONTENT_TYPE_FHIR_JSON.getMimeType());
+		request.addHeader("Accept-Encoding", "identity");
+		try (CloseableHttpResponse response = myHttpClient.execute(request)) {
+			int status = response.getStatusLine().getStatusCode();
+			if (status < 200 || status > 299) {
+				ourLog.error("ERROR: Got HTTP status {} harvesting patients from {}", status, theUrl);
+				ourLog.error(IOUtils.toString(response.getEntity().getContent(), StandardCharsets.UTF_8));
+				throw new InternalErrorException("Bad HTTP status");
+			}
+
+			JsonNode bundle = ourMapper.readTree(response.getEntity().getContent());
+			Page retVal = new Page();
+			for (JsonNode next : bundle.path("entry")) {
+				JsonNode resource = next.path("resource");
+				if ("Patient".equals(resource.path("resourceType").asText()) && resource.hasNonNull("id")) {
+					retVal.myIds.add("Patient/" + resource.get("id").asText());
+				}
+				retVal.myEntries++;
+			}
+			for (JsonNode next : bundle.path("link")) {
+				if ("next".equals(next.path("relation").asText())) {
+					retVal.myNextUrl = next.path("url").asText(null);
+				}
+			}
+			return retVal;
+		}
+	}
+
+	private static class Page {
+
+		private final List<String> myIds = new ArrayList<>();
+		private int myEntries;
+		private String myNextUrl;
+	}
+}
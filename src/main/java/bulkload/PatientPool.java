@@ -0,0 +1,103 @@
+package bulkload;
+
+import org.apache.commons.lang3.Validate;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The IDs of the patients the tests pick from. The IDs are stored back to back as UTF-8
+ * with a table of where each one starts, which takes a few bytes per patient instead of
+ * a String object each, so the pool can hold millions. The storage is either in memory
+ * or a {@link PatientSnapshot} mapped from disk.
+ * <p>
+ * Reads use absolute gets only, so any number of threads can read at once.
+ */
+public class PatientPool {
+
+	private final ByteBuffer myIdBytes;
+	private final IntBuffer myOffsets;
+	private final int mySize;
+
+	/**
+	 * @param theIdBytes The IDs, back to back
+	 * @param theOffsets Where each ID starts in <code>theIdBytes</code>, followed by where the last one ends
+	 * @param theSize    The number of IDs
+	 */
+	public PatientPool(ByteBuffer theIdBytes, IntBuffer theOffsets, int theSize) {
+		Validate.isTrue(theOffsets.limit() > theSize, "Expected %s offsets", theSize + 1);
+		myIdBytes = theIdBytes;
+		myOffsets = theOffsets;
+		mySize = theSize;
+	}
+
+	public int size() {
+		return mySize;
+	}
+
+	public String getId(int theIndex) {
+		Validate.isTrue(theIndex >= 0 && theIndex < mySize, "No patient at index %d", theIndex);
+		int start = myOffsets.get(theIndex);
+		byte[] bytes = new byte[myOffsets.get(theIndex + 1) - start];
+		myIdBytes.get(start, bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @return A pool of the first IDs in this one, sharing its storage
+	 */
+	public PatientPool limit(int theSize) {
+		if (theSize >= mySize) {
+			return this;
+		}
+		return new PatientPool(myIdBytes, myOffsets, theSize);
+	}
+
+	/**
+	 * Collects the IDs of a new pool in memory
+	 */
+	public static class Builder {
+
+		private byte[] myIdBytes = new byte[65536];
+		private int[] myOffsets = new int[4096];
+		private int mySize;
+
+		public Builder add(String theId) {
+			byte[] id = theId.getBytes(StandardCharsets.UTF_8);
+			int start = myOffsets[mySize];
+			Validate.isTrue((long) start + id.length <= Integer.MAX_VALUE, "Too many patients for one pool");
+			if (start + id.length > myIdBytes.length) {
+				myIdBytes = Arrays.copyOf(myIdBytes, (int) Math.min(Integer.MAX_VALUE - 8, Math.max((long) myIdBytes.length * 2, start + id.length)));
+			}
+			if (mySize + 2 > myOffsets.length) {
+				myOffsets = Arrays.copyOf(myOffsets, myOffsets.length * 2);
+			}
+			System.arraycopy(id, 0, myIdBytes, start, id.length);
+			mySize++;
+			myOffsets[mySize] = start + id.length;
+			return this;
+		}
+
+		public int size() {
+			return mySize;
+		}
+
+		public PatientPool build() {
+			return new PatientPool(ByteBuffer.wrap(myIdBytes, 0, myOffsets[mySize]), IntBuffer.wrap(myOffsets, 0, mySize + 1), mySize);
+		}
+
+		/**
+		 * Writes the offsets (<code>size + 1</code> ints) followed by the IDs
+		 */
+		void writeTo(DataOutputStream theOutput) throws IOException {
+			for (int i = 0; i <= mySize; i++) {
+				theOutput.writeInt(myOffsets[i]);
+			}
+			theOutput.write(myIdBytes, 0, myOffsets[mySize]);
+		}
+	}
+}
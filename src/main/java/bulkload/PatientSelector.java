@@ -0,0 +1,193 @@
+package bulkload;
+
+import org.apache.commons.lang3.Validate;
+
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Chooses which patient in the pool each request is about. How the choices are spread
+ * over the pool decides how much of the server's data the test touches, and so how often
+ * the server has to go past its caches.
+ * <p>
+ * For the skewed distributions the popularity rank of a patient is scattered over the
+ * pool rather than following harvest order, so that the popular patients aren't also
+ * the ones that were stored next to each other.
+ */
+public class PatientSelector {
+
+	/**
+	 * An odd prime larger than any pool, so that multiplying by it modulo the pool size
+	 * visits every patient exactly once
+	 */
+	private static final long SCATTER = 2_147_483_659L;
+
+	public enum Distribution {
+		/**
+		 * Every patient in turn, which was the only behaviour before the others were added
+		 */
+		SEQUENTIAL,
+		/**
+		 * Every patient equally likely
+		 */
+		UNIFORM,
+		/**
+		 * The patient of popularity rank k is chosen with probability proportional to
+		 * 1 / k<sup>exponent</sup>
+		 */
+		ZIPF,
+		/**
+		 * A fraction of the patients (the hot set) gets a fixed share of the requests,
+		 * both spread evenly
+		 */
+		HOT_SET
+	}
+
+	private final Distribution myDistribution;
+	private final int mySize;
+	private final AtomicLong mySequentialCounter = new AtomicLong(0);
+	private final double myZipfExponent;
+	private final int myHotSetSize;
+	private final double myHotSetAccess;
+	private final double myHIntegralX1;
+	private final double myHIntegralSize;
+	private final double myS;
+
+	/**
+	 * @param theSize         The number of patients in the pool
+	 * @param theZipfExponent The exponent of the Zipf distribution, 1 being classic Zipf
+	 * @param theHotSetFraction The fraction of the patients in the hot set
+	 * @param theHotSetAccess The fraction of requests that go to the hot set
+	 */
+	public PatientSelector(int theSize, Distribution theDistribution, double theZipfExponent, double theHotSetFraction, double theHotSetAccess) {
+		Validate.isTrue(theSize > 0, "The patient pool is empty");
+		Validate.isTrue(theZipfExponent > 0, "The Zipf exponent must be positive");
+		Validate.isTrue(theHotSetFraction > 0 && theHotSetFraction <= 1, "The hot set fraction must be between 0 and 1");
+		Validate.isTrue(theHotSetAccess >= 0 && theHotSetAccess <= 1, "The hot set access fraction must be between 0 and 1");
+		myDistribution = theDistribution;
+		mySize = theSize;
+		myZipfExponent = theZipfExponent;
+		myHotSetSize = (int) Math.max(1, Math.min(theSize, Math.round(theSize * theHotSetFraction)));
+		myHotSetAccess = theHotSetAccess;
+
+		myHIntegralX1 = hIntegral(1.5) - 1;
+		myHIntegralSize = hIntegral(theSize + 0.5);
+		myS = 2 - hIntegralInverse(hIntegral(2.5) - h(2));
+	}
+
+	/**
+	 * Creates a selector configured by the <code>bulkload.patientSelection</code>,
+	 * <code>bulkload.zipfExponent</code>, <code>bulkload.hotSetFraction</code> and
+	 * <code>bulkload.hotSetAccess</code> system properties
+	 */
+	public static PatientSelector fromSystemProperties(int theSize) {
+		Distribution distribution = Distribution.valueOf(System.getProperty("bulkload.patientSelection", Distribution.UNIFORM.name()).toUpperCase(Locale.US));
+		double zipfExponent = Double.parseDouble(System.getProperty("bulkload.zipfExponent", "1.0"));
+		double hotSetFraction = Double.parseDouble(System.getProperty("bulkload.hotSetFraction", "0.1"));
+		double hotSetAccess = Double.parseDouble(System.getProperty("bulkload.hotSetAccess", "0.9"));
+		return new PatientSelector(theSize, distribution, zipfExponent, hotSetFraction, hotSetAccess);
+	}
+
+	/**
+	 * @return The index in the pool of the patient for the next request
+	 */
+	public int next() {
+		switch (myDistribution) {
+			case SEQUENTIAL:
+				return (int) (mySequentialCounter.incrementAndGet() % mySize);
+			case ZIPF:
+				return scatter(nextZipfRank());
+			case HOT_SET: {
+				ThreadLocalRandom random = ThreadLocalRandom.current();
+				int rank;
+				if (myHotSetSize == mySize || random.nextDouble() < myHotSetAccess) {
+					rank = random.nextInt(myHotSetSize);
+				} else {
+					rank = myHotSetSize + random.nextInt(mySize - myHotSetSize);
+				}
+				return scatter(rank);
+			}
+			case UNIFORM:
+			default:
+				return ThreadLocalRandom.current().nextInt(mySize);
+		}
+	}
+
+	private int scatter(int theRank) {
+		return (int) (theRank * SCATTER % mySize);
+	}
+
+	/**
+	 * Rejection-inversion sampling (Hörmann and Derflinger, "Rejection-inversion to
+	 * generate variates from monotone discrete distributions", 1996), which needs no
+	 * table however large the pool is
+	 *
+	 * @return A rank from 0 (most popular) to size - 1
+	 */
+	private int nextZipfRank() {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		while (true) {
+			double u = myHIntegralSize + random.nextDouble() * (myHIntegralX1 - myHIntegralSize);
+			double x = hIntegralInverse(u);
+			int k = (int) (x + 0.5);
+			if (k < 1) {
+				k = 1;
+			} else if (k > mySize) {
+				k = mySize;
+			}
+			if (k - x <= myS || u >= hIntegral(k + 0.5) - h(k)) {
+				return k - 1;
+			}
+		}
+	}
+
+	private double h(double theX) {
+		return Math.exp(-myZipfExponent * Math.log(theX));
+	}
+
+	private double hIntegral(double theX) {
+		double logX = Math.log(theX);
+		return helper2((1 - myZipfExponent) * logX) * logX;
+	}
+
+	private double hIntegralInverse(double theX) {
+		double t = theX * (1 - myZipfExponent);
+		if (t < -1) {
+			t = -1;
+		}
+		return Math.exp(helper1(t) * theX);
+	}
+
+	/**
+	 * log(1 + x) / x, accurate near 0
+	 */
+	private static double helper1(double theX) {
+		if (Math.abs(theX) > 1e-8) {
+			return Math.log1p(theX) / theX;
+		}
+		return 1 - theX * (0.5 - theX * (1.0 / 3 - 0.25 * theX));
+	}
+
+	/**
+	 * (exp(x) - 1) / x, accurate near 0
+	 */
+	private static double helper2(double theX) {
+		if (Math.abs(theX) > 1e-8) {
+			return Math.expm1(theX) / theX;
+		}
+		return 1 + theX * 0.5 * (1 + theX * (1.0 / 3) * (1 + 0.25 * theX));
+	}
+
+	@Override
+	public String toString() {
+		switch (myDistribution) {
+			case ZIPF:
+				return "zipf (exponent " + myZipfExponent + ")";
+			case HOT_SET:
+				return "hot set (" + myHotSetSize + " patients get " + Math.round(myHotSetAccess * 100) + "% of requests)";
+			default:
+				return myDistribution.name().toLowerCase(Locale.US);
+		}
+	}
+}
@@ -0,0 +1,147 @@
+package bulkload;
+
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import org.apache.commons.lang3.Validate;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The patient IDs harvested from a server, saved to disk so that later runs against the
+ * same server can skip the harvest. The file is memory-mapped and used directly as the
+ * storage of a {@link PatientPool}, so opening it only reads the header.
+ * <p>
+ * Layout, big-endian:
+ * <pre>
+ * int     magic
+ * int     version
+ * long    created (epoch millis)
+ * int     base URL length, followed by the base URL (UTF-8)
+ * byte    1 if the harvest found every patient on the server, 0 if it stopped early
+ * int     patient count
+ * (count + 1) * int offset into the data of each ID, followed by the end of the last one
+ * data    the IDs, back to back (UTF-8)
+ * </pre>
+ */
+public class PatientSnapshot {
+
+	private static final int MAGIC = 0x424C5053;
+	private static final int VERSION = 2;
+
+	private final File myFile;
+	private final String myBaseUrl;
+	private final long myCreated;
+	private final boolean myComplete;
+	private final PatientPool myPool;
+
+	private PatientSnapshot(File theFile, MappedByteBuffer theBuffer) {
+		myFile = theFile;
+		if (theBuffer.capacity() < 25 || theBuffer.getInt(0) != MAGIC) {
+			throw new InternalErrorException("Not a patient snapshot: " + theFile);
+		}
+		if (theBuffer.getInt(4) != VERSION) {
+			throw new InternalErrorException("Unsupported patient snapshot version " + theBuffer.getInt(4) + ": " + theFile);
+		}
+		myCreated = theBuffer.getLong(8);
+		int baseUrlLength = theBuffer.getInt(16);
+		byte[] baseUrl = new byte[baseUrlLength];
+		theBuffer.get(20, baseUrl);
+		myBaseUrl = new String(baseUrl, StandardCharsets.UTF_8);
+		myComplete = theBuffer.get(20 + baseUrlLength) != 0;
+		int count = theBuffer.getInt(21 + baseUrlLength);
+
+		int offsetsStart = 25 + baseUrlLength;
+		int dataStart = offsetsStart + (count + 1) * Integer.BYTES;
+		int dataLength = theBuffer.getInt(dataStart - Integer.BYTES);
+		if ((long) dataStart + dataLength > theBuffer.capacity()) {
+			throw new InternalErrorException("Truncated patient snapshot: " + theFile);
+		}
+		myPool = new PatientPool(theBuffer.slice(dataStart, dataLength), theBuffer.slice(offsetsStart, dataStart - offsetsStart).asIntBuffer(), count);
+	}
+
+	/**
+	 * @return The IDs, in the order they were harvested
+	 */
+	public PatientPool getPool() {
+		return myPool;
+	}
+
+	public String getBaseUrl() {
+		return myBaseUrl;
+	}
+
+	public long getCreated() {
+		return myCreated;
+	}
+
+	/**
+	 * @return <code>true</code> if the harvest found every patient on the server, so a larger pool can't be had by harvesting again
+	 */
+	public boolean isComplete() {
+		return myComplete;
+	}
+
+	public File getFile() {
+		return myFile;
+	}
+
+	/**
+	 * @return The snapshot file for a server in the given directory. The file name is the
+	 * base URL with anything that isn't safe in a file name replaced.
+	 */
+	public static File fileFor(File theDirectory, String theBaseUrl) {
+		String name = theBaseUrl.replaceFirst("^[a-zA-Z]+://", "").replaceAll("[^a-zA-Z0-9.-]+", "_");
+		return new File(theDirectory, name + ".patients");
+	}
+
+	/**
+	 * Maps an existing snapshot
+	 */
+	public static PatientSnapshot open(File theFile) throws IOException {
+		try (FileChannel channel = FileChannel.open(theFile.toPath(), StandardOpenOption.READ)) {
+			Validate.isTrue(channel.size() <= Integer.MAX_VALUE, "Patient snapshot is too large: %s", theFile);
+			// The mapping stays valid after the channel is closed
+			return new PatientSnapshot(theFile, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		}
+	}
+
+	/**
+	 * Writes a snapshot and maps it. The file is written under a temporary name and then
+	 * renamed, so that other processes never see a partial snapshot.
+	 *
+	 * @param thePatients The IDs, in the order they were harvested
+	 * @param theComplete <code>true</code> if the harvest found every patient on the server
+	 */
+	public static PatientSnapshot write(File theFile, String theBaseUrl, PatientPool.Builder thePatients, boolean theComplete) throws IOException {
+		File directory = theFile.getAbsoluteFile().getParentFile();
+		Files.createDirectories(directory.toPath());
+		File temp = File.createTempFile(theFile.getName(), ".tmp", directory);
+		try {
+			try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 65536))) {
+				byte[] baseUrl = theBaseUrl.getBytes(StandardCharsets.UTF_8);
+				output.writeInt(MAGIC);
+				output.writeInt(VERSION);
+				output.writeLong(System.currentTimeMillis());
+				output.writeInt(baseUrl.length);
+				output.write(baseUrl);
+				output.writeByte(theComplete ? 1 : 0);
+				output.writeInt(thePatients.size());
+				thePatients.writeTo(output);
+			}
+
+			Files.move(temp.toPath(), theFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temp.toPath());
+		}
+		return open(theFile);
+	}
+}
@@ -0,0 +1,148 @@
+package bulkload;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestExecutor;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Where the time of the last request made by the calling thread on the blocking client
+ * went, so that a request that waited for a pooled connection or a new TCP connection
+ * can be told apart from one that waited for the server:
+ * <ul>
+ *    <li>lease - waiting for the pool to hand out a connection</li>
+ *    <li>connect - opening a new connection, if the leased one wasn't already open</li>
+ *    <li>write - sending the request line, headers and body</li>
+ *    <li>first byte - from the end of the request until the response headers arrived,
+ *    which is mostly time spent by the server</li>
+ *    <li>download - from the response headers until the body was consumed</li>
+ * </ul>
+ * Whether the connection was kept alive, and so went back to the pool open, is recorded
+ * with them.
+ * The blocking client runs every step of a request on the calling thread, so the
+ * phases are kept in a thread local by the {@link ConnectionManager} and
+ * {@link RequestExecutor} it is built with, and recorded once the response has been
+ * consumed.
+ */
+public class RequestPhases {
+
+	private static final ThreadLocal<RequestPhases> ourCurrent = ThreadLocal.withInitial(RequestPhases::new);
+
+	private long myLeaseNanos;
+	private long myConnectNanos;
+	private long myWriteNanos;
+	private long myFirstByteNanos;
+	private long myRequestSentAt;
+	private long myHeadersReceivedAt;
+	private boolean myKeptAlive;
+
+	/**
+	 * @return The phases of the calling thread's current request
+	 */
+	public static RequestPhases current() {
+		return ourCurrent.get();
+	}
+
+	private void reset() {
+		myLeaseNanos = 0;
+		myConnectNanos = -1;
+		myWriteNanos = 0;
+		myFirstByteNanos = 0;
+		myRequestSentAt = 0;
+		myHeadersReceivedAt = 0;
+		myKeptAlive = true;
+	}
+
+	/**
+	 * Records the phases of the request whose response the calling thread has just
+	 * consumed, with the download ending now. Does nothing if the request wasn't made with
+	 * an instrumented client, or has already been recorded.
+	 */
+	public void recordTo(PassRecorder theRecorder) {
+		if (myHeadersReceivedAt == 0) {
+			return;
+		}
+		theRecorder.recordPhases(myLeaseNanos, myConnectNanos, myWriteNanos, myFirstByteNanos, System.nanoTime() - myHeadersReceivedAt, myKeptAlive);
+		myHeadersReceivedAt = 0;
+	}
+
+	/**
+	 * A pooling connection manager that times connection leases and connects, and notes
+	 * whether connections come back open
+	 */
+	public static class ConnectionManager extends PoolingHttpClientConnectionManager {
+
+		@Override
+		public ConnectionRequest requestConnection(HttpRoute theRoute, Object theState) {
+			ConnectionRequest delegate = super.requestConnection(theRoute, theState);
+			return new ConnectionRequest() {
+				@Override
+				public HttpClientConnection get(long theTimeout, TimeUnit theUnit) throws InterruptedException, ExecutionException, ConnectionPoolTimeoutException {
+					long start = System.nanoTime();
+					try {
+						return delegate.get(theTimeout, theUnit);
+					} finally {
+						// Leasing is the first step of every request
+						RequestPhases phases = current();
+						phases.reset();
+						phases.myLeaseNanos = System.nanoTime() - start;
+					}
+				}
+
+				@Override
+				public boolean cancel() {
+					return delegate.cancel();
+				}
+			};
+		}
+
+		@Override
+		public void connect(HttpClientConnection theConnection, HttpRoute theRoute, int theConnectTimeout, HttpContext theContext) throws IOException {
+			long start = System.nanoTime();
+			super.connect(theConnection, theRoute, theConnectTimeout, theContext);
+			current().myConnectNanos = System.nanoTime() - start;
+		}
+
+		@Override
+		public void releaseConnection(HttpClientConnection theConnection, Object theState, long theKeepAlive, TimeUnit theUnit) {
+			// The client closes the connection before releasing it if the server didn't keep it alive
+			current().myKeptAlive = theConnection.isOpen();
+			super.releaseConnection(theConnection, theState, theKeepAlive, theUnit);
+		}
+	}
+
+	/**
+	 * A request executor that times sending the request and waiting for the response headers
+	 */
+	public static class RequestExecutor extends HttpRequestExecutor {
+
+		@Override
+		protected HttpResponse doSendRequest(HttpRequest theRequest, HttpClientConnection theConnection, HttpContext theContext) throws IOException, HttpException {
+			long start = System.nanoTime();
+			HttpResponse retVal = super.doSendRequest(theRequest, theConnection, theContext);
+			RequestPhases phases = current();
+			phases.myRequestSentAt = System.nanoTime();
+			phases.myWriteNanos = phases.myRequestSentAt - start;
+			return retVal;
+		}
+
+		@Override
+		protected HttpResponse doReceiveResponse(HttpRequest theRequest, HttpClientConnection theConnection, HttpContext theContext) throws HttpException, IOException {
+			HttpResponse retVal = super.doReceiveResponse(theRequest, theConnection, theContext);
+			RequestPhases phases = current();
+			phases.myHeadersReceivedAt = System.nanoTime();
+			phases.myFirstByteNanos = phases.myHeadersReceivedAt - phases.myRequestSentAt;
+			return retVal;
+		}
+	}
+}
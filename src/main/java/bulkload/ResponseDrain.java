@@ -0,0 +1,440 @@
+package bulkload;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads and discards a response body while measuring it: the bytes received on the
+ * wire, the bytes after undoing any <code>gzip</code> or <code>deflate</code> content
+ * encoding, and for JSON Bundles the number of entries and the <code>total</code>.
+ * <p>
+ * The body is scanned byte by byte as it goes past rather than decoded into a String
+ * or parsed into objects, so draining a response allocates nothing once the buffers
+ * are in place. Blocking code should reuse one drain per thread via
+ * {@link #forCurrentThread()}, while non-blocking code creates one per response since
+ * its callbacks may run on any thread.
+ */
+public class ResponseDrain {
+
+	private static final ThreadLocal<ResponseDrain> ourThreadDrain = ThreadLocal.withInitial(ResponseDrain::new);
+	private static final int BUFFER_SIZE = 8192;
+	private static final byte[] ENTRY = {'e', 'n', 't', 'r', 'y'};
+	private static final byte[] TOTAL = {'t', 'o', 't', 'a', 'l'};
+
+	private static final int ENCODING_IDENTITY = 0;
+	private static final int ENCODING_GZIP = 1;
+	private static final int ENCODING_DEFLATE = 2;
+
+	private static final int FIELD_OTHER = 0;
+	private static final int FIELD_ENTRY = 1;
+	private static final int FIELD_TOTAL = 2;
+
+	private static final int GZIP_FIXED = 0;
+	private static final int GZIP_EXTRA_LENGTH = 1;
+	private static final int GZIP_EXTRA = 2;
+	private static final int GZIP_NAME = 3;
+	private static final int GZIP_COMMENT = 4;
+	private static final int GZIP_HEADER_CRC = 5;
+	private static final int GZIP_BODY = 6;
+	private static final int[] GZIP_STAGE_FLAGS = {0, 4, 4, 8, 16, 2, 0};
+
+	/**
+	 * Bytes that end a run of string content
+	 */
+	private static final boolean[] ourStringSpecial = new boolean[256];
+	/**
+	 * Bytes that matter when scanning below the top level
+	 */
+	private static final boolean[] ourStructural = new boolean[256];
+
+	static {
+		ourStringSpecial['"'] = true;
+		ourStringSpecial['\\'] = true;
+		for (char next : new char[]{'"', '{', '}', '[', ']'}) {
+			ourStructural[next] = true;
+		}
+	}
+
+	private byte[] myReadBuffer;
+	private ByteBuffer myReadByteBuffer;
+	private byte[] myInflateBuffer;
+	private ByteBuffer myInflateByteBuffer;
+	private byte[] myScanBuffer;
+	private Inflater myInflater;
+	private boolean myInflaterNowrap;
+
+	private int myEncoding;
+	private boolean myDecodeFailed;
+	private boolean myScan;
+	private long myWireBytes;
+	private long myDecodedBytes;
+
+	private int myGzipStage;
+	private int myGzipCount;
+	private int myGzipFlags;
+	private int myGzipExtraLength;
+
+	private int myDepth;
+	private boolean myInString;
+	private boolean myEscape;
+	private boolean myExpectKey;
+	private boolean myInKey;
+	private int myKeyLength;
+	private final byte[] myKey = new byte[ENTRY.length];
+	private int myField;
+	private boolean myInTotal;
+	private boolean myInEntries;
+	private boolean mySawEntries;
+	private long myEntries;
+	private long myTotal;
+
+	/**
+	 * Returns a drain that belongs to the calling thread, to be used for one response
+	 * at a time
+	 */
+	public static ResponseDrain forCurrentThread() {
+		return ourThreadDrain.get();
+	}
+
+	/**
+	 * Prepares for a new response
+	 *
+	 * @param theContentEncoding The <code>Content-Encoding</code> header, or <code>null</code>
+	 * @param theContentType     The <code>Content-Type</code> header, or <code>null</code>. Entries are only counted for JSON.
+	 */
+	public void begin(String theContentEncoding, String theContentType) {
+		if (theContentEncoding == null || theContentEncoding.equalsIgnoreCase("identity")) {
+			myEncoding = ENCODING_IDENTITY;
+		} else if (theContentEncoding.equalsIgnoreCase("gzip") || theContentEncoding.equalsIgnoreCase("x-gzip")) {
+			myEncoding = ENCODING_GZIP;
+			resetInflater(true);
+		} else if (theContentEncoding.equalsIgnoreCase("deflate")) {
+			myEncoding = ENCODING_DEFLATE;
+			resetInflater(false);
+		} else {
+			// Unknown encoding, so only the wire size is meaningful
+			myEncoding = ENCODING_IDENTITY;
+		}
+		myScan = theContentType == null || theContentType.contains("json");
+		myDecodeFailed = false;
+		myWireBytes = 0;
+		myDecodedBytes = 0;
+
+		myGzipStage = GZIP_FIXED;
+		myGzipCount = 0;
+		myGzipFlags = 0;
+		myGzipExtraLength = 0;
+
+		myDepth = 0;
+		myInString = false;
+		myEscape = false;
+		myExpectKey = false;
+		myInKey = false;
+		myKeyLength = 0;
+		myField = FIELD_OTHER;
+		myInTotal = false;
+		myInEntries = false;
+		mySawEntries = false;
+		myEntries = 0;
+		myTotal = -1;
+	}
+
+	/**
+	 * Reads the stream to the end using this drain's buffer
+	 */
+	public void drain(InputStream theContent) throws IOException {
+		if (myReadBuffer == null) {
+			myReadBuffer = new byte[BUFFER_SIZE];
+			myReadByteBuffer = ByteBuffer.wrap(myReadBuffer);
+		}
+		int count;
+		while ((count = theContent.read(myReadBuffer)) != -1) {
+			myReadByteBuffer.clear().limit(count);
+			update(myReadByteBuffer);
+		}
+	}
+
+	/**
+	 * Consumes the remaining bytes of a chunk of the body as received on the wire
+	 */
+	public void update(ByteBuffer theChunk) {
+		myWireBytes += theChunk.remaining();
+		if (myEncoding == ENCODING_IDENTITY) {
+			myDecodedBytes += theChunk.remaining();
+			scan(theChunk);
+			return;
+		}
+		if (myDecodeFailed) {
+			return;
+		}
+
+		if (myEncoding == ENCODING_GZIP) {
+			skipGzipHeader(theChunk);
+		}
+		if (!theChunk.hasRemaining() || myInflater.finished()) {
+			// Nothing left but header or trailer bytes
+			return;
+		}
+
+		if (myInflateBuffer == null) {
+			myInflateBuffer = new byte[BUFFER_SIZE];
+			myInflateByteBuffer = ByteBuffer.wrap(myInflateBuffer);
+		}
+		myInflater.setInput(theChunk);
+		try {
+			int count;
+			while ((count = myInflater.inflate(myInflateBuffer)) > 0) {
+				myDecodedBytes += count;
+				myInflateByteBuffer.clear().limit(count);
+				scan(myInflateByteBuffer);
+			}
+		} catch (DataFormatException e) {
+			// Keep counting wire bytes, the decoded size is what was decoded before the error
+			myDecodeFailed = true;
+		}
+	}
+
+	/**
+	 * Records the sizes, and the entry count and total if the response was a Bundle
+	 */
+	public void recordTo(PassRecorder theRecorder) {
+		theRecorder.recordResponseSize(myWireBytes, myDecodedBytes);
+		if (isBundle()) {
+			theRecorder.recordBundle(myEntries, myTotal);
+		}
+	}
+
+	public long getWireBytes() {
+		return myWireBytes;
+	}
+
+	public long getDecodedBytes() {
+		return myDecodedBytes;
+	}
+
+	/**
+	 * @return <code>true</code> if the body had a top level <code>entry</code> array or numeric <code>total</code>
+	 */
+	public boolean isBundle() {
+		return mySawEntries || myTotal >= 0;
+	}
+
+	public long getEntries() {
+		return myEntries;
+	}
+
+	/**
+	 * @return The top level <code>total</code>, or -1 if there wasn't one
+	 */
+	public long getTotal() {
+		return myTotal;
+	}
+
+	private void resetInflater(boolean theNowrap) {
+		if (myInflater != null && myInflaterNowrap != theNowrap) {
+			myInflater.end();
+			myInflater = null;
+		}
+		if (myInflater == null) {
+			myInflater = new Inflater(theNowrap);
+			myInflaterNowrap = theNowrap;
+		} else {
+			myInflater.reset();
+		}
+	}
+
+	/**
+	 * Steps over the variable length gzip header (RFC 1952), which {@link Inflater}
+	 * doesn't understand
+	 */
+	private void skipGzipHeader(ByteBuffer theChunk) {
+		while (myGzipStage != GZIP_BODY && theChunk.hasRemaining()) {
+			int next = theChunk.get() & 0xff;
+			boolean stageDone;
+			switch (myGzipStage) {
+				case GZIP_FIXED:
+					if (myGzipCount == 3) {
+						myGzipFlags = next;
+					}
+					stageDone = ++myGzipCount == 10;
+					break;
+				case GZIP_EXTRA_LENGTH:
+					myGzipExtraLength |= next << (8 * myGzipCount);
+					stageDone = ++myGzipCount == 2;
+					break;
+				case GZIP_EXTRA:
+					stageDone = ++myGzipCount >= myGzipExtraLength;
+					break;
+				case GZIP_NAME:
+				case GZIP_COMMENT:
+					stageDone = next == 0;
+					break;
+				case GZIP_HEADER_CRC:
+					stageDone = ++myGzipCount == 2;
+					break;
+				default:
+					throw new IllegalStateException();
+			}
+			if (stageDone) {
+				myGzipCount = 0;
+				do {
+					myGzipStage++;
+				} while (myGzipStage != GZIP_BODY && (myGzipFlags & GZIP_STAGE_FLAGS[myGzipStage]) == 0
+					|| myGzipStage == GZIP_EXTRA && myGzipExtraLength == 0);
+			}
+		}
+	}
+
+	/**
+	 * Tracks just enough JSON structure to find the top level <code>entry</code> array
+	 * and <code>total</code> number. Multi-byte UTF-8 sequences never contain ASCII
+	 * bytes, so the body can be scanned without decoding it.
+	 */
+	private void scan(ByteBuffer theChunk) {
+		if (!myScan) {
+			return;
+		}
+		if (theChunk.hasArray()) {
+			scan(theChunk.array(), theChunk.arrayOffset() + theChunk.position(), theChunk.arrayOffset() + theChunk.limit());
+			return;
+		}
+		if (myScanBuffer == null) {
+			myScanBuffer = new byte[BUFFER_SIZE];
+		}
+		for (int i = theChunk.position(); i < theChunk.limit(); i += myScanBuffer.length) {
+			int length = Math.min(myScanBuffer.length, theChunk.limit() - i);
+			theChunk.get(i, myScanBuffer, 0, length);
+			scan(myScanBuffer, 0, length);
+		}
+	}
+
+	private void scan(byte[] theBytes, int theFrom, int theTo) {
+		int i = theFrom;
+		while (i < theTo) {
+			if (myInString) {
+				if (!myInKey && !myEscape) {
+					// Most of the body is string values, which only end at a quote
+					while (i < theTo && !ourStringSpecial[theBytes[i] & 0xff]) {
+						i++;
+					}
+					if (i == theTo) {
+						return;
+					}
+				}
+				scanStringByte(theBytes[i++]);
+			} else {
+				if (myDepth > 1) {
+					// Below the top level only brackets and strings matter
+					while (i < theTo && !ourStructural[theBytes[i] & 0xff]) {
+						i++;
+					}
+					if (i == theTo) {
+						return;
+					}
+				}
+				scanByte(theBytes[i++]);
+			}
+		}
+	}
+
+	private void scanStringByte(byte theByte) {
+		if (myEscape) {
+			myEscape = false;
+			myKeyLength = Integer.MAX_VALUE;
+		} else if (theByte == '\\') {
+			myEscape = true;
+		} else if (theByte == '"') {
+			myInString = false;
+			if (myInKey) {
+				myInKey = false;
+				myField = matchKey();
+			}
+		} else if (myInKey && myKeyLength < myKey.length) {
+			myKey[myKeyLength++] = theByte;
+		} else if (myInKey) {
+			myKeyLength = Integer.MAX_VALUE;
+		}
+	}
+
+	private void scanByte(byte theByte) {
+		if (myInTotal) {
+			if (theByte >= '0' && theByte <= '9') {
+				myTotal = myTotal * 10 + (theByte - '0');
+				return;
+			}
+			myInTotal = false;
+			myField = FIELD_OTHER;
+		}
+
+		switch (theByte) {
+			case '"':
+				myInString = true;
+				if (myDepth == 1 && myExpectKey) {
+					myExpectKey = false;
+					myInKey = true;
+					myKeyLength = 0;
+				}
+				break;
+			case '{':
+				if (myDepth == 2 && myInEntries) {
+					myEntries++;
+				}
+				myDepth++;
+				if (myDepth == 1) {
+					myExpectKey = true;
+				}
+				break;
+			case '[':
+				if (myDepth == 1 && myField == FIELD_ENTRY) {
+					myInEntries = true;
+					mySawEntries = true;
+				}
+				myDepth++;
+				break;
+			case '}':
+			case ']':
+				myDepth--;
+				if (myDepth == 1) {
+					myInEntries = false;
+				}
+				break;
+			case ',':
+				if (myDepth == 1) {
+					myExpectKey = true;
+					myField = FIELD_OTHER;
+				}
+				break;
+			default:
+				if (myDepth == 1 && myField == FIELD_TOTAL && theByte >= '0' && theByte <= '9') {
+					myInTotal = true;
+					myTotal = theByte - '0';
+				}
+				break;
+		}
+	}
+
+	private int matchKey() {
+		if (myKeyLength != myKey.length) {
+			return FIELD_OTHER;
+		}
+		if (matches(ENTRY)) {
+			return FIELD_ENTRY;
+		}
+		if (matches(TOTAL)) {
+			return FIELD_TOTAL;
+		}
+		return FIELD_OTHER;
+	}
+
+	private boolean matches(byte[] theKey) {
+		for (int i = 0; i < theKey.length; i++) {
+			if (myKey[i] != theKey[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
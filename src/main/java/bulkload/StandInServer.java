@@ -0,0 +1,404 @@
+package bulkload;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.Validate;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CapabilityStatement;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.DateType;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.ExplanationOfBenefit;
+import org.hl7.fhir.r4.model.HumanName;
+import org.hl7.fhir.r4.model.Money;
+import org.hl7.fhir.r4.model.Patient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A stand-in for a FHIR server which answers the requests made by Test01 to Test06
+ * with canned payloads after a configurable delay, storing nothing but the version of
+ * each patient that has been updated. Running
+ * the tests against it shows how much of a measured latency comes from the harness
+ * itself (see {@link Calibration}).
+ * <p>
+ * Supported requests, relative to <code>/fhir</code>:
+ * <ul>
+ *    <li><code>GET metadata</code></li>
+ *    <li><code>POST</code> of a transaction bundle</li>
+ *    <li><code>GET Patient?_count=</code> (paged with <code>_offset</code>, and IDs only with <code>_elements=id</code>), <code>GET Patient/[id]</code> and <code>PUT Patient/[id]</code>, which answers 412 if its <code>If-Match</code> isn't the current version</li>
+ *    <li><code>POST Observation</code></li>
+ *    <li><code>GET ExplanationOfBenefit?patient=</code></li>
+ * </ul>
+ * Request bodies may be gzip or deflate encoded, and responses are encoded with the
+ * first of gzip and deflate that <code>Accept-Encoding</code> asks for. Responses are
+ * always JSON.
+ */
+public final class StandInServer implements Closeable {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(StandInServer.class);
+	private static final String CONTEXT = "/fhir";
+	private static final String CONTENT_TYPE = "application/fhir+json;charset=utf-8";
+	private static final ObjectMapper ourMapper = new ObjectMapper();
+	private final HttpServer myServer;
+	private final LatencyDistribution myLatency;
+	private final int myPatientCount;
+	private final byte[] myCapabilityStatement;
+	private final String myPatientTemplate;
+	private final byte[] myEobSearchResponse;
+	private final Recorder myHandlingTimes = new Recorder(3);
+	private final AtomicLong myNextId = new AtomicLong(0);
+	private final Map<String, AtomicLong> myPatientVersions = new ConcurrentHashMap<>();
+
+	/**
+	 * @param thePort         The port to listen on, or 0 to pick a free one
+	 * @param theLatency      The delay added to every response
+	 * @param thePatientCount The number of patients returned by a patient search
+	 * @param theEobsPerPage  The number of entries in an ExplanationOfBenefit search response
+	 */
+	public StandInServer(int thePort, LatencyDistribution theLatency, int thePatientCount, int theEobsPerPage) throws IOException {
+		myLatency = theLatency;
+		myPatientCount = thePatientCount;
+
+		FhirContext ctx = FhirContext.forR4Cached();
+		IParser parser = ctx.newJsonParser();
+
+		CapabilityStatement capabilityStatement = new CapabilityStatement();
+		capabilityStatement.setStatus(Enumerations.PublicationStatus.ACTIVE);
+		capabilityStatement.setFhirVersion(Enumerations.FHIRVersion._4_0_1);
+		capabilityStatement.setKind(CapabilityStatement.CapabilityStatementKind.INSTANCE);
+		myCapabilityStatement = parser.encodeResourceToString(capabilityStatement).getBytes(StandardCharsets.UTF_8);
+
+		Patient patient = new Patient();
+		patient.setId("PATIENTID");
+		patient.getMeta().setVersionId("1");
+		patient.addName(new HumanName().setFamily("Stand-In").addGiven("Patient"));
+		patient.setGender(Enumerations.AdministrativeGender.MALE);
+		patient.setBirthDateElement(new DateType("1970-01-01"));
+		patient.addIdentifier().setSystem("https://github.com/synthetichealth/synthea").setValue("PATIENTID");
+		myPatientTemplate = parser.encodeResourceToString(patient);
+
+		Bundle eobs = new Bundle();
+		eobs.setType(Bundle.BundleType.SEARCHSET);
+		eobs.setTotal(theEobsPerPage);
+		for (int i = 0; i < theEobsPerPage; i++) {
+			ExplanationOfBenefit eob = new ExplanationOfBenefit();
+			eob.setId("ExplanationOfBenefit/" + i);
+			eob.setStatus(ExplanationOfBenefit.ExplanationOfBenefitStatus.ACTIVE);
+			eob.setUse(ExplanationOfBenefit.Use.CLAIM);
+			eob.getPatient().setReference("Patient/PATIENTID");
+			eob.getType().addCoding(new Coding("http://terminology.hl7.org/CodeSystem/claim-type", "professional", "Professional"));
+			eob.addItem().setSequence(1).getProductOrService().addCoding(new Coding("http://snomed.info/sct", "185349003", "Encounter for check up"));
+			eob.addTotal().setAmount(new Money().setValue(129.16).setCurrency("USD")).getCategory().addCoding(new Coding("http://terminology.hl7.org/CodeSystem/adjudication", "submitted", "Submitted Amount"));
+			eobs.addEntry().setFullUrl("ExplanationOfBenefit/" + i).setResource(eob);
+		}
+		myEobSearchResponse = parser.encodeResourceToString(eobs).getBytes(StandardCharsets.UTF_8);
+
+		// Without this, small responses are held back by Nagle's algorithm until the
+		// client's delayed ACK, which adds ~40ms to every request
+		if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+			System.setProperty("sun.net.httpserver.nodelay", "true");
+		}
+		myServer = HttpServer.create(new InetSocketAddress(thePort), 1000);
+		myServer.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+		myServer.createContext(CONTEXT, this::handle);
+		myServer.start();
+
+		ourLog.info("Stand-in FHIR server listening at {} with latency {}", getBaseUrl(), theLatency);
+	}
+
+	public String getBaseUrl() {
+		return "http://localhost:" + myServer.getAddress().getPort() + CONTEXT;
+	}
+
+	/**
+	 * Returns the time the server spent on each request since the last call, from
+	 * receiving the request headers until the response was written and including the
+	 * added latency, in nanoseconds
+	 */
+	public Histogram getIntervalHandlingTimes() {
+		return myHandlingTimes.getIntervalHistogram();
+	}
+
+	@Override
+	public void close() {
+		myServer.stop(0);
+	}
+
+	private void handle(HttpExchange theExchange) throws IOException {
+		long start = System.nanoTime();
+		try (theExchange) {
+			String path = theExchange.getRequestURI().getPath().substring(CONTEXT.length());
+			path = path.startsWith("/") ? path.substring(1) : path;
+			String method = theExchange.getRequestMethod();
+			Map<String, String> params = parseQuery(theExchange.getRequestURI().getRawQuery());
+
+			int status = 200;
+			byte[] response;
+			if (method.equals("GET") && path.equals("metadata")) {
+				response = myCapabilityStatement;
+			} else if (method.equals("POST") && path.isEmpty()) {
+				response = transactionResponse(readBody(theExchange));
+			} else if (method.equals("GET") && path.equals("Patient")) {
+				response = patientSearchResponse(params);
+			} else if (method.equals("GET") && path.startsWith("Patient/")) {
+				String id = path.substring("Patient/".length());
+				response = patient(id).getBytes(StandardCharsets.UTF_8);
+				AtomicLong version = myPatientVersions.get(id);
+				theExchange.getResponseHeaders().add("ETag", etag(version != null ? version.get() : 1));
+			} else if (method.equals("PUT") && path.startsWith("Patient/")) {
+				response = readBody(theExchange);
+				String id = path.substring("Patient/".length());
+				AtomicLong version = myPatientVersions.computeIfAbsent(id, t -> new AtomicLong(1));
+				long current = version.get();
+				String ifMatch = theExchange.getRequestHeaders().getFirst("If-Match");
+				if (ifMatch != null && (!ifMatch.equals(etag(current)) || !version.compareAndSet(current, current + 1))) {
+					response = ("{\"resourceType\":\"OperationOutcome\",\"issue\":[{\"severity\":\"error\",\"code\":\"conflict\",\"diagnostics\":\"Version " + ifMatch + " is not the current version of Patient/" + id + "\"}]}").getBytes(StandardCharsets.UTF_8);
+					status = 412;
+				} else {
+					long newVersion = ifMatch != null ? current + 1 : version.incrementAndGet();
+					theExchange.getResponseHeaders().add("ETag", etag(newVersion));
+					theExchange.getResponseHeaders().add("Location", getBaseUrl() + "/Patient/" + id + "/_history/" + newVersion);
+				}
+			} else if (method.equals("POST") && path.equals("Observation")) {
+				response = readBody(theExchange);
+				status = 201;
+				theExchange.getResponseHeaders().add("Location", getBaseUrl() + "/Observation/" + myNextId.incrementAndGet() + "/_history/1");
+			} else if (method.equals("GET") && path.equals("ExplanationOfBenefit")) {
+				response = myEobSearchResponse;
+			} else {
+				response = ("{\"resourceType\":\"OperationOutcome\",\"issue\":[{\"severity\":\"error\",\"code\":\"not-supported\",\"diagnostics\":\"Unsupported request: " + method + " " + path + "\"}]}").getBytes(StandardCharsets.UTF_8);
+				status = 404;
+			}
+
+			long delayNanos = myLatency.nextNanos();
+			if (delayNanos > 0) {
+				TimeUnit.NANOSECONDS.sleep(delayNanos);
+			}
+
+			theExchange.getResponseHeaders().add("Content-Type", CONTENT_TYPE);
+			WireFormat.Encoding encoding = responseEncoding(theExchange.getRequestHeaders().getFirst("Accept-Encoding"));
+			if (encoding != WireFormat.Encoding.IDENTITY && response.length > 0) {
+				response = encoding.encode(response);
+				theExchange.getResponseHeaders().add("Content-Encoding", encoding.getHeaderValue());
+			}
+			theExchange.sendResponseHeaders(status, response.length > 0 ? response.length : -1);
+			try (OutputStream output = theExchange.getResponseBody()) {
+				output.write(response);
+			}
+			myHandlingTimes.recordValue(System.nanoTime() - start);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (RuntimeException e) {
+			ourLog.error("Failed to handle request", e);
+			throw e;
+		}
+	}
+
+	/**
+	 * Answers every entry in the transaction as if the resource had been created
+	 */
+	private byte[] transactionResponse(byte[] theRequest) throws IOException {
+		JsonNode entries = ourMapper.readTree(theRequest).path("entry");
+		ObjectNode response = ourMapper.createObjectNode();
+		response.put("resourceType", "Bundle");
+		response.put("type", "transaction-response");
+		ArrayNode responseEntries = response.putArray("entry");
+		for (JsonNode next : entries) {
+			String resourceType = next.path("resource").path("resourceType").asText("Basic");
+			ObjectNode entryResponse = responseEntries.addObject().putObject("response");
+			entryResponse.put("status", "201 Created");
+			entryResponse.put("location", resourceType + "/" + myNextId.incrementAndGet() + "/_history/1");
+		}
+		return ourMapper.writeValueAsBytes(response);
+	}
+
+	private byte[] patientSearchResponse(Map<String, String> theParams) {
+		int count = Integer.parseInt(theParams.getOrDefault("_count", "20"));
+		int offset = Integer.parseInt(theParams.getOrDefault("_offset", "0"));
+		int end = Math.min(myPatientCount, offset + count);
+		boolean idsOnly = "id".equals(theParams.get("_elements"));
+
+		StringBuilder retVal = new StringBuilder();
+		retVal.append("{\"resourceType\":\"Bundle\",\"type\":\"searchset\",\"total\":").append(myPatientCount);
+		if (end < myPatientCount) {
+			retVal.append(",\"link\":[{\"relation\":\"next\",\"url\":\"").append(getBaseUrl()).append("/Patient?_count=").append(count).append("&_offset=").append(end).append(idsOnly ? "&_elements=id" : "").append("\"}]");
+		}
+		retVal.append(",\"entry\":[");
+		for (int i = offset; i < end; i++) {
+			if (i > offset) {
+				retVal.append(',');
+			}
+			retVal.append("{\"fullUrl\":\"").append(getBaseUrl()).append("/Patient/").append(i).append("\",\"resource\":");
+			if (idsOnly) {
+				retVal.append("{\"resourceType\":\"Patient\",\"id\":\"").append(i).append("\"}}");
+			} else {
+				retVal.append(patient(Integer.toString(i))).append('}');
+			}
+		}
+		retVal.append("]}");
+		return retVal.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static String etag(long theVersion) {
+		return "W/\"" + theVersion + "\"";
+	}
+
+	private String patient(String theId) {
+		return myPatientTemplate.replace("PATIENTID", theId);
+	}
+
+	private static byte[] readBody(HttpExchange theExchange) throws IOException {
+		InputStream input = theExchange.getRequestBody();
+		String contentEncoding = theExchange.getRequestHeaders().getFirst("Content-Encoding");
+		if ("gzip".equalsIgnoreCase(contentEncoding)) {
+			input = new GZIPInputStream(input);
+		} else if ("deflate".equalsIgnoreCase(contentEncoding)) {
+			input = new InflaterInputStream(input);
+		}
+		return IOUtils.toByteArray(input);
+	}
+
+	private static WireFormat.Encoding responseEncoding(String theAcceptEncoding) {
+		if (theAcceptEncoding != null) {
+			for (String next : theAcceptEncoding.split(",")) {
+				String coding = next.split(";")[0].trim();
+				if (coding.equalsIgnoreCase("gzip")) {
+					return WireFormat.Encoding.GZIP;
+				} else if (coding.equalsIgnoreCase("deflate")) {
+					return WireFormat.Encoding.DEFLATE;
+				}
+			}
+		}
+		return WireFormat.Encoding.IDENTITY;
+	}
+
+	private static Map<String, String> parseQuery(String theQuery) {
+		Map<String, String> retVal = new HashMap<>();
+		if (theQuery != null) {
+			for (String next : theQuery.split("&")) {
+				int equalsIdx = next.indexOf('=');
+				if (equalsIdx > 0) {
+					retVal.put(URLDecoder.decode(next.substring(0, equalsIdx), StandardCharsets.UTF_8), URLDecoder.decode(next.substring(equalsIdx + 1), StandardCharsets.UTF_8));
+				}
+			}
+		}
+		return retVal;
+	}
+
+	/**
+	 * Starts a stand-in server configured by the <code>standin.latency</code>,
+	 * <code>standin.patients</code> and <code>standin.eobsPerPage</code> system properties
+	 */
+	public static StandInServer fromSystemProperties(int thePort) throws IOException {
+		LatencyDistribution latency = LatencyDistribution.parse(System.getProperty("standin.latency", "none"));
+		int patients = Integer.getInteger("standin.patients", 5000);
+		int eobsPerPage = Integer.getInteger("standin.eobsPerPage", 20);
+		return new StandInServer(thePort, latency, patients, eobsPerPage);
+	}
+
+	public static void main(String[] args) throws Exception {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : 8000;
+		fromSystemProperties(port);
+		Thread.currentThread().join();
+	}
+
+	/**
+	 * The delay added to each response. Parsed from one of:
+	 * <ul>
+	 *    <li><code>none</code></li>
+	 *    <li><code>fixed:[ms]</code></li>
+	 *    <li><code>uniform:[min ms]:[max ms]</code></li>
+	 *    <li><code>exponential:[mean ms]</code></li>
+	 *    <li><code>lognormal:[median ms]:[sigma]</code> - a long tail, like most real servers</li>
+	 * </ul>
+	 */
+	public static class LatencyDistribution {
+
+		private final String mySpec;
+		private final String myType;
+		private final double myFirst;
+		private final double mySecond;
+
+		private LatencyDistribution(String theSpec, String theType, double theFirst, double theSecond) {
+			mySpec = theSpec;
+			myType = theType;
+			myFirst = theFirst;
+			mySecond = theSecond;
+		}
+
+		public long nextNanos() {
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			double millis;
+			switch (myType) {
+				case "fixed":
+					millis = myFirst;
+					break;
+				case "uniform":
+					millis = myFirst + random.nextDouble() * (mySecond - myFirst);
+					break;
+				case "exponential":
+					millis = -Math.log(1.0 - random.nextDouble()) * myFirst;
+					break;
+				case "lognormal":
+					millis = myFirst * Math.exp(mySecond * random.nextGaussian());
+					break;
+				case "none":
+				default:
+					millis = 0;
+					break;
+			}
+			return (long) (millis * 1_000_000.0);
+		}
+
+		@Override
+		public String toString() {
+			return mySpec;
+		}
+
+		public static LatencyDistribution parse(String theSpec) {
+			String[] parts = theSpec.split(":");
+			String type = parts[0];
+			switch (type) {
+				case "none":
+					return new LatencyDistribution(theSpec, type, 0, 0);
+				case "fixed":
+				case "exponential":
+					Validate.isTrue(parts.length == 2, "Expected %s:[ms], got %s", type, theSpec);
+					return new LatencyDistribution(theSpec, type, Double.parseDouble(parts[1]), 0);
+				case "uniform":
+				case "lognormal":
+					Validate.isTrue(parts.length == 3, "Expected %s:[a]:[b], got %s", type, theSpec);
+					return new LatencyDistribution(theSpec, type, Double.parseDouble(parts[1]), Double.parseDouble(parts[2]));
+				default:
+					throw new IllegalArgumentException("Unknown latency distribution: " + theSpec);
+			}
+		}
+	}
+}
@@ -2,6 +2,7 @@ package bulkload;
 
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.jpa.search.reindex.BlockPolicy;
+import ca.uhn.fhir.rest.api.Constants;
 import ca.uhn.fhir.rest.client.apache.ApacheRestfulClientFactory;
 import ca.uhn.fhir.rest.client.apache.GZipContentInterceptor;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
@@ -9,34 +10,51 @@ import ca.uhn.fhir.rest.client.interceptor.BasicAuthInterceptor;
 import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
 import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
 import ca.uhn.fhir.util.StopWatch;
-import com.google.common.collect.EvictingQueue;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.Validate;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.FileEntity;
+import org.apache.http.util.EntityUtils;
 import org.hl7.fhir.r4.model.CapabilityStatement;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 
+import java.io.BufferedInputStream;
 import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.Reader;
+import java.net.SocketException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
-import java.util.Comparator;
 import java.util.List;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
 import java.util.zip.GZIPInputStream;
 
 import static org.apache.commons.lang3.StringUtils.isBlank;
@@ -44,11 +62,39 @@ import static org.apache.commons.lang3.StringUtils.isBlank;
 public class Test01_LoadDataUsingTransactions {
 	private static final Logger ourLog = LoggerFactory.getLogger(Test01_LoadDataUsingTransactions.class);
 	private static final FhirContext ourCtx;
-	private static final EvictingQueue<Long> ourLatencies = EvictingQueue.create(500);
+	private static final SlidingWindow ourLatencies = new SlidingWindow(500);
 	private static List<IGenericClient> ourClients = new ArrayList<>();
 	private static List<ThreadTiming> ourClientInvocationCounts = new ArrayList<>();
 	private static int ourMaxThreads;
-	private static int ourOffset;
+	/**
+	 * Post each file's bytes exactly as they are stored on disk instead of parsing and
+	 * re-encoding the bundle
+	 */
+	private static final boolean ourPassThrough = Boolean.getBoolean("bulkload.passThrough");
+	private static final JsonFactory ourJsonFactory = new JsonFactory();
+	/**
+	 * Re-packs bundle entries into transactions of a target size, or <code>null</code>
+	 * to send each file as one transaction
+	 */
+	private static BundleRebatcher ourRebatcher;
+	private static HttpClient ourPassThroughClient;
+	private static String ourAuthorizationHeader;
+	private static LoadJournal ourJournal;
+	private static final int ourReadThreads = Integer.getInteger("bulkload.readThreads", 2);
+	private static final int ourReadQueueCapacity = Integer.getInteger("bulkload.readQueue", 100);
+	private static final int ourSendQueueCapacity = Integer.getInteger("bulkload.sendQueue", 10);
+	/**
+	 * Adjust the number of upload threads during the load instead of using a fixed number
+	 */
+	private static final boolean ourAdaptive = Boolean.getBoolean("bulkload.adaptive");
+	/**
+	 * Chooses which client each transaction is sent with
+	 */
+	private static LoadBalancer ourBalancer;
+	/**
+	 * Per-second view of the load while it runs
+	 */
+	private static LiveMetrics ourLiveMetrics;
 
 	static {
 
@@ -61,204 +107,603 @@ public class Test01_LoadDataUsingTransactions {
 
 	private static class Uploader {
 
-		private final ThreadPoolTaskExecutor myExecutor;
+		private final Stage myReadStage;
+		private final Stage mySendStage;
+		private final AdaptiveConcurrencyLimit myLimit;
 		private final StopWatch mySw;
 		private final AtomicInteger myFilesCounter = new AtomicInteger(0);
-		private final AtomicInteger myErrorsCounter = new AtomicInteger(0);
-		private final AtomicLong myResourcesCounter = new AtomicLong(0);
-		private final AtomicInteger myClientIndex = new AtomicInteger(0);
+		private final LongAdder myErrorsCounter = new LongAdder();
+		private final LongAdder myResourcesCounter = new LongAdder();
+		private final AtomicInteger mySkippedCounter = new AtomicInteger(0);
+		/**
+		 * Fingerprints of re-batched files whose entries haven't all been sent yet
+		 */
+		private final Map<Integer, Long> myFingerprints = new ConcurrentHashMap<>();
 		private final int myPathsCount;
-
-		public Uploader(List<Path> thePaths) throws ExecutionException, InterruptedException {
-			Validate.isTrue(thePaths.size() > 0);
-
-			myExecutor = new ThreadPoolTaskExecutor();
-			myExecutor.setCorePoolSize(ourMaxThreads);
-			myExecutor.setMaxPoolSize(ourMaxThreads);
-			myExecutor.setQueueCapacity(10);
-			myExecutor.setAllowCoreThreadTimeOut(true);
-			myExecutor.setThreadNamePrefix("Uploader-");
-			myExecutor.setRejectedExecutionHandler(new BlockPolicy());
-			myExecutor.initialize();
+		/**
+		 * Formats and logs progress reports, so the upload threads only have to hand them off
+		 */
+		private final ExecutorService myReporter = Executors.newSingleThreadExecutor(r -> {
+			Thread retVal = new Thread(r, "progress-reporter");
+			retVal.setDaemon(true);
+			return retVal;
+		});
+
+		/**
+		 * @param thePaths      The files to upload. These are consumed lazily, so this can be a directory stream.
+		 * @param thePathsCount The number of files in <code>thePaths</code>, used for progress reporting
+		 */
+		public Uploader(Iterable<Path> thePaths, int thePathsCount) throws InterruptedException, IOException {
+			Validate.isTrue(thePathsCount > 0);
+
+			myReadStage = new Stage("Reader-", ourReadThreads, ourReadQueueCapacity);
+			mySendStage = new Stage("Uploader-", ourMaxThreads, ourSendQueueCapacity);
+			if (ourAdaptive) {
+				int maxThreads = Integer.getInteger("bulkload.adaptiveMaxThreads", ourMaxThreads * 4);
+				long latencyCeiling = Long.getLong("bulkload.latencyCeilingMillis", 30000L);
+				int window = Integer.getInteger("bulkload.adaptiveWindowSeconds", 10);
+				myLimit = new AdaptiveConcurrencyLimit(ourMaxThreads, maxThreads, latencyCeiling, window, mySendStage::setThreads);
+			} else {
+				myLimit = null;
+			}
 
 			mySw = new StopWatch();
-			List<Future<?>> futures = new ArrayList<>();
-			myPathsCount = thePaths.size();
+			myPathsCount = thePathsCount;
 
-			ourLog.info("Going to submit {} tasks", thePaths.size());
+			ourLog.info("Going to submit {} tasks", thePathsCount);
 
 			ourLog.info("LOAD10-LOAD500,Millis Elapsed,Hours Elapsed,Patients Uploaded,Resources Uploaded,Patients/Sec,Resources/Sec,Resources/Sec Moving Average,Errors");
 
-			for (int i = 0, thePathsSize = thePaths.size(); i < thePathsSize; i++) {
-				if (i % 1000 == 0) {
-					ourLog.info("Have submitted {} tasks", i);
+			// Submitting blocks once the read queue is full, so only a bounded number of
+			// paths are ever held in memory
+			int submitted = 0;
+			for (Path next : thePaths) {
+				long fingerprint = LoadJournal.fingerprint(next);
+				if (ourJournal.isComplete(fingerprint)) {
+					mySkippedCounter.incrementAndGet();
+					continue;
+				}
+
+				if (submitted % 1000 == 0) {
+					ourLog.info("Have submitted {} tasks", submitted);
 				}
-				Path next = thePaths.get(i);
-				futures.add(myExecutor.submit(new MyTask(next)));
+				myReadStage.submit(new ReadTask(next, submitted, fingerprint));
+				submitted++;
 			}
 
-			ourLog.info("Have submitted {} tasks in total", futures.size());
+			ourLog.info("Have submitted {} tasks in total, skipped {} files already loaded according to the journal", submitted, mySkippedCounter.get());
+
+			myReadStage.awaitCompletion();
+			mySendStage.awaitCompletion();
+			if (myLimit != null) {
+				myLimit.stop();
+			}
+			myReporter.shutdown();
+			myReporter.awaitTermination(1, TimeUnit.MINUTES);
 
-			for (Future<?> next : futures) {
-				next.get();
+			if (ourRebatcher != null) {
+				try {
+					List<BundleRebatcher.Transaction> remaining = ourRebatcher.flush();
+					BundleRebatcher.send(remaining, this::sendTransaction);
+					markComplete(remaining);
+				} catch (IOException | BaseServerResponseException e) {
+					ourLog.error("Failed to send final coalesced transaction: {}", e.toString());
+					myErrorsCounter.increment();
+				}
 			}
 
 			ourLog.info("Finished uploading {} files with {} resources in {} - {} files/sec - {} res/sec",
-				myFilesCounter.get() + ourOffset,
-				myResourcesCounter.get(),
+				myFilesCounter.get() + mySkippedCounter.get(),
+				myResourcesCounter.sum(),
 				mySw,
 				mySw.formatThroughput(myFilesCounter.get(), TimeUnit.SECONDS),
-				mySw.formatThroughput(myResourcesCounter.get(), TimeUnit.SECONDS));
+				mySw.formatThroughput(myResourcesCounter.sum(), TimeUnit.SECONDS));
 		}
 
-		private class MyTask implements Runnable {
+		/**
+		 * Marks every file that contributed entries to the given transactions as loaded.
+		 * This must only be called once all of them have been sent successfully.
+		 */
+		private void markComplete(List<BundleRebatcher.Transaction> theTransactions) {
+			for (BundleRebatcher.Transaction next : theTransactions) {
+				for (int source : next.getSources()) {
+					Long fingerprint = myFingerprints.remove(source);
+					if (fingerprint != null) {
+						ourJournal.markComplete(fingerprint);
+					}
+				}
+			}
+		}
 
-			private final Path myPath;
+		/**
+		 * Reports the end of a transaction to the balancer and the live metrics
+		 *
+		 * @param theStartMillis When the transaction was sent
+		 */
+		private void release(int theClientIndex, long theStartMillis, boolean theSuccess) {
+			long latencyNanos = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - theStartMillis);
+			ourBalancer.release(theClientIndex, latencyNanos, theSuccess);
+			ourLiveMetrics.nodeFinished(theClientIndex, latencyNanos, theSuccess);
+			ourLiveMetrics.requestFinished(latencyNanos, theSuccess);
+		}
+
+		/**
+		 * Counts a transaction that failed, and backs the adaptive limit off if the failure
+		 * looks like the server is overloaded: a timeout, a connection failure, a 429 or a
+		 * 5xx. Any other 4xx means the server refused the bundle itself, which sending
+		 * fewer bundles at once wouldn't help.
+		 */
+		private void recordFailure(Exception theException) {
+			ourLog.error("Failure: {}", theException.toString());
+			myErrorsCounter.increment();
+			if (myLimit != null && isOverload(theException)) {
+				myLimit.recordError();
+			}
+		}
+
+		private void recordTransaction(int theClientIndex, int theResourceCount, long theLatency) {
+			myResourcesCounter.add(theResourceCount);
+			ourLiveMetrics.recordResources(theResourceCount);
+			if (myLimit != null) {
+				myLimit.recordSuccess(theLatency, theResourceCount);
+			}
+
+			long resourcesPerSecond = (long) (((double) theResourceCount / (double) theLatency) * 1000.0);
+			ourClientInvocationCounts.get(theClientIndex).addInvocation(theLatency);
+			ourLatencies.add(resourcesPerSecond);
+		}
 
-			public MyTask(Path thePath) {
+		private static boolean isOverload(Exception theException) {
+			if (theException instanceof BaseServerResponseException) {
+				// Timeouts and connection failures in the FHIR client are reported as a 500
+				int status = ((BaseServerResponseException) theException).getStatusCode();
+				return status == 429 || status >= 500;
+			}
+			return theException instanceof InterruptedIOException || theException instanceof SocketException;
+		}
+
+		/**
+		 * Logs the progress lines, called every 10 files on the reporter thread
+		 */
+		private void reportProgress(int theFileCount) {
+			int latencyCount = ourLatencies.size();
+			long slidingLatency = latencyCount == 0 ? 0 : (ourLatencies.sum() * mySendStage.getThreads()) / latencyCount;
+
+			ourLog.info("Have uploaded {}/{} files with {} resources in {} - {} files/sec - {} res/sec - Sliding {} res/sec - ETA {} - {} errors",
+				myFilesCounter.get() + mySkippedCounter.get(),
+				myPathsCount,
+				myResourcesCounter.sum(),
+				mySw,
+				mySw.formatThroughput(myFilesCounter.get(), TimeUnit.SECONDS),
+				mySw.formatThroughput(myResourcesCounter.sum(), TimeUnit.SECONDS),
+				slidingLatency,
+				mySw.getEstimatedTimeRemaining(myFilesCounter.get(), myPathsCount - mySkippedCounter.get()),
+				myErrorsCounter.sum());
+			ourLog.info("LOAD10,{},{},{},{},{},{},{},{}",
+				mySw.getMillis(),
+				new DecimalFormat("0.0").format((double) mySw.getMillis() / (1000.0 * 60.0 * 60.0)),
+				myFilesCounter.get() + mySkippedCounter.get(),
+				myResourcesCounter.sum(),
+				mySw.formatThroughput(myFilesCounter.get(), TimeUnit.SECONDS),
+				mySw.formatThroughput(myResourcesCounter.sum(), TimeUnit.SECONDS),
+				slidingLatency,
+				myErrorsCounter.sum());
+			if (theFileCount % 500 == 0) {
+				ourLog.info("LOAD500,{},{},{},{},{},{},{},{}",
+					mySw.getMillis(),
+					new DecimalFormat("0.0").format((double) mySw.getMillis() / (1000.0 * 60.0 * 60.0)),
+					myFilesCounter.get() + mySkippedCounter.get(),
+					myResourcesCounter.sum(),
+					mySw.formatThroughput(myFilesCounter.get(), TimeUnit.SECONDS),
+					mySw.formatThroughput(myResourcesCounter.sum(), TimeUnit.SECONDS),
+					slidingLatency,
+					myErrorsCounter.sum());
+			}
+
+			StringBuilder timings = new StringBuilder();
+			timings.append("Timings:");
+			for (int i = 0; i < ourClientInvocationCounts.size(); i++) {
+				timings.append("\n * ");
+				timings.append(ourClients.get(i).getServerBase());
+				timings.append(" - ");
+				timings.append(ourClientInvocationCounts.get(i).describeAndClear());
+			}
+			ourLog.info(timings.toString());
+			ourLog.info("Balancer {}", ourBalancer.describeShareAndClear(ourClients.stream().map(IGenericClient::getServerBase).toList()));
+
+			ourLog.info("Pipeline:\n * {}\n * {}", myReadStage.describeAndClear(), mySendStage.describeAndClear());
+		}
+
+		/**
+		 * Sends a transaction produced by the {@link BundleRebatcher}
+		 */
+		private String sendTransaction(String theTransaction, int theEntryCount) {
+			int clientIndex = ourBalancer.acquire();
+			IGenericClient client = ourClients.get(clientIndex);
+
+			long start = System.currentTimeMillis();
+			boolean success = false;
+			String retVal;
+			ourLiveMetrics.requestStarted();
+			try {
+				retVal = client
+					.transaction()
+					.withBundle(theTransaction)
+					.execute();
+				success = true;
+			} finally {
+				release(clientIndex, start, success);
+			}
+			long latency = System.currentTimeMillis() - start;
+
+			recordTransaction(clientIndex, theEntryCount, latency);
+			return retVal;
+		}
+
+		/**
+		 * First stage of the pipeline: reads and decompresses a file, and parses it if
+		 * it is being re-batched, then hands it to the send stage
+		 */
+		private class ReadTask implements Runnable {
+
+			private final Path myPath;
+			private final int myIndex;
+			private final long myFingerprint;
+
+			/**
+			 * @param theIndex       Identifies the file to the re-batcher
+			 * @param theFingerprint The journal fingerprint of the file
+			 */
+			public ReadTask(Path thePath, int theIndex, long theFingerprint) {
 				myPath = thePath;
+				myIndex = theIndex;
+				myFingerprint = theFingerprint;
 			}
 
 			@Override
 			public void run() {
 				try {
-					String bundle;
-					if (myPath.toString().endsWith(".json.gz")) {
-						try (FileInputStream fileInputStream = new FileInputStream(myPath.toFile())) {
-							try (GZIPInputStream gzipInputStream = new GZIPInputStream(fileInputStream)) {
-								try (Reader reader = new InputStreamReader(gzipInputStream, StandardCharsets.UTF_8)) {
-									bundle = IOUtils.toString(reader);
-								} catch (IOException e) {
-									throw new InternalErrorException(e);
-								}
-							}
+					SendTask task;
+					if (ourPassThrough) {
+						// The file is streamed from disk by the send stage
+						task = new SendTask(myPath, myFingerprint, null, null);
+					} else if (ourRebatcher != null) {
+						myFingerprints.put(myIndex, myFingerprint);
+						try (InputStream bundle = openBundle()) {
+							task = new SendTask(myPath, myFingerprint, null, ourRebatcher.read(bundle, myIndex));
 						}
 					} else {
-						try (FileReader reader = new FileReader(myPath.toFile())) {
-							bundle = IOUtils.toString(reader);
-						} catch (IOException e) {
-							throw new InternalErrorException(e);
+						String bundle = readBundle();
+						if (isBlank(bundle)) {
+							myErrorsCounter.increment();
+							ourLog.error("Error: empty bundle in {}", myPath.toFile());
+							return;
+						}
+						task = new SendTask(myPath, myFingerprint, bundle, null);
+					}
+
+					mySendStage.submit(task);
+				} catch (Throwable t) {
+					myErrorsCounter.increment();
+					ourLog.error("Error reading " + myPath, t);
+				}
+			}
+
+			private InputStream openBundle() throws IOException {
+				InputStream retVal = new BufferedInputStream(new FileInputStream(myPath.toFile()));
+				if (myPath.toString().endsWith(".json.gz")) {
+					retVal = new GZIPInputStream(retVal);
+				}
+				return retVal;
+			}
+
+			private String readBundle() throws IOException {
+				if (myPath.toString().endsWith(".json.gz")) {
+					try (FileInputStream fileInputStream = new FileInputStream(myPath.toFile())) {
+						try (GZIPInputStream gzipInputStream = new GZIPInputStream(fileInputStream)) {
+							try (Reader reader = new InputStreamReader(gzipInputStream, StandardCharsets.UTF_8)) {
+								return IOUtils.toString(reader);
+							} catch (IOException e) {
+								throw new InternalErrorException(e);
+							}
 						}
 					}
-					if (isBlank(bundle)) {
-						myErrorsCounter.incrementAndGet();
-						ourLog.error("Error: empty bundle in {}", myPath.toFile());
-						return;
+				} else {
+					try (FileReader reader = new FileReader(myPath.toFile())) {
+						return IOUtils.toString(reader);
+					} catch (IOException e) {
+						throw new InternalErrorException(e);
 					}
+				}
+			}
+		}
+
+		/**
+		 * Second stage of the pipeline: sends a file that has been read to the server
+		 * and does the bookkeeping
+		 */
+		private class SendTask implements Runnable {
+
+			private final Path myPath;
+			private final long myFingerprint;
+			private final String myBundle;
+			private final List<BundleRebatcher.Transaction> myTransactions;
+
+			/**
+			 * @param thePath         The file being uploaded
+			 * @param theFingerprint  The journal fingerprint of the file
+			 * @param theBundle       The bundle contents, or <code>null</code> if the file is being re-batched or passed through
+			 * @param theTransactions The re-batched transactions, or <code>null</code> if the file isn't being re-batched
+			 */
+			public SendTask(Path thePath, long theFingerprint, String theBundle, List<BundleRebatcher.Transaction> theTransactions) {
+				myPath = thePath;
+				myFingerprint = theFingerprint;
+				myBundle = theBundle;
+				myTransactions = theTransactions;
+			}
 
+			@Override
+			public void run() {
+				try {
 					try {
-						int clientIndex = myClientIndex.incrementAndGet() % ourClients.size();
-						IGenericClient client = ourClients.get(clientIndex);
-
-						long start = System.currentTimeMillis();
-						client
-							.transaction()
-							.withBundle(bundle)
-							.execute();
-						long latency = System.currentTimeMillis() - start;
-
-						// Subtract by 1 because of the Bundle resource
-						int resourceCount = StringUtils.countMatches(bundle, "resourceType") - 1;
-						myResourcesCounter.addAndGet(resourceCount);
-
-						long resourcesPerSecond = (long) (((double) resourceCount / (double) latency) * 1000.0);
-						ourClientInvocationCounts.get(clientIndex).addInvocation(latency);
-						synchronized (ourLatencies) {
-							ourLatencies.add(resourcesPerSecond);
+						if (myTransactions != null) {
+							// A bundle that is held back to be coalesced is marked once the
+							// transaction it ends up in has been sent
+							BundleRebatcher.send(myTransactions, Uploader.this::sendTransaction);
+							markComplete(myTransactions);
+						} else {
+							int clientIndex = ourBalancer.acquire();
+							IGenericClient client = ourClients.get(clientIndex);
+
+							long start = System.currentTimeMillis();
+							boolean success = false;
+							int resourceCount;
+							ourLiveMetrics.requestStarted();
+							try {
+								if (ourPassThrough) {
+									resourceCount = postFile(client.getServerBase());
+								} else {
+									client
+										.transaction()
+										.withBundle(myBundle)
+										.execute();
+
+									resourceCount = countBundleEntries(myBundle);
+								}
+								success = true;
+							} finally {
+								release(clientIndex, start, success);
+							}
+							long latency = System.currentTimeMillis() - start;
+
+							recordTransaction(clientIndex, resourceCount, latency);
+							ourJournal.markComplete(myFingerprint);
 						}
 
-					} catch (BaseServerResponseException e) {
-						ourLog.error("Failure: {}", e.toString());
-						myErrorsCounter.incrementAndGet();
+					} catch (BaseServerResponseException | IOException e) {
+						recordFailure(e);
 					}
 
 					int fileCount = myFilesCounter.incrementAndGet();
 					if (fileCount % 10 == 0) {
-
-						List<Long> latencies;
-						synchronized (ourLatencies) {
-							latencies = ourLatencies.stream().toList();
-						}
-						long latenciesTotal = latencies.stream().mapToLong(t -> t).sum();
-						long slidingLatency = (latenciesTotal * ourMaxThreads) / latencies.size();
-
-						ourLog.info("Have uploaded {}/{} files with {} resources in {} - {} files/sec - {} res/sec - Sliding {} res/sec - ETA {} - {} errors",
-							myFilesCounter.get() + ourOffset,
-							myPathsCount + ourOffset,
-							myResourcesCounter.get(),
-							mySw,
-							mySw.formatThroughput(myFilesCounter.get(), TimeUnit.SECONDS),
-							mySw.formatThroughput(myResourcesCounter.get(), TimeUnit.SECONDS),
-							slidingLatency,
-							mySw.getEstimatedTimeRemaining(myFilesCounter.get(), myPathsCount),
-							myErrorsCounter.get());
-						ourLog.info("LOAD10,{},{},{},{},{},{},{},{}",
-							mySw.getMillis(),
-							new DecimalFormat("0.0").format((double) mySw.getMillis() / (1000.0 * 60.0 * 60.0)),
-							myFilesCounter.get() + ourOffset,
-							myResourcesCounter.get(),
-							mySw.formatThroughput(myFilesCounter.get(), TimeUnit.SECONDS),
-							mySw.formatThroughput(myResourcesCounter.get(), TimeUnit.SECONDS),
-							slidingLatency,
-							myErrorsCounter.get());
-						if (fileCount % 500 == 0) {
-							ourLog.info("LOAD500,{},{},{},{},{},{},{},{}",
-								mySw.getMillis(),
-								new DecimalFormat("0.0").format((double) mySw.getMillis() / (1000.0 * 60.0 * 60.0)),
-								myFilesCounter.get() + ourOffset,
-								myResourcesCounter.get(),
-								mySw.formatThroughput(myFilesCounter.get(), TimeUnit.SECONDS),
-								mySw.formatThroughput(myResourcesCounter.get(), TimeUnit.SECONDS),
-								slidingLatency,
-								myErrorsCounter.get());
-						}
-
-						StringBuilder timings = new StringBuilder();
-						timings.append("Timings:");
-						for (int i = 0; i < ourClientInvocationCounts.size(); i++) {
-							timings.append("\n * ");
-							timings.append(ourClients.get(i).getServerBase());
-							timings.append(" - ");
-							timings.append(ourClientInvocationCounts.get(i).describeAndClear());
-						}
-						ourLog.info(timings.toString());
+						myReporter.execute(() -> reportProgress(fileCount));
 					}
 				} catch (Throwable t) {
-					myErrorsCounter.incrementAndGet();
+					myErrorsCounter.increment();
 					ourLog.error("Error during task", t);
 				}
 			}
+
+			/**
+			 * Posts the file exactly as it is stored on disk, declaring it as gzip encoded if
+			 * it is compressed, so the bundle is never inflated or held in memory here.
+			 *
+			 * @return The number of resources the server processed
+			 */
+			private int postFile(String theBaseUrl) throws IOException {
+				FileEntity entity = new FileEntity(myPath.toFile(), BaseScaleupTest.CONTENT_TYPE_FHIR_JSON);
+				if (myPath.toString().endsWith(".json.gz")) {
+					entity.setContentEncoding("gzip");
+				}
+
+				HttpPost post = new HttpPost(theBaseUrl);
+				post.setEntity(entity);
+				post.addHeader("Authorization", ourAuthorizationHeader);
+				post.addHeader("Accept", Constants.CT_FHIR_JSON_NEW);
+
+				HttpResponse response = ourPassThroughClient.execute(post);
+				try {
+					int status = response.getStatusLine().getStatusCode();
+					if (status < 200 || status > 299) {
+						String body = EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8);
+						throw BaseServerResponseException.newInstance(status, body);
+					}
+					try (InputStream content = response.getEntity().getContent()) {
+						return countBundleEntries(content);
+					}
+				} finally {
+					EntityUtils.consumeQuietly(response.getEntity());
+				}
+			}
 		}
 
 
 	}
 
-	private static class ThreadTiming {
+	/**
+	 * One stage of the upload pipeline. Tasks are queued in a bounded queue and
+	 * submitting blocks while it is full, so a slow stage holds back the stage
+	 * feeding it instead of letting work pile up in memory.
+	 */
+	private static class Stage {
+
+		private final String myName;
+		private final int myQueueCapacity;
+		private final ThreadPoolTaskExecutor myExecutor;
+		private final LongAdder myBusyNanos = new LongAdder();
+		private final LongAdder myCompleted = new LongAdder();
+		private long myLastDescribeNanos = System.nanoTime();
+
+		public Stage(String theName, int theThreads, int theQueueCapacity) {
+			myName = theName;
+			myQueueCapacity = theQueueCapacity;
+
+			myExecutor = new ThreadPoolTaskExecutor();
+			myExecutor.setCorePoolSize(theThreads);
+			myExecutor.setMaxPoolSize(theThreads);
+			myExecutor.setQueueCapacity(theQueueCapacity);
+			myExecutor.setAllowCoreThreadTimeOut(true);
+			myExecutor.setThreadNamePrefix(theName);
+			myExecutor.setRejectedExecutionHandler(new BlockPolicy());
+			myExecutor.initialize();
+		}
+
+		public void submit(Runnable theTask) {
+			myExecutor.execute(() -> {
+				long start = System.nanoTime();
+				try {
+					theTask.run();
+				} finally {
+					myBusyNanos.add(System.nanoTime() - start);
+					myCompleted.increment();
+				}
+			});
+		}
+
+		public int getThreads() {
+			return myExecutor.getMaxPoolSize();
+		}
 
-		private long myInvocationCount;
-		private long myInvocationTime;
+		public void setThreads(int theThreads) {
+			// The core size can never be above the max size, so the order matters
+			if (theThreads > myExecutor.getMaxPoolSize()) {
+				myExecutor.setMaxPoolSize(theThreads);
+				myExecutor.setCorePoolSize(theThreads);
+			} else {
+				myExecutor.setCorePoolSize(theThreads);
+				myExecutor.setMaxPoolSize(theThreads);
+			}
+		}
 
-		public synchronized void addInvocation(long theLatency) {
-			myInvocationCount++;
-			myInvocationTime += theLatency;
+		/**
+		 * Waits for all submitted tasks to finish. No more tasks may be submitted afterwards.
+		 */
+		public void awaitCompletion() throws InterruptedException {
+			ThreadPoolExecutor executor = myExecutor.getThreadPoolExecutor();
+			executor.shutdown();
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
 		}
 
+		/**
+		 * Describes the stage's utilisation since the last time this was called
+		 */
 		public synchronized String describeAndClear() {
-			if (myInvocationCount == 0) {
+			long now = System.nanoTime();
+			long elapsed = Math.max(1, now - myLastDescribeNanos);
+			myLastDescribeNanos = now;
+
+			int threads = getThreads();
+			long busy = myBusyNanos.sumThenReset();
+			long completed = myCompleted.sumThenReset();
+			long utilisation = (100 * busy) / (elapsed * threads);
+			return myName + " " + threads + " threads - " + utilisation + "% busy - " + completed + " tasks - queue " + myExecutor.getThreadPoolExecutor().getQueue().size() + "/" + myQueueCapacity;
+		}
+	}
+
+	private static class ThreadTiming {
+
+		private final LongAdder myInvocationCount = new LongAdder();
+		private final LongAdder myInvocationTime = new LongAdder();
+
+		public void addInvocation(long theLatency) {
+			myInvocationCount.increment();
+			myInvocationTime.add(theLatency);
+		}
+
+		public String describeAndClear() {
+			long invocationCount = myInvocationCount.sumThenReset();
+			long invocationTime = myInvocationTime.sumThenReset();
+			if (invocationCount == 0) {
 				return "No invocations";
 			}
 
-			long average = myInvocationTime / myInvocationCount;
-			String retVal = myInvocationCount + " files, average " + StopWatch.formatMillis(average) + "/file";
+			long average = invocationTime / invocationCount;
+			return invocationCount + " files, average " + StopWatch.formatMillis(average) + "/file";
+		}
+
+	}
+
+	/**
+	 * Holds the most recent samples without any locking. Each writer claims its own
+	 * slot in the ring with a single atomic increment, so writers never wait for each
+	 * other, and the reporter sums the slots in place instead of copying them.
+	 */
+	private static class SlidingWindow {
+
+		private final AtomicLongArray mySlots;
+		private final AtomicLong myCursor = new AtomicLong(0);
+
+		public SlidingWindow(int theCapacity) {
+			mySlots = new AtomicLongArray(theCapacity);
+		}
 
-			myInvocationCount = 0;
-			myInvocationTime = 0;
+		public void add(long theValue) {
+			long index = myCursor.getAndIncrement();
+			mySlots.lazySet((int) (index % mySlots.length()), theValue);
+		}
 
+		public int size() {
+			return (int) Math.min(myCursor.get(), mySlots.length());
+		}
+
+		public long sum() {
+			long retVal = 0;
+			int size = size();
+			for (int i = 0; i < size; i++) {
+				retVal += mySlots.get(i);
+			}
 			return retVal;
 		}
 
 	}
 
+	/**
+	 * Counts the entries in a transaction-response bundle without parsing it
+	 */
+	static int countBundleEntries(InputStream theBundle) throws IOException {
+		return countBundleEntries(ourJsonFactory.createParser(theBundle));
+	}
+
+	/**
+	 * Counts the entries in a bundle that has been read into memory, skipping over
+	 * them without building any resources
+	 */
+	static int countBundleEntries(String theBundle) throws IOException {
+		return countBundleEntries(ourJsonFactory.createParser(theBundle));
+	}
+
+	private static int countBundleEntries(JsonParser theParser) throws IOException {
+		int retVal = 0;
+		try (JsonParser parser = theParser) {
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				return 0;
+			}
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String fieldName = parser.getCurrentName();
+				JsonToken value = parser.nextToken();
+				if ("entry".equals(fieldName) && value == JsonToken.START_ARRAY) {
+					while (parser.nextToken() == JsonToken.START_OBJECT) {
+						retVal++;
+						parser.skipChildren();
+					}
+				} else {
+					parser.skipChildren();
+				}
+			}
+		}
+		return retVal;
+	}
+
 	public static void main(String[] args) throws Exception {
 
 		String directory = args[0];
@@ -266,36 +711,44 @@ public class Test01_LoadDataUsingTransactions {
 		String credentials = args[2];
 		String threads = args[3];
 		String uploadMetadata = args[4];
+		String journalFile = "synthea-bulk-loader.journal";
 		if (args.length >= 6) {
-			String offset = args[5];
-			ourOffset = Integer.parseInt(offset);
+			journalFile = args[5];
+			Validate.isTrue(!StringUtils.isNumeric(journalFile), "The offset argument has been replaced by a load journal file, which tracks the files that have already been loaded");
 		}
 
 		ourMaxThreads = Integer.parseInt(threads);
 
 		ourLog.info("Searching for Synthea files in directory: {}", directory);
-		List<Path> files = Files
-			.list(FileSystems.getDefault().getPath(directory))
-			.filter(t -> t.toString().endsWith(".json") || t.toString().endsWith(".json.gz"))
-			.sorted(Comparator.comparing(Path::toString))
-			.collect(Collectors.toList());
-
-		if (files.size() < 10) {
-			throw new Exception(files.size() + " .json files found in " + directory);
-		}
+		Path directoryPath = FileSystems.getDefault().getPath(directory);
+		int metaCount = countFiles(directoryPath, Test01_LoadDataUsingTransactions::isMetadataFile);
+		int nonMetaCount = countFiles(directoryPath, t -> !isMetadataFile(t));
 
-		if (ourOffset > 0) {
-			ourLog.info("Starting at offset {}", ourOffset);
-			files = files.subList(ourOffset, files.size());
-		} else {
-			ourLog.info("Offset is {}", ourOffset);
+		if (metaCount + nonMetaCount < 10) {
+			throw new Exception((metaCount + nonMetaCount) + " .json files found in " + directory);
 		}
 
+		ourJournal = new LoadJournal(FileSystems.getDefault().getPath(journalFile), metaCount + nonMetaCount);
+
 
 		ourCtx.getRestfulClientFactory().setConnectionRequestTimeout(1000000);
 		ourCtx.getRestfulClientFactory().setConnectTimeout(1000000);
 		ourCtx.getRestfulClientFactory().setSocketTimeout(1000000);
 
+		ourAuthorizationHeader = "Basic " + Base64.encodeBase64String(credentials.getBytes(Constants.CHARSET_US_ASCII));
+		ourPassThroughClient = ((ApacheRestfulClientFactory) ourCtx.getRestfulClientFactory()).getNativeHttpClient();
+		if (ourPassThrough) {
+			ourLog.info("Posting files as stored on disk without parsing them");
+		}
+
+		int rebatchEntries = Integer.getInteger("bulkload.rebatchEntries", 0);
+		long rebatchBytes = Long.getLong("bulkload.rebatchBytes", 0L);
+		if (rebatchEntries > 0 || rebatchBytes > 0) {
+			Validate.isTrue(!ourPassThrough, "bulkload.passThrough can not be combined with re-batching");
+			ourLog.info("Re-batching bundles into transactions of {} entries / {} bytes", rebatchEntries, rebatchBytes);
+			ourRebatcher = new BundleRebatcher(rebatchEntries, rebatchBytes);
+		}
+
 		String[] baseUrlSplit = baseUrls.split(",");
 		for (String next : baseUrlSplit) {
 			ourLog.info("Uploading to FHIR server at base URL: {}", next);
@@ -306,18 +759,46 @@ public class Test01_LoadDataUsingTransactions {
 			ourClients.add(client);
 			ourClientInvocationCounts.add(new ThreadTiming());
 		}
+		ourBalancer = LoadBalancer.fromSystemProperties(ourClients.size());
+		ourLiveMetrics = LiveMetrics.fromSystemProperties(ourClients.stream().map(IGenericClient::getServerBase).toList());
 
 		if (uploadMetadata.equals("true")) {
 			ourLog.info("Loading metadata files...");
-			List<Path> meta = files.stream().filter(t -> t.toString().contains("hospital") || t.toString().contains("practitioner")).collect(Collectors.toList());
-			new Uploader(meta);
+			try (DirectoryStream<Path> meta = Files.newDirectoryStream(directoryPath, t -> isBundleFile(t) && isMetadataFile(t))) {
+				new Uploader(meta, metaCount);
+			}
 		}
 
 		ourLog.info("Loading non metadata files...");
-		List<Path> nonMeta = files.stream().filter(t -> !t.toString().contains("hospital") && !t.toString().contains("practitioner")).collect(Collectors.toList());
 
-		ourLog.info("Starting real load of {} files with {} threads...", nonMeta.size(), ourMaxThreads);
-		new Uploader(nonMeta);
+		ourLog.info("Starting real load of {} files with {} threads...", nonMetaCount, ourMaxThreads);
+		try (DirectoryStream<Path> nonMeta = Files.newDirectoryStream(directoryPath, t -> isBundleFile(t) && !isMetadataFile(t))) {
+			new Uploader(nonMeta, nonMetaCount);
+		}
+
+		ourLiveMetrics.close();
+		ourJournal.close();
+	}
+
+	private static boolean isBundleFile(Path thePath) {
+		return thePath.toString().endsWith(".json") || thePath.toString().endsWith(".json.gz");
+	}
+
+	private static boolean isMetadataFile(Path thePath) {
+		return thePath.toString().contains("hospital") || thePath.toString().contains("practitioner");
+	}
+
+	/**
+	 * Counts the matching files without holding on to their paths
+	 */
+	private static int countFiles(Path theDirectory, Predicate<Path> theFilter) throws IOException {
+		int retVal = 0;
+		try (DirectoryStream<Path> paths = Files.newDirectoryStream(theDirectory, t -> isBundleFile(t) && theFilter.test(t))) {
+			for (Path ignored : paths) {
+				retVal++;
+			}
+		}
+		return retVal;
 	}
 
 
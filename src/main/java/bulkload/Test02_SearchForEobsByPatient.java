@@ -1,13 +1,13 @@
 package bulkload;
 
 import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
-import com.codahale.metrics.Histogram;
 import org.apache.http.client.methods.HttpGet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CompletionStage;
 
 public class Test02_SearchForEobsByPatient extends BaseScaleupTest {
 
@@ -37,21 +37,31 @@ public class Test02_SearchForEobsByPatient extends BaseScaleupTest {
 
 	public static class SearchTask implements IFunction {
 		@Override
-		public void run(Histogram theResponseCharCounter, BaseScaleupTest theTest) throws Exception {
+		public void run(PassRecorder theRecorder, BaseScaleupTest theTest) throws Exception {
 			String patientId = theTest.getRandomPatientId();
-			String baseUrl = theTest.getNextBaseUrl();
-
-			StringBuilder url = new StringBuilder().append(baseUrl).append("/ExplanationOfBenefit?patient=").append(patientId).append("&_fhirpath=Bundle.type");
-			HttpGet request = new HttpGet(url.toString());
-			try (var response = theTest.getHttpClient().execute(request)) {
-				if (response.getStatusLine().getStatusCode() != 200) {
-					ourLog.error("ERROR: Got HTTP status {}", response.getStatusLine().getStatusCode());
-					throw new InternalErrorException("Bad HTTP status");
+			try (BaseTest.NodeLease node = theTest.leaseNode()) {
+				StringBuilder url = new StringBuilder().append(node.getBaseUrl()).append("/ExplanationOfBenefit?patient=").append(patientId).append("&_fhirpath=Bundle.type");
+				HttpGet request = new HttpGet(url.toString());
+				try (var response = theTest.getHttpClient().execute(request)) {
+					if (response.getStatusLine().getStatusCode() != 200) {
+						ourLog.error("ERROR: Got HTTP status {}", response.getStatusLine().getStatusCode());
+						throw new InternalErrorException("Bad HTTP status");
+					}
+
+					consumeAndCountResponse(theRecorder, response);
 				}
-
-				consumeAndCountResponse(theResponseCharCounter, response);
+				node.success();
 			}
 		}
 
+		@Override
+		public CompletionStage<Void> runAsync(PassRecorder theRecorder, BaseScaleupTest theTest) {
+			String patientId = theTest.getRandomPatientId();
+			return theTest.executeAsync(node -> {
+				StringBuilder url = new StringBuilder().append(node.getBaseUrl()).append("/ExplanationOfBenefit?patient=").append(patientId).append("&_fhirpath=Bundle.type");
+				return theTest.newAsyncRequest(url.toString()).GET().build();
+			}, theRecorder);
+		}
+
 	}
 }
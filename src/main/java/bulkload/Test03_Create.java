@@ -2,7 +2,6 @@ package bulkload;
 
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
-import com.codahale.metrics.Histogram;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.time.DateUtils;
 import org.apache.http.client.methods.HttpPost;
@@ -13,10 +12,12 @@ import org.hl7.fhir.r4.model.Quantity;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.net.http.HttpRequest;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.CompletionStage;
 
 public class Test03_Create extends BaseScaleupTest {
 
@@ -60,23 +61,49 @@ public class Test03_Create extends BaseScaleupTest {
 
 		}
 
+		/**
+		 * Fills the patient into the observation template. Package-private so that the
+		 * payload benchmarks can measure it.
+		 */
+		String newContent(String thePatientId) {
+			return myContent.replace("Patient/PATIENTID", thePatientId);
+		}
+
 		@Override
-		public void run(Histogram theResponseCharCounter, BaseScaleupTest theTest) throws Exception {
-
-			String newContent = myContent.replace("Patient/PATIENTID", theTest.getRandomPatientId());
-
-			StringBuilder url = new StringBuilder().append(theTest.getNextBaseUrl()).append("/Observation");
-			HttpPost request = new HttpPost(url.toString());
-			request.setEntity(new StringEntity(newContent, CONTENT_TYPE_FHIR_JSON));
-			try (var response = theTest.getHttpClient().execute(request)) {
-				if (response.getStatusLine().getStatusCode() < 200 || response.getStatusLine().getStatusCode() > 299) {
-					ourLog.error("ERROR: Got HTTP status {}", response.getStatusLine().getStatusCode());
-					ourLog.error(IOUtils.toString(response.getEntity().getContent(), StandardCharsets.UTF_8));
-					throw new InternalErrorException("Bad HTTP status");
+		public void run(PassRecorder theRecorder, BaseScaleupTest theTest) throws Exception {
+
+			String newContent = newContent(theTest.getRandomPatientId());
+
+			try (BaseTest.NodeLease node = theTest.leaseNode()) {
+				StringBuilder url = new StringBuilder().append(node.getBaseUrl()).append("/Observation");
+				HttpPost request = new HttpPost(url.toString());
+				request.setEntity(new StringEntity(newContent, CONTENT_TYPE_FHIR_JSON));
+				try (var response = theTest.getHttpClient().execute(request)) {
+					if (response.getStatusLine().getStatusCode() < 200 || response.getStatusLine().getStatusCode() > 299) {
+						ourLog.error("ERROR: Got HTTP status {}", response.getStatusLine().getStatusCode());
+						ourLog.error(IOUtils.toString(response.getEntity().getContent(), StandardCharsets.UTF_8));
+						throw new InternalErrorException("Bad HTTP status");
+					}
+
+					consumeAndCountResponse(theRecorder, response);
 				}
-
-				consumeAndCountResponse(theResponseCharCounter, response);
+				node.success();
 			}
 		}
+
+		@Override
+		public CompletionStage<Void> runAsync(PassRecorder theRecorder, BaseScaleupTest theTest) {
+
+			String newContent = newContent(theTest.getRandomPatientId());
+
+			return theTest.executeAsync(node -> {
+				StringBuilder url = new StringBuilder().append(node.getBaseUrl()).append("/Observation");
+				HttpRequest.Builder request = theTest
+					.newAsyncRequest(url.toString())
+					.header("Content-Type", CONTENT_TYPE_FHIR_JSON.toString());
+				request.POST(theTest.newAsyncBody(request, newContent));
+				return request.build();
+			}, theRecorder);
+		}
 	}
 }
@@ -1,7 +1,6 @@
 package bulkload;
 
 import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
-import com.codahale.metrics.Histogram;
 import org.apache.commons.io.IOUtils;
 import org.apache.http.client.methods.HttpGet;
 import org.slf4j.Logger;
@@ -10,6 +9,7 @@ import org.slf4j.LoggerFactory;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CompletionStage;
 
 public class Test04_Read extends BaseScaleupTest {
 
@@ -38,22 +38,38 @@ public class Test04_Read extends BaseScaleupTest {
 
 	public static class ReadTask implements IFunction {
 		@Override
-		public void run(Histogram theResponseCharCounter, BaseScaleupTest theTest) throws Exception {
-
-			StringBuilder url = new StringBuilder()
-				.append(theTest.getNextBaseUrl())
-				.append("/")
-				.append(theTest.getRandomPatientId());
-			HttpGet request = new HttpGet(url.toString());
-			try (var response = theTest.getHttpClient().execute(request)) {
-				if (response.getStatusLine().getStatusCode() < 200 || response.getStatusLine().getStatusCode() > 299) {
-					ourLog.error("ERROR: Got HTTP status {}", response.getStatusLine().getStatusCode());
-					ourLog.error(IOUtils.toString(response.getEntity().getContent(), StandardCharsets.UTF_8));
-					throw new InternalErrorException("Bad HTTP status");
-				}
+		public void run(PassRecorder theRecorder, BaseScaleupTest theTest) throws Exception {
+
+			try (BaseTest.NodeLease node = theTest.leaseNode()) {
+				StringBuilder url = new StringBuilder()
+					.append(node.getBaseUrl())
+					.append("/")
+					.append(theTest.getRandomPatientId());
+				HttpGet request = new HttpGet(url.toString());
+				try (var response = theTest.getHttpClient().execute(request)) {
+					if (response.getStatusLine().getStatusCode() < 200 || response.getStatusLine().getStatusCode() > 299) {
+						ourLog.error("ERROR: Got HTTP status {}", response.getStatusLine().getStatusCode());
+						ourLog.error(IOUtils.toString(response.getEntity().getContent(), StandardCharsets.UTF_8));
+						throw new InternalErrorException("Bad HTTP status");
+					}
 
-				consumeAndCountResponse(theResponseCharCounter, response);
+					consumeAndCountResponse(theRecorder, response);
+				}
+				node.success();
 			}
 		}
+
+		@Override
+		public CompletionStage<Void> runAsync(PassRecorder theRecorder, BaseScaleupTest theTest) {
+
+			String patientId = theTest.getRandomPatientId();
+			return theTest.executeAsync(node -> {
+				StringBuilder url = new StringBuilder()
+					.append(node.getBaseUrl())
+					.append("/")
+					.append(patientId);
+				return theTest.newAsyncRequest(url.toString()).GET().build();
+			}, theRecorder);
+		}
 	}
 }
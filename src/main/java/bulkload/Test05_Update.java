@@ -1,16 +1,19 @@
 package bulkload;
 
 import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
-import com.codahale.metrics.Histogram;
 import org.apache.commons.io.IOUtils;
 import org.apache.http.client.methods.HttpPut;
 import org.apache.http.entity.StringEntity;
+import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.net.http.HttpRequest;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 
 public class Test05_Update extends BaseScaleupTest {
 
@@ -35,35 +38,142 @@ public class Test05_Update extends BaseScaleupTest {
 		new Test05_Update(baseUrls, credentials).run();
 	}
 
+	/**
+	 * Updates a patient with a versioned PUT (<code>If-Match</code>), so that the server
+	 * refuses the write instead of silently overwriting a change it hasn't been shown. A
+	 * refused write is recorded as a conflict, the patient is read again and the update
+	 * retried.
+	 */
 	public static class UpdateTask implements IFunction {
 		@Override
-		public void run(Histogram theResponseCharCounter, BaseScaleupTest theTest) throws Exception {
+		public void run(PassRecorder theRecorder, BaseScaleupTest theTest) throws Exception {
 
-			String patientId = theTest.getRandomPatientId();
-			String patient = theTest.getPatientString(patientId);
+			try (BaseScaleupTest.PatientLease lease = theTest.leasePatient()) {
+				String patientId = lease.getPatientId();
+				for (int attempt = 0; ; attempt++) {
+					BaseScaleupTest.CachedPatient patient = theTest.getPatient(patientId);
+					String body = toggleGender(patient.getBody());
 
-			if (patient.contains("\"gender\":\"male\"")) {
-				patient = patient.replace("\"gender\":\"male\"", "\"gender\":\"female\"");
-			} else {
-				patient = patient.replace("\"gender\":\"female\"", "\"gender\":\"male\"");
-			}
-			theTest.replacePatient(patientId, patient);
-
-			StringBuilder url = new StringBuilder()
-				.append(theTest.getNextBaseUrl())
-				.append("/")
-				.append(patientId);
-			HttpPut request = new HttpPut(url.toString());
-			request.setEntity(new StringEntity(patient, CONTENT_TYPE_FHIR_JSON));
-			try (var response = theTest.getHttpClient().execute(request)) {
-				if (response.getStatusLine().getStatusCode() < 200 || response.getStatusLine().getStatusCode() > 299) {
-					ourLog.error("ERROR: Got HTTP status {}", response.getStatusLine().getStatusCode());
-					ourLog.error(IOUtils.toString(response.getEntity().getContent(), StandardCharsets.UTF_8));
-					throw new InternalErrorException("Bad HTTP status");
+					try (BaseTest.NodeLease node = theTest.leaseNode()) {
+						StringBuilder url = new StringBuilder()
+							.append(node.getBaseUrl())
+							.append("/")
+							.append(patientId);
+						HttpPut request = new HttpPut(url.toString());
+						request.setEntity(new StringEntity(body, CONTENT_TYPE_FHIR_JSON));
+						if (patient.getVersion() != null) {
+							request.addHeader("If-Match", BaseScaleupTest.toIfMatch(patient.getVersion()));
+						}
+						long start = System.nanoTime();
+						try (var response = theTest.getHttpClient().execute(request)) {
+							int status = response.getStatusLine().getStatusCode();
+							if (isConflict(status)) {
+								EntityUtils.consume(response.getEntity());
+								theRecorder.recordConflict(status, System.nanoTime() - start);
+								// The node did its job, the patient was just out of date
+								node.success();
+								onConflict(theTest, patientId, status, attempt);
+								continue;
+							}
+							if (status < 200 || status > 299) {
+								ourLog.error("ERROR: Got HTTP status {}", status);
+								ourLog.error(IOUtils.toString(response.getEntity().getContent(), StandardCharsets.UTF_8));
+								throw new InternalErrorException("Bad HTTP status");
+							}
+
+							consumeAndCountResponse(theRecorder, response);
+							theTest.replacePatient(patientId, body, BaseScaleupTest.parseVersion(getHeader(response, "ETag"), getHeader(response, "Location")));
+						}
+						node.success();
+					}
+					return;
 				}
+			}
+		}
+
+		@Override
+		public CompletionStage<Void> runAsync(PassRecorder theRecorder, BaseScaleupTest theTest) {
+			BaseScaleupTest.PatientLease lease = theTest.leasePatient();
+			// Starting from a completed stage turns anything updateAsync throws into a failed
+			// stage, so the lease is released whichever way the update ends
+			return CompletableFuture
+				.completedFuture(lease.getPatientId())
+				.thenCompose(patientId -> updateAsync(theRecorder, theTest, patientId, 0))
+				.whenComplete((result, throwable) -> lease.close());
+		}
+
+		private static CompletionStage<Void> updateAsync(PassRecorder theRecorder, BaseScaleupTest theTest, String thePatientId, int theAttempt) {
+			return theTest.getPatientAsync(thePatientId).thenCompose(thePatient -> {
+				String body = toggleGender(thePatient.getBody());
+
+				return theTest
+					.withNodeAsync(node -> {
+						StringBuilder url = new StringBuilder()
+							.append(node.getBaseUrl())
+							.append("/")
+							.append(thePatientId);
+						HttpRequest.Builder request = theTest
+							.newAsyncRequest(url.toString())
+							.header("Content-Type", CONTENT_TYPE_FHIR_JSON.toString());
+						request.PUT(theTest.newAsyncBody(request, body));
+						if (thePatient.getVersion() != null) {
+							request.header("If-Match", BaseScaleupTest.toIfMatch(thePatient.getVersion()));
+						}
+						HttpRequest built = request.build();
+						long start = System.nanoTime();
+						return theTest.sendAsync(built).thenApply(response -> {
+							int status = response.statusCode();
+							if (isConflict(status)) {
+								theRecorder.recordConflict(status, System.nanoTime() - start);
+								// The node did its job, the patient was just out of date
+								node.success();
+								return status;
+							}
+							if (status < 200 || status > 299) {
+								ourLog.error("ERROR: Got HTTP status {}", status);
+								throw new InternalErrorException("Bad HTTP status");
+							}
+
+							response.body().recordTo(theRecorder);
+							theTest.replacePatient(thePatientId, body, BaseScaleupTest.parseVersion(response.headers().firstValue("ETag").orElse(null), response.headers().firstValue("Location").orElse(null)));
+							node.success();
+							return status;
+						});
+					})
+					// The retry leases a node of its own once this one has been released
+					.thenCompose(status -> {
+						if (!isConflict(status)) {
+							return CompletableFuture.<Void>completedFuture(null);
+						}
+						onConflict(theTest, thePatientId, status, theAttempt);
+						return updateAsync(theRecorder, theTest, thePatientId, theAttempt + 1);
+					});
+			});
+		}
+
+		private static boolean isConflict(int theStatus) {
+			return theStatus == 409 || theStatus == 412;
+		}
+
+		/**
+		 * Forgets the out of date patient so the retry reads it again, or gives up
+		 */
+		private static void onConflict(BaseScaleupTest theTest, String thePatientId, int theStatus, int theAttempt) {
+			theTest.forgetPatient(thePatientId);
+			if (theAttempt >= BaseScaleupTest.getConflictRetries()) {
+				ourLog.error("ERROR: Got HTTP status {} updating {} after {} retries", theStatus, thePatientId, theAttempt);
+				throw new InternalErrorException("Too many write conflicts");
+			}
+		}
 
-				consumeAndCountResponse(theResponseCharCounter, response);
+		/**
+		 * Package-private so that the payload benchmarks can measure it
+		 */
+		static String toggleGender(String thePatient) {
+			if (thePatient.contains("\"gender\":\"male\"")) {
+				return thePatient.replace("\"gender\":\"male\"", "\"gender\":\"female\"");
 			}
+			return thePatient.replace("\"gender\":\"female\"", "\"gender\":\"male\"");
 		}
 	}
 }
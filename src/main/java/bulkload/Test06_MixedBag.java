@@ -13,7 +13,9 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutionException;
 
 public class Test06_MixedBag extends BaseScaleupTest {
@@ -25,15 +27,22 @@ public class Test06_MixedBag extends BaseScaleupTest {
 		super(theBaseUrls, theCredentials, "mixedbag");
 	}
 
-	private void run() throws ExecutionException, InterruptedException {
+	private void run() throws ExecutionException, InterruptedException, IOException {
 		loadPatients();
 
-		run(
-			new Test02_SearchForEobsByPatient.SearchTask(),
-			new Test03_Create.CreateTask(),
-			new Test04_Read.ReadTask(),
-			new Test05_Update.UpdateTask()
-		);
+		run(newMix());
+	}
+
+	/**
+	 * @return The operations of this test, weighted by the <code>bulkload.mix</code> system property
+	 */
+	public static OperationMix newMix() {
+		Map<String, IFunction> operations = new LinkedHashMap<>();
+		operations.put("search", new Test02_SearchForEobsByPatient.SearchTask());
+		operations.put("create", new Test03_Create.CreateTask());
+		operations.put("read", new Test04_Read.ReadTask());
+		operations.put("update", new Test05_Update.UpdateTask());
+		return OperationMix.fromSystemProperties(operations);
 	}
 
 	public static void main(String[] args) throws Exception {
@@ -0,0 +1,192 @@
+package bulkload;
+
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import org.apache.commons.lang3.Validate;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpRequest;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.util.EntityUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * How requests and responses are encoded on the wire: the content encoding used for
+ * request bodies and asked for with <code>Accept-Encoding</code>, and the FHIR format
+ * asked for with <code>Accept</code>. Either may be left to the server, which is what
+ * happens unless a matrix of formats is asked for (see {@link #matrixFromSystemProperties()}).
+ * <p>
+ * Explicit headers on a request win, so requests whose bodies are read rather than
+ * just measured can keep asking for plain JSON.
+ */
+public class WireFormat {
+
+	/**
+	 * Sends requests the way they have always been sent, leaving both to the server
+	 */
+	public static final WireFormat SERVER_DEFAULT = new WireFormat(null, null);
+
+	public enum Encoding {
+		IDENTITY,
+		GZIP,
+		DEFLATE;
+
+		public String getHeaderValue() {
+			return name().toLowerCase(Locale.US);
+		}
+
+		/**
+		 * @return The body compressed with this encoding. <code>deflate</code> is the zlib format, as HTTP defines it.
+		 */
+		public byte[] encode(byte[] theBody) throws IOException {
+			if (this == IDENTITY) {
+				return theBody;
+			}
+			ByteArrayOutputStream retVal = new ByteArrayOutputStream(theBody.length / 4 + 64);
+			try (OutputStream stream = this == GZIP ? new GZIPOutputStream(retVal) : new DeflaterOutputStream(retVal)) {
+				stream.write(theBody);
+			}
+			return retVal.toByteArray();
+		}
+	}
+
+	public enum Format {
+		JSON(Constants.CT_FHIR_JSON_NEW),
+		XML(Constants.CT_FHIR_XML_NEW);
+
+		private final String myMimeType;
+
+		Format(String theMimeType) {
+			myMimeType = theMimeType;
+		}
+
+		public String getMimeType() {
+			return myMimeType;
+		}
+	}
+
+	private final Encoding myEncoding;
+	private final Format myFormat;
+
+	/**
+	 * @param theEncoding The encoding, or <code>null</code> to leave it to the server
+	 * @param theFormat   The format, or <code>null</code> to leave it to the server
+	 */
+	public WireFormat(Encoding theEncoding, Format theFormat) {
+		myEncoding = theEncoding;
+		myFormat = theFormat;
+	}
+
+	/**
+	 * Creates every combination of the encodings in the <code>bulkload.encodings</code>
+	 * system property (e.g. <code>identity,gzip,deflate</code>) and the formats in the
+	 * <code>bulkload.formats</code> system property (e.g. <code>json,xml</code>). Either
+	 * left out is left to the server, so without both there is just
+	 * {@link #SERVER_DEFAULT}.
+	 */
+	public static List<WireFormat> matrixFromSystemProperties() {
+		List<Encoding> encodings = parse(System.getProperty("bulkload.encodings"), Encoding.class);
+		List<Format> formats = parse(System.getProperty("bulkload.formats"), Format.class);
+		List<WireFormat> retVal = new ArrayList<>();
+		for (Encoding nextEncoding : encodings) {
+			for (Format nextFormat : formats) {
+				retVal.add(nextEncoding == null && nextFormat == null ? SERVER_DEFAULT : new WireFormat(nextEncoding, nextFormat));
+			}
+		}
+		return retVal;
+	}
+
+	private static <T extends Enum<T>> List<T> parse(String theSpec, Class<T> theType) {
+		List<T> retVal = new ArrayList<>();
+		if (theSpec == null || theSpec.isBlank()) {
+			retVal.add(null);
+			return retVal;
+		}
+		for (String next : theSpec.split(",")) {
+			T value = Enum.valueOf(theType, next.trim().toUpperCase(Locale.US));
+			Validate.isTrue(!retVal.contains(value), "Duplicate %s", next);
+			retVal.add(value);
+		}
+		return retVal;
+	}
+
+	/**
+	 * Adds the headers to a request on the blocking client, and encodes its body if it
+	 * isn't encoded already
+	 */
+	public void apply(HttpRequest theRequest) throws IOException {
+		if (myFormat != null && !theRequest.containsHeader("Accept")) {
+			theRequest.addHeader("Accept", myFormat.getMimeType());
+		}
+		if (myEncoding != null && !theRequest.containsHeader("Accept-Encoding")) {
+			theRequest.addHeader("Accept-Encoding", myEncoding.getHeaderValue());
+		}
+		if (myEncoding != null && myEncoding != Encoding.IDENTITY && theRequest instanceof HttpEntityEnclosingRequest) {
+			HttpEntityEnclosingRequest request = (HttpEntityEnclosingRequest) theRequest;
+			HttpEntity entity = request.getEntity();
+			if (entity != null && entity.getContentEncoding() == null) {
+				ByteArrayEntity encoded = new ByteArrayEntity(myEncoding.encode(EntityUtils.toByteArray(entity)), ContentType.get(entity));
+				encoded.setContentEncoding(myEncoding.getHeaderValue());
+				request.setEntity(encoded);
+			}
+		}
+	}
+
+	/**
+	 * Adds the headers to a request on the non-blocking client. Its body has to be
+	 * encoded by the caller (see {@link #encodeBody(java.net.http.HttpRequest.Builder, String)}).
+	 */
+	public void apply(java.net.http.HttpRequest.Builder theRequest) {
+		if (myFormat != null) {
+			theRequest.header("Accept", myFormat.getMimeType());
+		}
+		if (myEncoding != null) {
+			theRequest.header("Accept-Encoding", myEncoding.getHeaderValue());
+		}
+	}
+
+	/**
+	 * Encodes a body for a request on the non-blocking client, declaring the encoding on the request
+	 */
+	public java.net.http.HttpRequest.BodyPublisher encodeBody(java.net.http.HttpRequest.Builder theRequest, String theBody) {
+		byte[] body = theBody.getBytes(Constants.CHARSET_UTF8);
+		if (myEncoding == null || myEncoding == Encoding.IDENTITY) {
+			return java.net.http.HttpRequest.BodyPublishers.ofByteArray(body);
+		}
+		try {
+			body = myEncoding.encode(body);
+		} catch (IOException e) {
+			throw new InternalErrorException(e);
+		}
+		theRequest.header("Content-Encoding", myEncoding.getHeaderValue());
+		return java.net.http.HttpRequest.BodyPublishers.ofByteArray(body);
+	}
+
+	/**
+	 * @return The encoding, or an empty string if it is left to the server
+	 */
+	public String getEncodingName() {
+		return myEncoding != null ? myEncoding.getHeaderValue() : "";
+	}
+
+	/**
+	 * @return The format, or an empty string if it is left to the server
+	 */
+	public String getFormatName() {
+		return myFormat != null ? myFormat.name().toLowerCase(Locale.US) : "";
+	}
+
+	@Override
+	public String toString() {
+		return (myEncoding != null ? myEncoding.getHeaderValue() : "server encoding") + " / " + (myFormat != null ? getFormatName() : "server format");
+	}
+}